@@ -0,0 +1,25 @@
+package ca.ulex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks through the JMH command line, writing the results as JSON to jmh-result.json unless another
+ * result format or file is given.
+ */
+public class BenchmarkMain
+{
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf")) {
+            arguments.add("-rf");
+            arguments.add("json");
+        }
+        if (!arguments.contains("-rff")) {
+            arguments.add("-rff");
+            arguments.add(Utils.getEnv("INGESTOR_BENCHMARK_RESULTS", "jmh-result.json"));
+        }
+        org.openjdk.jmh.Main.main(arguments.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,86 @@
+package ca.ulex;
+
+import com.opencsv.exceptions.CsvException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a whole generated feed with either reader, then turns its lines into rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CsvParsingBenchmarks
+{
+    @Param({"100000"})
+    public int lines;
+
+    @Param({"0.05"})
+    public double dirtiness;
+
+    private Path csvFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        csvFile = Files.createTempFile("feed", ".csv");
+        FeedGenerator.generate(csvFile, lines, dirtiness, 42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(csvFile);
+    }
+
+    @Benchmark
+    public void mappedReader(Blackhole blackhole) throws IOException {
+        try (MappedCsvReader reader = new MappedCsvReader(csvFile)) {
+            read(reader, blackhole);
+        }
+    }
+
+    @Benchmark
+    public void openCsv(Blackhole blackhole) throws IOException {
+        try (OpenCsvSource reader = new OpenCsvSource(new FileInputStream(csvFile.toFile()))) {
+            read(reader, blackhole);
+        }
+    }
+
+    @Benchmark
+    public void mappedReaderToRows(Blackhole blackhole) throws IOException {
+        FieldNormalizer normalizer = new FieldNormalizer();
+        try (MappedCsvReader reader = new MappedCsvReader(csvFile)) {
+            reader.next();
+            for (int csvLine = 2; reader.next(); csvLine++) {
+                if (reader.emptyField() < 0) {
+                    blackhole.consume(CsvRow.fromLine(csvLine, reader.fields(), normalizer));
+                }
+            }
+        }
+    }
+
+    private static void read(CsvSource reader, Blackhole blackhole) throws IOException {
+        try {
+            while (reader.next()) {
+                blackhole.consume(reader.emptyField());
+                blackhole.consume(reader.fields());
+            }
+        } catch (CsvException e) {
+            throw new IOException(e);
+        }
+    }
+}
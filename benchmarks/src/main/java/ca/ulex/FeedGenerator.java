@@ -0,0 +1,135 @@
+package ca.ulex;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Seeded generator of synthetic feeds shaped like the real ones: products with a few variants, each variant
+ * repeated over several locales. The dirtiness is the share of lines with an empty field, an invalid gender, or a
+ * brand name that is misspelled or entirely different from the product's.
+ * <p>
+ * The same seed, size and dirtiness always give the same file. Usage: {@code FeedGenerator <output.csv> <lines>
+ * [dirtiness] [seed]}.
+ */
+public class FeedGenerator
+{
+    private static final String[] BRANDS = {"Adidas", "Levi's", "Nike", "Ami Paris", "Capucine", "Zara", "Gucci",
+            "Prada", "Uniqlo", "Hermès", "Balenciaga", "Moncler", "Acne Studios", "A.P.C.", "Maison Kitsuné"};
+    private static final String[] GENDERS = {"male", "female", "unisex"};
+    private static final String[] AGE_GROUPS = {"adult", "kids", "toddler", "infant"};
+    private static final String[] SIZE_TYPES = {"regular", "petite", "plus", "tall"};
+    private static final String[] SIZES = {"XS", "S", "M", "L", "XL", "36", "38", "40", "42", "40 cm", "40厘米"};
+    private static final String[][] LOCALIZED = {
+            // product name, color, product type
+            {"Red dress", "Red", "Clothing > Dresses"},
+            {"Robe rouge", "Rouge", "Vêtements > Robes"},
+            {"Rotes Kleid", "Rot", "Kleidung > Kleider"},
+            {"Vestido rojo", "Rojo", "Ropa > Vestidos"},
+            {"Vestito rosso", "Rosso", "Abbigliamento > Vestiti"},
+            {"赤いドレス", "赤", "衣類 > ドレス"},
+            {"红色连衣裙", "红色", "服装 > 连衣裙"},
+            {"Leather \"Classic\" boots", "Brown, dark", "Shoes > Boots"},
+            {"Bottes en cuir", "Marron", "Chaussures > Bottes"},
+            {"Кожаные сапоги", "Коричневый", "Обувь > Сапоги"}};
+
+    private final Random random;
+    private final double dirtiness;
+
+    FeedGenerator(long seed, double dirtiness) {
+        this.random = new Random(seed);
+        this.dirtiness = dirtiness;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: FeedGenerator <output.csv> <lines> [dirtiness] [seed]");
+            System.exit(1);
+        }
+        double dirtiness = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+        generate(Paths.get(args[0]), Integer.parseInt(args[1]), dirtiness, seed);
+    }
+
+    static void generate(Path csvFile, int lines, double dirtiness, long seed) throws IOException {
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(csvFile, StandardCharsets.UTF_8))) {
+            new FeedGenerator(seed, dirtiness).write(writer, lines);
+        }
+    }
+
+    void write(Writer writer, int lines) throws IOException {
+        writeLine(writer, Utils.CSV_HEADER);
+        int written = 0;
+        for (int product = 0; written < lines; product++) {
+            String productId = String.valueOf(12600000 + product);
+            String brand = BRANDS[random.nextInt(BRANDS.length)];
+            int variants = 1 + random.nextInt(5);
+            for (int variant = 0; variant < variants && written < lines; variant++) {
+                String[] attributes = {productId + "-" + variant, pick(SIZES), pick(AGE_GROUPS), pick(GENDERS),
+                        pick(SIZE_TYPES)};
+                int locales = 1 + random.nextInt(3);
+                for (int locale = 0; locale < locales && written < lines; locale++) {
+                    writeLine(writer, line(productId, brand, attributes));
+                    written++;
+                }
+            }
+        }
+    }
+
+    private String[] line(String productId, String brand, String[] attributes) {
+        String[] localized = pick(LOCALIZED);
+        String[] line = {attributes[0], productId, attributes[1], localized[0], brand, localized[1], attributes[2],
+                attributes[3], attributes[4], localized[2]};
+        if (isDirty()) {
+            line[4] = random.nextBoolean() ? misspell(brand) : pick(BRANDS);
+        }
+        if (isDirty()) {
+            line[7] = "kids";
+        }
+        if (isDirty()) {
+            line[random.nextInt(line.length)] = "";
+        }
+        return line;
+    }
+
+    private boolean isDirty() {
+        return random.nextDouble() < dirtiness;
+    }
+
+    private String misspell(String name) {
+        int i = random.nextInt(name.length());
+        return name.substring(0, i) + name.substring(Math.min(name.length(), i + 1)) + (i % 2 == 0 ? "s" : "");
+    }
+
+    private String pick(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private String[] pick(String[][] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    // Quoted when needed, with the quotes and backslashes escaped as read by the ingestor
+    private static void writeLine(Writer writer, String[] fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            String field = fields[i];
+            if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\\') < 0
+                    && field.indexOf('\n') < 0) {
+                writer.write(field);
+                continue;
+            }
+            writer.write('"');
+            writer.write(field.replace("\\", "\\\\").replace("\"", "\\\""));
+            writer.write('"');
+        }
+        writer.write('\n');
+    }
+}
@@ -0,0 +1,127 @@
+package ca.ulex;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end: ingests a generated feed into a PostgreSQL server launched locally from the binaries bundled with
+ * embedded-postgres, then dumps it back to CSV. The schema is recreated from db_reset.sql before each iteration, so
+ * that every ingestion starts from an empty database.
+ * <p>
+ * PostgreSQL refuses to run as root, the benchmarks must be run as another user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class IngestBenchmarks
+{
+    @Param({Ingestor.LOAD_MODE_BATCH, Ingestor.LOAD_MODE_COPY})
+    public String loadMode;
+
+    @Param({"20000"})
+    public int lines;
+
+    @Param({"0.05"})
+    public double dirtiness;
+
+    @Param({"42"})
+    public long seed;
+
+    private EmbeddedPostgres postgres;
+    private String url;
+    private Path csvFile;
+    private Path dumpFile;
+
+    @Setup(Level.Trial)
+    public void startDatabase() throws IOException {
+        postgres = EmbeddedPostgres.builder().start();
+        url = postgres.getJdbcUrl("postgres", "postgres");
+        csvFile = Files.createTempFile("feed", ".csv");
+        dumpFile = Files.createTempFile("dump", ".csv");
+        FeedGenerator.generate(csvFile, lines, dirtiness, seed);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopDatabase() throws IOException {
+        Files.deleteIfExists(csvFile);
+        Files.deleteIfExists(dumpFile);
+        postgres.close();
+    }
+
+    /**
+     * Empties the database before each ingestion, the dumps then read the feed of the previous ingestion.
+     */
+    @Setup(Level.Iteration)
+    public void resetSchema() throws IOException, SQLException {
+        try (Connection conn = Utils.getConnection(url, "postgres", "postgres");
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP SCHEMA public CASCADE");
+            stmt.execute("CREATE SCHEMA public");
+            for (String sql : schemaStatements()) {
+                stmt.execute(sql);
+            }
+        }
+        // The delta dictionaries of a previous ingestion belong to the dropped tables
+        Ingestor.deltaDictionaries = null;
+    }
+
+    @Benchmark
+    public IngestPipeline ingestCSV() throws SQLException {
+        try (Connection conn = Utils.getConnection(url, "postgres", "postgres")) {
+            conn.setAutoCommit(false);
+            IngestPipeline pipeline = Ingestor.ingestCSV(csvFile.toString(), conn, loadMode);
+            conn.commit();
+            return pipeline;
+        }
+    }
+
+    @Benchmark
+    public long ingestAndDump() throws SQLException, IOException, InterruptedException {
+        ingestCSV();
+        return DumpCSV.dump(url, "postgres", "postgres", dumpFile, DumpCSV.DUMP_MODE_COPY, 1, false, false);
+    }
+
+    /**
+     * The statements of db_reset.sql run in the current database: without the psql meta-commands, nor the ones
+     * recreating the inventory database.
+     */
+    private static String[] schemaStatements() throws IOException {
+        StringBuilder script = new StringBuilder();
+        try (InputStream in = IngestBenchmarks.class.getResourceAsStream("/db_reset.sql");
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (!line.startsWith("\\") && !line.contains(" DATABASE ")) {
+                    script.append(line).append('\n');
+                }
+            }
+        }
+        return script.toString().split(";\\s*\n");
+    }
+}
@@ -0,0 +1,31 @@
+package ca.ulex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The Optimaize detector on the text of a line, without the locale cache in front of it.
+ */
+@State(Scope.Thread)
+public class LanguageDetectionBenchmarks
+{
+    @Param({"Robe rouge Rouge Vêtements > Robes", "Red dress Red Clothing > Dresses", "赤いドレス 赤 衣類 > ドレス"})
+    public String text;
+
+    private LanguageModels.Detector detector;
+
+    @Setup
+    public void setup() {
+        // Loads the models outside of the measurements
+        detector = LanguageModels.newDetector();
+        detector.detect(text);
+    }
+
+    @Benchmark
+    public String detect() {
+        return detector.detect(text);
+    }
+}
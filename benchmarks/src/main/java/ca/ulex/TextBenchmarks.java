@@ -0,0 +1,67 @@
+package ca.ulex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per-line text helpers: the normalization and similarity of brand names, and the empty field check. Run with
+ * {@code -prof gc} to compare the allocations of the two normalizations.
+ */
+@State(Scope.Thread)
+public class TextBenchmarks
+{
+    @Param({"Maison Kitsuné", "A.P.C. Paris - Édition limitée 2024"})
+    public String brand;
+
+    private String misspelled;
+    private String[] line;
+    private String[] lineWithEmptyField;
+    private final FieldNormalizer normalizer = new FieldNormalizer();
+    // Its fingerprints are cached after the first call, as in the post-processing
+    private final BrandSimilarity similarity = new BrandSimilarity();
+
+    @Setup
+    public void setup() {
+        misspelled = brand.toLowerCase().replace('a', 'e') + "s";
+        line = new String[] {"12600001-0", "12600001", "M", "Robe rouge", brand, "Rouge", "adult", "female",
+                "regular", "Vêtements > Robes"};
+        lineWithEmptyField = line.clone();
+        lineWithEmptyField[line.length - 1] = "";
+    }
+
+    @Benchmark
+    public String normalizeText() {
+        return Utils.normalizeText(brand);
+    }
+
+    @Benchmark
+    public String fieldNormalizerText() {
+        return normalizer.normalizeText(brand);
+    }
+
+    @Benchmark
+    public void fieldNormalizerColumns(Blackhole blackhole) {
+        blackhole.consume(normalizer.lowerCase(line[5], FieldNormalizer.COLORS));
+        blackhole.consume(normalizer.normalizeText(line[9], FieldNormalizer.PRODUCT_TYPES));
+    }
+
+    @Benchmark
+    public double computeSimilarity() {
+        return similarity.computeSimilarity(brand, misspelled);
+    }
+
+    @Benchmark
+    public boolean isSubset() {
+        return similarity.isSubset(brand, misspelled);
+    }
+
+    @Benchmark
+    public void hasEmptyField(Blackhole blackhole) {
+        blackhole.consume(Ingestor.hasEmptyField(line));
+        blackhole.consume(Ingestor.hasEmptyField(lineWithEmptyField));
+    }
+}
@@ -5,13 +5,13 @@ CREATE DATABASE inventory;
 
 CREATE TABLE brand (
     id SERIAL PRIMARY KEY,
-    name TEXT NOT NULL
+    name TEXT NOT NULL UNIQUE
 );
 
 CREATE TABLE product (
     id SERIAL PRIMARY KEY,
     id_brand INTEGER NOT NULL REFERENCES brand(id) ON DELETE CASCADE,
-    product_id TEXT NOT NULL
+    product_id TEXT NOT NULL UNIQUE
 );
 
 CREATE TABLE csv_brand (
@@ -24,7 +24,7 @@ CREATE TABLE csv_brand (
 CREATE TABLE variant (
     id SERIAL PRIMARY KEY,
     id_product INTEGER NOT NULL REFERENCES product(id) ON DELETE CASCADE,
-    variant_id TEXT NOT NULL,
+    variant_id TEXT NOT NULL UNIQUE,
     age_group TEXT,
     gender_male BOOLEAN,
     gender_female BOOLEAN,
@@ -45,19 +45,48 @@ CREATE TABLE csv_gender (
     csv_line INTEGER NOT NULL,
     gender TEXT NOT NULL
 );
+CREATE TABLE locale (
+    id SERIAL PRIMARY KEY,
+    name TEXT NOT NULL UNIQUE
+);
+
+CREATE TABLE size_label (
+    id SERIAL PRIMARY KEY,
+    name TEXT NOT NULL UNIQUE
+);
+
+CREATE TABLE color (
+    id SERIAL PRIMARY KEY,
+    name TEXT NOT NULL UNIQUE
+);
 
+CREATE TABLE product_type (
+    id SERIAL PRIMARY KEY,
+    name TEXT NOT NULL UNIQUE
+);
 
 CREATE TABLE localized_meta (
     id SERIAL PRIMARY KEY,
     id_variant INTEGER NOT NULL REFERENCES variant(id) ON DELETE CASCADE,
     csv_line INTEGER NOT NULL,
-    locale TEXT,
-    size_label TEXT,
+    -- Ids of the lookup tables above, which are only appended to: without foreign keys, that would cost a
+    -- trigger per column on each line
+    id_locale INTEGER,
+    id_size_label INTEGER,
     product_name TEXT,
-    color TEXT,
-    product_type TEXT
+    id_color INTEGER,
+    id_product_type INTEGER
 );
 
+-- For the cascading deletes and the joins of the dump, on the parent id then the csv_line. A bulk load
+-- (INGESTOR_BULK_LOAD) drops them before the load and builds them again after it.
+CREATE INDEX product_id_brand_idx ON product (id_brand);
+CREATE INDEX csv_brand_id_product_idx ON csv_brand (id_product, csv_line);
+CREATE INDEX variant_id_product_idx ON variant (id_product);
+CREATE INDEX csv_age_group_id_variant_idx ON csv_age_group (id_variant, csv_line);
+CREATE INDEX csv_gender_id_variant_idx ON csv_gender (id_variant, csv_line);
+CREATE INDEX localized_meta_id_variant_idx ON localized_meta (id_variant, csv_line);
+
 CREATE TABLE warnings (
     id SERIAL PRIMARY KEY,
     csv_line int,
@@ -65,3 +94,26 @@ CREATE TABLE warnings (
     description TEXT
 );
 
+CREATE TABLE ingest_checkpoint (
+    file_path TEXT PRIMARY KEY,
+    file_size BIGINT NOT NULL,
+    file_modified BIGINT NOT NULL,
+    byte_offset BIGINT NOT NULL,
+    csv_line INTEGER NOT NULL,
+    lines_ingested INTEGER NOT NULL,
+    lines_dropped INTEGER NOT NULL,
+    warnings INTEGER NOT NULL,
+    start_ids INTEGER[] NOT NULL,
+    max_ids INTEGER[] NOT NULL,
+    completed BOOLEAN NOT NULL,
+    updated_at TIMESTAMP NOT NULL DEFAULT now()
+);
+
+CREATE TABLE row_hash (
+    id SERIAL PRIMARY KEY,
+    hash BIGINT NOT NULL,
+    id_variant INTEGER,
+    csv_line INTEGER
+);
+
+CREATE INDEX row_hash_id_variant_idx ON row_hash (id_variant);
@@ -0,0 +1,214 @@
+package ca.ulex;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Batched path: the brand, product and variant ids are allocated on the client side with {@link IdAllocator}, so
+ * that none of the inserts needs its generated id back and all of them can be sent as JDBC batches. Together with
+ * pgjdbc's reWriteBatchedInserts, each batch becomes a few multi-row INSERT statements. The few new values of the
+ * {@link LookupTables} are inserted as they come, their ids being those of the database.
+ */
+class BatchSink implements RowSink
+{
+    private static final String INSERT_BRAND = "INSERT INTO brand (id, name) VALUES (?, ?)";
+    private static final String INSERT_PRODUCT = "INSERT INTO product (id, id_brand, product_id) VALUES (?, ?, ?)";
+    private static final String INSERT_CSV_BRAND = "INSERT INTO csv_brand (id_product, csv_line, name) VALUES (?, ?, ?)";
+    private static final String INSERT_VARIANT = "INSERT INTO variant (id, id_product, variant_id, age_group, gender_male, gender_female, gender_unisex, size_type) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_CSV_AGE_GROUP = "INSERT INTO csv_age_group (id_variant, csv_line, age_group) VALUES (?, ?, ?)";
+    private static final String INSERT_CSV_GENDER = "INSERT INTO csv_gender (id_variant, csv_line, gender) VALUES (?, ?, ?)";
+    private static final String INSERT_LOCALIZED_META = "INSERT INTO localized_meta (id_variant, csv_line, id_locale, id_size_label, product_name, id_color, id_product_type) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String ON_CONFLICT_BRAND = " ON CONFLICT (name) DO NOTHING";
+    private static final String ON_CONFLICT_PRODUCT = " ON CONFLICT (product_id) DO NOTHING";
+    private static final String ON_CONFLICT_VARIANT = " ON CONFLICT (variant_id) DO UPDATE SET " +
+            "gender_male = variant.gender_male OR EXCLUDED.gender_male, " +
+            "gender_female = variant.gender_female OR EXCLUDED.gender_female, " +
+            "gender_unisex = variant.gender_unisex OR EXCLUDED.gender_unisex";
+
+    private final int batchSize;
+    private final KeyDictionary productMap;
+    private final KeyDictionary variantMap;
+    private final KeyDictionary brandMap;
+    private final IdAllocator brandIds;
+    private final IdAllocator productIds;
+    private final IdAllocator variantIds;
+    private final GenderAccumulator genders;
+    private final LookupTables lookups;
+    private final WarningsSink warnings;
+
+    // In flush order, so that the foreign keys are always satisfied
+    private final PreparedStatement brandStmt;
+    private final PreparedStatement productStmt;
+    private final PreparedStatement csvBrandStmt;
+    private final PreparedStatement variantStmt;
+    private final PreparedStatement csvAgeGroupStmt;
+    private final PreparedStatement csvGenderStmt;
+    private final PreparedStatement localizedMetaStmt;
+    private final PreparedStatement[] statements;
+    private final Metrics.Stage[] batchStages;
+    private int pendingRows = 0;
+
+    BatchSink(Connection dbConnection, int batchSize, int idBlockSize, KeyDictionary brandMap,
+              KeyDictionary productMap, KeyDictionary variantMap, WarningsSink warnings) throws SQLException {
+        this(dbConnection, batchSize, idBlockSize, brandMap, productMap, variantMap, warnings, false);
+    }
+
+    /**
+     * With upserts, the brand, product and variant inserts do nothing, or only add the genders, on their unique
+     * keys.
+     */
+    BatchSink(Connection dbConnection, int batchSize, int idBlockSize, KeyDictionary brandMap,
+              KeyDictionary productMap, KeyDictionary variantMap, WarningsSink warnings, boolean upsert)
+            throws SQLException {
+        this.batchSize = batchSize;
+        this.warnings = warnings;
+        this.brandMap = brandMap;
+        this.productMap = productMap;
+        this.variantMap = variantMap;
+        this.brandIds = new IdAllocator(dbConnection, "brand", idBlockSize);
+        this.productIds = new IdAllocator(dbConnection, "product", idBlockSize);
+        this.variantIds = new IdAllocator(dbConnection, "variant", idBlockSize);
+        this.genders = new GenderAccumulator(dbConnection, Ingestor.GENDER_ACCUMULATOR_SIZE);
+        this.lookups = new LookupTables(dbConnection);
+
+        brandStmt = dbConnection.prepareStatement(INSERT_BRAND + (upsert ? ON_CONFLICT_BRAND : ""));
+        productStmt = dbConnection.prepareStatement(INSERT_PRODUCT + (upsert ? ON_CONFLICT_PRODUCT : ""));
+        csvBrandStmt = dbConnection.prepareStatement(INSERT_CSV_BRAND);
+        variantStmt = dbConnection.prepareStatement(INSERT_VARIANT + (upsert ? ON_CONFLICT_VARIANT : ""));
+        csvAgeGroupStmt = dbConnection.prepareStatement(INSERT_CSV_AGE_GROUP);
+        csvGenderStmt = dbConnection.prepareStatement(INSERT_CSV_GENDER);
+        localizedMetaStmt = dbConnection.prepareStatement(INSERT_LOCALIZED_META);
+        statements = new PreparedStatement[] {brandStmt, productStmt, csvBrandStmt, variantStmt,
+                csvAgeGroupStmt, csvGenderStmt, localizedMetaStmt};
+        batchStages = new Metrics.Stage[] {Metrics.stage("batch.brand"), Metrics.stage("batch.product"),
+                Metrics.stage("batch.csv_brand"), Metrics.stage("batch.variant"), Metrics.stage("batch.csv_age_group"),
+                Metrics.stage("batch.csv_gender"), Metrics.stage("batch.localized_meta")};
+    }
+
+    @Override
+    public void addRow(CsvRow row) throws SQLException {
+        int idProduct = addProductAndBrand(row);
+        int idVariant = addVariant(row, idProduct);
+
+        localizedMetaStmt.setInt(1, idVariant);
+        localizedMetaStmt.setInt(2, row.csvLine);
+        lookups.setId(localizedMetaStmt, 3, LookupTables.LOCALE, row.locale);
+        lookups.setId(localizedMetaStmt, 4, LookupTables.SIZE_LABEL, row.sizeLabel);
+        localizedMetaStmt.setString(5, row.productName);
+        lookups.setId(localizedMetaStmt, 6, LookupTables.COLOR, row.color);
+        lookups.setId(localizedMetaStmt, 7, LookupTables.PRODUCT_TYPE, row.productType);
+        localizedMetaStmt.addBatch();
+
+        rowAdded();
+    }
+
+    @Override
+    public void dropRow(int csvLine, int emptyField) throws SQLException {
+        warnings.add(csvLine, "WARNING_EMPTY_FIELD", Ingestor.WARNING_EMPTY_FIELD + emptyField);
+    }
+
+    @Override
+    public void finish() throws SQLException {
+        flush();
+        for (PreparedStatement stmt : statements) {
+            stmt.close();
+        }
+        lookups.close();
+        genders.close();
+    }
+
+    private int addProductAndBrand(CsvRow row) throws SQLException {
+        int idProduct = productMap.get(row.productId);
+        if (idProduct == KeyDictionary.NOT_FOUND) {
+            idProduct = productIds.nextId();
+            productMap.put(row.productId, idProduct);
+
+            productStmt.setInt(1, idProduct);
+            productStmt.setInt(2, addBrand(row.brand));
+            productStmt.setString(3, row.productId);
+            productStmt.addBatch();
+        }
+
+        csvBrandStmt.setInt(1, idProduct);
+        csvBrandStmt.setInt(2, row.csvLine);
+        csvBrandStmt.setString(3, row.brand);
+        csvBrandStmt.addBatch();
+        return idProduct;
+    }
+
+    private int addBrand(String brand) throws SQLException {
+        int idBrand = brandMap.get(brand);
+        if (idBrand == KeyDictionary.NOT_FOUND) {
+            idBrand = brandIds.nextId();
+            brandMap.put(brand, idBrand);
+
+            brandStmt.setInt(1, idBrand);
+            brandStmt.setString(2, brand);
+            brandStmt.addBatch();
+        }
+        return idBrand;
+    }
+
+    private int addVariant(CsvRow row, int idProduct) throws SQLException {
+        int idVariant = variantMap.get(row.variantId);
+        if (idVariant == KeyDictionary.NOT_FOUND) {
+            idVariant = variantIds.nextId();
+            variantMap.put(row.variantId, idVariant);
+
+            variantStmt.setInt(1, idVariant);
+            variantStmt.setInt(2, idProduct);
+            variantStmt.setString(3, row.variantId);
+            variantStmt.setString(4, row.ageGroup);
+            variantStmt.setBoolean(5, "male".equalsIgnoreCase(row.gender));
+            variantStmt.setBoolean(6, "female".equalsIgnoreCase(row.gender));
+            variantStmt.setBoolean(7, "unisex".equalsIgnoreCase(row.gender));
+            variantStmt.setString(8, row.sizeType);
+            variantStmt.addBatch();
+            genders.inserted(idVariant, row.genderFlag);
+        } else {
+            if (row.genderFlag == 0) {
+                Ingestor.recordInvalidGenderWarning(row.gender, idVariant);
+            }
+            genders.add(idVariant, row.genderFlag);
+        }
+
+        csvAgeGroupStmt.setInt(1, idVariant);
+        csvAgeGroupStmt.setInt(2, row.csvLine);
+        csvAgeGroupStmt.setString(3, row.ageGroup);
+        csvAgeGroupStmt.addBatch();
+
+        csvGenderStmt.setInt(1, idVariant);
+        csvGenderStmt.setInt(2, row.csvLine);
+        csvGenderStmt.setString(3, row.gender);
+        csvGenderStmt.addBatch();
+        return idVariant;
+    }
+
+    private void rowAdded() throws SQLException {
+        if (++pendingRows >= batchSize) {
+            executeBatches();
+        }
+        if (genders.isFull()) {
+            flush();
+            genders.clear();
+        }
+    }
+
+    /**
+     * Sends the rows batched so far. The gender flags of the variants already inserted wait for {@link #flush}, so
+     * that a variant spread over many batches is updated once.
+     */
+    void executeBatches() throws SQLException {
+        for (int i = 0; i < statements.length; i++) {
+            batchStages[i].executeBatch(statements[i]);
+        }
+        pendingRows = 0;
+    }
+
+    @Override
+    public void flush() throws SQLException {
+        executeBatches();
+        genders.flush();
+    }
+}
@@ -0,0 +1,312 @@
+package ca.ulex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Brand name similarity on fingerprints built once per distinct name, with the scores of commons-text's
+ * JaroWinklerSimilarity and JaccardSimilarity on the cleaned names. Instances are thread-safe, but never evict their
+ * fingerprints.
+ */
+class BrandSimilarity
+{
+    // [a-z0-9] plus the start and end of name markers used for the bigrams
+    private static final int ALPHABET_SIZE = 38;
+    private static final int START = 36;
+    private static final int END = 37;
+
+    // MinHash signature for the candidate index: BANDS bands of ROWS rows each
+    private static final int BANDS = 16;
+    private static final int ROWS = 2;
+    private static final int MAX_BUCKET_SIZE = 1000;
+
+    private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    double computeSimilarity(String s1, String s2) {
+        Fingerprint f1 = fingerprint(s1);
+        Fingerprint f2 = fingerprint(s2);
+
+        if (isSubset(f1, f2) || isSubset(f2, f1)) {
+            return 1;
+        }
+        double similarity1 = jaroWinkler(f1.cleaned, f2.cleaned);
+        double similarity2 = jaccard(f2, f1);
+
+        return Math.max(similarity1, similarity2);
+    }
+
+    boolean isSubset(String s1, String s2) {
+        return isSubset(fingerprint(s1), fingerprint(s2));
+    }
+
+    Fingerprint fingerprint(String name) {
+        Fingerprint fingerprint = fingerprints.get(name);
+        if (fingerprint == null) {
+            fingerprint = new Fingerprint(name);
+            fingerprints.putIfAbsent(name, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Groups the near-duplicate names of the whole catalog. Candidate pairs are the names sharing a MinHash band of
+     * their bigram sets, so the work grows roughly linearly with the number of names instead of checking all the
+     * pairs; the candidates are then confirmed with {@link #computeSimilarity}. Only the groups of 2 names or more
+     * are returned. The buckets of a band holding more than MAX_BUCKET_SIZE names are too costly to check pair by pair
+     * and are skipped, their names only meeting in the other bands; their number is printed.
+     */
+    List<List<String>> cluster(Collection<String> names, double threshold) {
+        List<Fingerprint> candidates = new ArrayList<>(names.size());
+        for (String name : names) {
+            Fingerprint fingerprint = fingerprint(name);
+            if (fingerprint.bigrams.length > 0) {
+                candidates.add(fingerprint);
+            }
+        }
+
+        int[] parent = new int[candidates.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+
+        int skippedBuckets = 0;
+        long skippedNames = 0;
+        for (int band = 0; band < BANDS; band++) {
+            Map<Long, List<Integer>> buckets = new HashMap<>();
+            for (int i = 0; i < candidates.size(); i++) {
+                buckets.computeIfAbsent(candidates.get(i).bandKey(band), k -> new ArrayList<>(2)).add(i);
+            }
+            for (List<Integer> bucket : buckets.values()) {
+                if (bucket.size() > MAX_BUCKET_SIZE) {
+                    skippedBuckets++;
+                    skippedNames += bucket.size();
+                    continue;
+                }
+                if (bucket.size() < 2) {
+                    continue;
+                }
+                for (int i = 0; i < bucket.size(); i++) {
+                    for (int j = i + 1; j < bucket.size(); j++) {
+                        int a = find(parent, bucket.get(i));
+                        int b = find(parent, bucket.get(j));
+                        if (a != b && computeSimilarity(candidates.get(bucket.get(i)).name,
+                                candidates.get(bucket.get(j)).name) >= threshold) {
+                            parent[a] = b;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (skippedBuckets > 0) {
+            System.out.println("Brand clustering: " + skippedBuckets + " candidate groups of more than "
+                    + MAX_BUCKET_SIZE + " names skipped (" + Utils.DECIMAL_FORMAT.format(skippedNames) + " names)");
+        }
+
+        Map<Integer, List<String>> clusters = new HashMap<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            clusters.computeIfAbsent(find(parent, i), k -> new ArrayList<>()).add(candidates.get(i).name);
+        }
+        List<List<String>> result = new ArrayList<>();
+        for (List<String> cluster : clusters.values()) {
+            if (cluster.size() > 1) {
+                result.add(cluster);
+            }
+        }
+        return result;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static boolean isSubset(Fingerprint f1, Fingerprint f2) {
+        return (f1.characters & ~f2.characters) == 0;
+    }
+
+    private static double jaccard(Fingerprint left, Fingerprint right) {
+        if (left.cleaned.length == 0 || right.cleaned.length == 0) {
+            return 0d;
+        }
+        int union = Long.bitCount(left.characters | right.characters);
+        int intersection = Long.bitCount(left.characters & right.characters);
+        return 1.0d * intersection / union;
+    }
+
+    /**
+     * Port of commons-text's JaroWinklerSimilarity working on reusable buffers.
+     */
+    double jaroWinkler(char[] first, char[] second) {
+        if (Arrays.equals(first, second)) {
+            return 1d;
+        }
+
+        char[] max;
+        char[] min;
+        if (first.length > second.length) {
+            max = first;
+            min = second;
+        } else {
+            max = second;
+            min = first;
+        }
+
+        Scratch buffers = scratch.get();
+        int[] matchIndexes = buffers.matchIndexes(min.length);
+        boolean[] matchFlags = buffers.matchFlags(max.length);
+        int range = Math.max(max.length / 2 - 1, 0);
+        int matches = 0;
+        for (int mi = 0; mi < min.length; mi++) {
+            char c1 = min[mi];
+            for (int xi = Math.max(mi - range, 0), xn = Math.min(mi + range + 1, max.length); xi < xn; xi++) {
+                if (!matchFlags[xi] && c1 == max[xi]) {
+                    matchIndexes[mi] = xi;
+                    matchFlags[xi] = true;
+                    matches++;
+                    break;
+                }
+            }
+        }
+        if (matches == 0) {
+            return 0d;
+        }
+
+        // Matched characters of both names, compared in their order of appearance
+        int halfTranspositions = 0;
+        for (int mi = 0, xi = 0; mi < min.length; mi++) {
+            if (matchIndexes[mi] != -1) {
+                while (!matchFlags[xi]) {
+                    xi++;
+                }
+                if (min[mi] != max[xi]) {
+                    halfTranspositions++;
+                }
+                xi++;
+            }
+        }
+
+        int prefix = 0;
+        for (int mi = 0; mi < Math.min(4, min.length); mi++) {
+            if (first[mi] == second[mi]) {
+                prefix++;
+            } else {
+                break;
+            }
+        }
+
+        double m = matches;
+        double j = ((m / first.length + m / second.length + (m - (double) halfTranspositions / 2) / m)) / 3;
+        return j < 0.7d ? j : j + 0.1 * prefix * (1d - j);
+    }
+
+    static final class Fingerprint
+    {
+        final String name;
+        final char[] cleaned;
+        final long characters;
+        final int[] bigrams;
+        private final int[] minHashes;
+
+        private Fingerprint(String name) {
+            this.name = name;
+            String lowerCase = name.toLowerCase();
+            char[] buffer = new char[lowerCase.length()];
+            int length = 0;
+            long mask = 0;
+            for (int i = 0; i < lowerCase.length(); i++) {
+                int code = code(lowerCase.charAt(i));
+                if (code >= 0) {
+                    buffer[length++] = lowerCase.charAt(i);
+                    mask |= 1L << code;
+                }
+            }
+            this.cleaned = Arrays.copyOf(buffer, length);
+            this.characters = mask;
+            this.bigrams = bigrams(cleaned);
+            this.minHashes = minHashes(bigrams);
+        }
+
+        long bandKey(int band) {
+            long key = band;
+            for (int row = 0; row < ROWS; row++) {
+                key = key * 0x9E3779B97F4A7C15L + minHashes[band * ROWS + row];
+            }
+            return key;
+        }
+
+        private static int code(char c) {
+            if (c >= 'a' && c <= 'z') {
+                return c - 'a';
+            } else if (c >= '0' && c <= '9') {
+                return 26 + c - '0';
+            }
+            return -1;
+        }
+
+        private static int[] bigrams(char[] cleaned) {
+            if (cleaned.length == 0) {
+                return new int[0];
+            }
+            int[] bigrams = new int[cleaned.length + 1];
+            int previous = START;
+            for (int i = 0; i < cleaned.length; i++) {
+                int current = code(cleaned[i]);
+                bigrams[i] = previous * ALPHABET_SIZE + current;
+                previous = current;
+            }
+            bigrams[cleaned.length] = previous * ALPHABET_SIZE + END;
+            return Arrays.stream(bigrams).sorted().distinct().toArray();
+        }
+
+        private static int[] minHashes(int[] bigrams) {
+            int[] minHashes = new int[BANDS * ROWS];
+            Arrays.fill(minHashes, Integer.MAX_VALUE);
+            for (int bigram : bigrams) {
+                for (int i = 0; i < minHashes.length; i++) {
+                    minHashes[i] = Math.min(minHashes[i], hash(bigram, i));
+                }
+            }
+            return minHashes;
+        }
+
+        private static int hash(int value, int seed) {
+            int h = value * 0x9E3779B1 + seed * 0x85EBCA6B;
+            h ^= h >>> 16;
+            h *= 0x7FEB352D;
+            h ^= h >>> 15;
+            return h & Integer.MAX_VALUE;
+        }
+    }
+
+    private static final class Scratch
+    {
+        private int[] matchIndexes = new int[64];
+        private boolean[] matchFlags = new boolean[64];
+
+        int[] matchIndexes(int length) {
+            if (matchIndexes.length < length) {
+                matchIndexes = new int[length];
+            }
+            Arrays.fill(matchIndexes, 0, length, -1);
+            return matchIndexes;
+        }
+
+        boolean[] matchFlags(int length) {
+            if (matchFlags.length < length) {
+                matchFlags = new boolean[length];
+            }
+            Arrays.fill(matchFlags, 0, length, false);
+            return matchFlags;
+        }
+    }
+}
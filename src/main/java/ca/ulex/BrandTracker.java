@@ -0,0 +1,125 @@
+package ca.ulex;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts of each brand name of each product and the csv_line of its last appearance, taken while the rows are
+ * ingested so that the brand post-processing does not read them back. Spilled to sorted runs over the
+ * {@link MemoryBudget}.
+ */
+class BrandTracker implements MemoryBudget.Holder
+{
+    private static final long BRAND_COUNT_BYTES = MemoryBudget.ENTRY_BYTES + 24;
+    private static final long PRODUCT_BYTES = MemoryBudget.ENTRY_BYTES + 56;
+
+    private final MemoryBudget budget;
+    private final SortedRuns<Map<String, BrandCount>> runs;
+    private final Map<String, Map<String, BrandCount>> productBrands = new HashMap<>();
+    private long heapBytes = 0;
+
+    BrandTracker() {
+        this(MemoryBudget.unbounded());
+    }
+
+    BrandTracker(MemoryBudget budget) {
+        this.budget = budget;
+        this.runs = new SortedRuns<>("brands", budget, new BrandCountsCodec());
+        budget.register(this);
+    }
+
+    void add(String productId, String brand, int csvLine) {
+        long added = 0;
+        Map<String, BrandCount> brandCounts = productBrands.get(productId);
+        if (brandCounts == null) {
+            brandCounts = new LinkedHashMap<>();
+            productBrands.put(productId, brandCounts);
+            added += PRODUCT_BYTES + MemoryBudget.stringBytes(productId);
+        }
+        BrandCount count = brandCounts.get(brand);
+        if (count == null) {
+            count = new BrandCount();
+            brandCounts.put(brand, count);
+            added += BRAND_COUNT_BYTES + MemoryBudget.stringBytes(brand);
+        }
+        count.frequency++;
+        count.csvLine = Math.max(count.csvLine, csvLine);
+        if (added > 0) {
+            heapBytes += added;
+            budget.grow(added);
+        }
+    }
+
+    /**
+     * Gives the brand counts of each product, in product_id order.
+     */
+    void forEachProduct(SortedRuns.Consumer<Map<String, BrandCount>, SQLException> consumer)
+            throws IOException, SQLException {
+        runs.forEach(new ArrayList<>(productBrands.entrySet()), consumer);
+    }
+
+    @Override
+    public long heapBytes() {
+        return heapBytes;
+    }
+
+    @Override
+    public void spill() throws IOException {
+        runs.spill(new ArrayList<>(productBrands.entrySet()));
+        productBrands.clear();
+        heapBytes = 0;
+    }
+
+    static final class BrandCount
+    {
+        int frequency;
+        // Last line of the brand in the product, which its warnings refer to
+        int csvLine;
+    }
+
+    /**
+     * The brands of a product and their counts, a later run adding its counts, moving their last lines and
+     * appending its new brands.
+     */
+    private static final class BrandCountsCodec implements SortedRuns.Codec<Map<String, BrandCount>>
+    {
+        @Override
+        public void write(DataOutputStream out, Map<String, BrandCount> brandCounts) throws IOException {
+            out.writeInt(brandCounts.size());
+            for (Map.Entry<String, BrandCount> entry : brandCounts.entrySet()) {
+                SortedRuns.writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().frequency);
+                out.writeInt(entry.getValue().csvLine);
+            }
+        }
+
+        @Override
+        public Map<String, BrandCount> read(DataInputStream in) throws IOException {
+            int size = in.readInt();
+            Map<String, BrandCount> brandCounts = new LinkedHashMap<>();
+            for (int i = 0; i < size; i++) {
+                BrandCount count = new BrandCount();
+                brandCounts.put(SortedRuns.readString(in), count);
+                count.frequency = in.readInt();
+                count.csvLine = in.readInt();
+            }
+            return brandCounts;
+        }
+
+        @Override
+        public Map<String, BrandCount> combine(Map<String, BrandCount> earlier, Map<String, BrandCount> later) {
+            for (Map.Entry<String, BrandCount> entry : later.entrySet()) {
+                BrandCount count = earlier.computeIfAbsent(entry.getKey(), k -> new BrandCount());
+                count.frequency += entry.getValue().frequency;
+                count.csvLine = Math.max(count.csvLine, entry.getValue().csvLine);
+            }
+            return earlier;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package ca.ulex;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Lifecycle of a bulk load into an empty database: the foreign keys and secondary indexes are dropped and the tables
+ * made UNLOGGED before the load, then restored in parallel once it is committed. A server crash during the load
+ * empties the unlogged tables, and the load starts over.
+ */
+class BulkLoad
+{
+    private static final String[] TABLES = {"brand", "product", "csv_brand", "variant", "csv_age_group", "csv_gender",
+            "locale", "size_label", "color", "product_type", "localized_meta", "warnings", "row_hash",
+            "ingest_checkpoint"};
+
+    // Table, constraint name and definition, as created by db_reset.sql
+    private static final String[][] FOREIGN_KEYS = {
+            {"product", "product_id_brand_fkey", "FOREIGN KEY (id_brand) REFERENCES brand(id) ON DELETE CASCADE"},
+            {"csv_brand", "csv_brand_id_product_fkey", "FOREIGN KEY (id_product) REFERENCES product(id) ON DELETE CASCADE"},
+            {"variant", "variant_id_product_fkey", "FOREIGN KEY (id_product) REFERENCES product(id) ON DELETE CASCADE"},
+            {"csv_age_group", "csv_age_group_id_variant_fkey", "FOREIGN KEY (id_variant) REFERENCES variant(id) ON DELETE CASCADE"},
+            {"csv_gender", "csv_gender_id_variant_fkey", "FOREIGN KEY (id_variant) REFERENCES variant(id) ON DELETE CASCADE"},
+            {"localized_meta", "localized_meta_id_variant_fkey", "FOREIGN KEY (id_variant) REFERENCES variant(id) ON DELETE CASCADE"}};
+
+    // Name and definition, as created by db_reset.sql, dropped by prepare() and built again by finish()
+    private static final String[][] INDEXES = {
+            {"product_id_brand_idx", "product (id_brand)"},
+            {"csv_brand_id_product_idx", "csv_brand (id_product, csv_line)"},
+            {"variant_id_product_idx", "variant (id_product)"},
+            {"csv_age_group_id_variant_idx", "csv_age_group (id_variant, csv_line)"},
+            {"csv_gender_id_variant_idx", "csv_gender (id_variant, csv_line)"},
+            {"localized_meta_id_variant_idx", "localized_meta (id_variant, csv_line)"},
+            {"row_hash_id_variant_idx", "row_hash (id_variant)"}};
+
+    private static final String SELECT_CONSTRAINT = "SELECT 1 FROM pg_constraint WHERE conname = ?";
+
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final int threads;
+    private long prepareMillis = 0;
+    private long setLoggedMillis = 0;
+    private long indexesMillis = 0;
+    private long foreignKeysMillis = 0;
+    private long analyzeMillis = 0;
+
+    BulkLoad(String dbUrl, String dbUser, String dbPassword, int threads) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Drops the foreign keys and indexes and makes the tables unlogged, committing unless in auto-commit mode. Can
+     * be called again when a load is retried.
+     */
+    void prepare(Connection dbConnection) throws SQLException {
+        long startTime = System.currentTimeMillis();
+        try (Statement stmt = dbConnection.createStatement()) {
+            for (String[] foreignKey : FOREIGN_KEYS) {
+                stmt.execute("ALTER TABLE " + foreignKey[0] + " DROP CONSTRAINT IF EXISTS " + foreignKey[1]);
+            }
+            for (String[] index : INDEXES) {
+                stmt.execute("DROP INDEX IF EXISTS " + index[0]);
+            }
+            for (String table : TABLES) {
+                stmt.execute("ALTER TABLE IF EXISTS " + table + " SET UNLOGGED");
+            }
+        }
+        if (!dbConnection.getAutoCommit()) {
+            dbConnection.commit();
+        }
+        prepareMillis += System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Makes the tables logged again and rebuilds the indexes, foreign keys and statistics, once the load is
+     * committed.
+     */
+    void finish() throws SQLException {
+        System.out.println("\nRebuilding the tables, indexes and constraints (" + threads + " connections)...");
+        long startTime = System.currentTimeMillis();
+        List<String> statements = new ArrayList<>();
+        for (String table : TABLES) {
+            statements.add("ALTER TABLE IF EXISTS " + table + " SET LOGGED");
+        }
+        executeInParallel(statements);
+        setLoggedMillis = System.currentTimeMillis() - startTime;
+
+        startTime = System.currentTimeMillis();
+        statements.clear();
+        for (String[] index : INDEXES) {
+            statements.add("CREATE INDEX IF NOT EXISTS " + index[0] + " ON " + index[1]);
+        }
+        executeInParallel(statements);
+        indexesMillis = System.currentTimeMillis() - startTime;
+
+        // Added unchecked one at a time, as adding a foreign key locks out the other ones on the same parent
+        // table, then checked at once
+        startTime = System.currentTimeMillis();
+        statements.clear();
+        try (Connection dbConnection = Utils.getConnection(dbUrl, dbUser, dbPassword);
+             Statement stmt = dbConnection.createStatement()) {
+            for (String[] foreignKey : FOREIGN_KEYS) {
+                if (!constraintExists(dbConnection, foreignKey[1])) {
+                    stmt.execute("ALTER TABLE " + foreignKey[0] + " ADD CONSTRAINT " + foreignKey[1] + " "
+                            + foreignKey[2] + " NOT VALID");
+                }
+                statements.add("ALTER TABLE " + foreignKey[0] + " VALIDATE CONSTRAINT " + foreignKey[1]);
+            }
+        }
+        executeInParallel(statements);
+        foreignKeysMillis = System.currentTimeMillis() - startTime;
+
+        startTime = System.currentTimeMillis();
+        statements.clear();
+        for (String table : TABLES) {
+            statements.add("ANALYZE " + table);
+        }
+        executeInParallel(statements);
+        analyzeMillis = System.currentTimeMillis() - startTime;
+    }
+
+    void printTimes() {
+        System.out.println("\nBulk load:");
+        System.out.println("    Prepare        : " + Utils.formatTime(prepareMillis));
+        System.out.println("    Set logged     : " + Utils.formatTime(setLoggedMillis));
+        System.out.println("    Indexes        : " + Utils.formatTime(indexesMillis));
+        System.out.println("    Foreign keys   : " + Utils.formatTime(foreignKeysMillis));
+        System.out.println("    Analyze        : " + Utils.formatTime(analyzeMillis));
+    }
+
+    private static boolean constraintExists(Connection dbConnection, String name) throws SQLException {
+        try (PreparedStatement stmt = dbConnection.prepareStatement(SELECT_CONSTRAINT)) {
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Runs the statements in auto-commit mode, each connection taking the next statement once done with its own.
+     */
+    private void executeInParallel(List<String> statements) throws SQLException {
+        Queue<String> queue = new ConcurrentLinkedQueue<>(statements);
+        SQLException[] failures = new SQLException[Math.min(threads, statements.size())];
+        Thread[] workers = new Thread[failures.length];
+        for (int i = 0; i < workers.length; i++) {
+            int index = i;
+            workers[i] = new Thread(() -> {
+                try (Connection dbConnection = Utils.getConnection(dbUrl, dbUser, dbPassword);
+                     Statement stmt = dbConnection.createStatement()) {
+                    for (String sql = queue.poll(); sql != null; sql = queue.poll()) {
+                        stmt.execute(sql);
+                    }
+                } catch (SQLException e) {
+                    failures[index] = e;
+                }
+            }, "bulk-load-" + i);
+            workers[i].start();
+        }
+
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while rebuilding the tables", e);
+            }
+        }
+        for (SQLException failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package ca.ulex;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The start of an ingestion, without a database: run by the build with {@code -XX:ArchiveClassesAtExit}, so that
+ * the classes it loads go to the class data sharing archive the ingestor is then started with. It reads a small feed
+ * in the locales with both CSV readers, through the pipeline, the normalizer, the language detection and the run
+ * report, and tries the JDBC driver on a port nothing listens on.
+ */
+final class CdsTraining
+{
+    private static final String[] LINES = {
+            "variant_id,product_id,size_label,product_name,brand,color,age_group,gender,size_type,product_type",
+            "1-0,1,M,Red dress,Levi's,Red,adult,female,regular,Clothing > Dresses",
+            "1-0,1,M,Robe rouge,Levi's,Rouge,adult,female,regular,V\u00eatements > Robes",
+            "1-0,1,M,Rotes Kleid,Levis,Rot,adult,female,regular,Kleidung > Kleider",
+            "1-0,1,M,Vestido rojo,Levi's,Rojo,adult,female,regular,Ropa > Vestidos",
+            "1-0,1,M,Vestito rosso,Levi's,Rosso,adult,female,regular,Abbigliamento > Vestiti",
+            "1-0,1,M,Vestido vermelho,Levi's,Vermelho,adult,female,regular,Roupas > Vestidos",
+            "1-0,1,M,\u8d64\u3044\u30c9\u30ec\u30b9,Levi's,\u8d64,adult,female,regular,\u8863\u985e > \u30c9\u30ec\u30b9",
+            "1-0,1,M,\u7ea2\u8272\u8fde\u8863\u88d9,Levi's,"
+                    + "\u7ea2\u8272,adult,female,regular,\u670d\u88c5 > \u8fde\u8863\u88d9",
+            "1-0,1,M,\ube68\uac04 \ub4dc\ub808\uc2a4,Levi's,"
+                    + "\ube68\uac04,adult,female,regular,\uc758\ub958 > \ub4dc\ub808\uc2a4",
+            "2-0,2,40 CM,\"Leather \"\"Classic\"\" boots\",Nike,\"Brown, dark\",kids,MALE,plus,Shoes > Boots",
+            "2-1,2,,\u041a\u043e\u0436\u0430\u043d\u044b\u0435 \u0441\u0430\u043f\u043e\u0433\u0438,Nike,"
+                    + "\u041a\u043e\u0440\u0438\u0447\u043d\u0435\u0432\u044b\u0439,kids,male,plus,"
+                    + "\u041e\u0431\u0443\u0432\u044c > \u0421\u0430\u043f\u043e\u0433\u0438"};
+
+    private CdsTraining() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LanguageModels.preload();
+        Path feed = Files.createTempFile("cds-training", ".csv");
+        try {
+            List<String> lines = new ArrayList<>(Arrays.asList(LINES));
+            for (int i = 0; i < 2000; i++) {
+                lines.add(LINES[1 + i % (LINES.length - 1)].replace("1-0,1,", "1" + i + "-0,1" + i + ","));
+            }
+            Files.write(feed, lines, StandardCharsets.UTF_8);
+
+            ingest(new MappedCsvReader(feed), 2);
+            ingest(new OpenCsvSource(feed.toString()), 1);
+        } finally {
+            Files.delete(feed);
+        }
+
+        try {
+            DriverManager.getConnection("jdbc:postgresql://127.0.0.1:1/ingestor?connectTimeout=1", "ingestor", "");
+        } catch (SQLException expected) {
+            // Nothing listens there, the driver is loaded all the same
+        }
+        System.out.println("Class data sharing training run done");
+    }
+
+    private static void ingest(CsvSource csvSource, int workers) throws Exception {
+        BrandTracker brandTracker = new BrandTracker();
+        ConsistencyChecker consistency = new ConsistencyChecker(ConsistencyRule.forNames(Ingestor.CONSISTENCY_RULES));
+        RunReport report = RunReport.start();
+        try (CsvSource source = csvSource) {
+            IngestPipeline pipeline = new IngestPipeline(source, new DiscardingSink(), brandTracker, consistency,
+                    (p, byteOffset) -> { }, workers, 16 * 1024);
+            pipeline.run();
+            report.finish(pipeline, Ingestor.LOAD_MODE_BATCH);
+        }
+    }
+
+    private static final class DiscardingSink implements RowSink
+    {
+        @Override
+        public void addRow(CsvRow row) {
+        }
+
+        @Override
+        public void dropRow(int csvLine, int emptyField) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+}
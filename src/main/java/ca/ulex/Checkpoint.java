@@ -0,0 +1,357 @@
+package ca.ulex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Progress of the ingestion of one CSV file, saved in the ingest_checkpoint table: the position to resume reading
+ * from, and the ids the rows of the file start from. A resumed file first deletes the rows written after its last
+ * checkpoint, which assumes no other load writes to the tables meanwhile ({@link Ingestor#LOADS}). Files that are not
+ * resumable, as in delta mode, are started over instead, and the checkpoints of a stream only commit.
+ */
+class Checkpoint
+{
+    // Children first, so that rows can be deleted in this order
+    private static final String[] TABLES = {"row_hash", "warnings", "localized_meta", "csv_gender", "csv_age_group",
+            "csv_brand", "variant", "product", "brand"};
+
+    private static final String SELECT_CHECKPOINT =
+            "SELECT file_size, file_modified, byte_offset, csv_line, lines_ingested, lines_dropped, warnings, " +
+                    "start_ids, max_ids, completed FROM ingest_checkpoint WHERE file_path = ?";
+
+    private static final String SELECT_OTHER_START_IDS = "SELECT start_ids FROM ingest_checkpoint WHERE file_path <> ?";
+
+    private static final String UPSERT_CHECKPOINT =
+            "INSERT INTO ingest_checkpoint (file_path, file_size, file_modified, byte_offset, csv_line, " +
+                    "lines_ingested, lines_dropped, warnings, start_ids, max_ids, completed) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+                    "ON CONFLICT (file_path) DO UPDATE SET file_size = EXCLUDED.file_size, " +
+                    "file_modified = EXCLUDED.file_modified, byte_offset = EXCLUDED.byte_offset, " +
+                    "csv_line = EXCLUDED.csv_line, lines_ingested = EXCLUDED.lines_ingested, " +
+                    "lines_dropped = EXCLUDED.lines_dropped, warnings = EXCLUDED.warnings, " +
+                    "start_ids = EXCLUDED.start_ids, max_ids = EXCLUDED.max_ids, " +
+                    "completed = EXCLUDED.completed, updated_at = now()";
+
+    private final String filePath;
+    private final long fileSize;
+    private final long fileModified;
+    private final int[] startIds;
+    private int[] maxIds;
+    private final boolean resumed;
+    private final boolean resumable;
+    private boolean periodic = true;
+    private long savedAt = System.currentTimeMillis();
+
+    long byteOffset = 0;
+    int csvLine = 0;
+    int linesIngested = 0;
+    int linesDropped = 0;
+    int warnings = 0;
+
+    private Checkpoint(String filePath, long fileSize, long fileModified, int[] startIds, boolean resumed,
+                       boolean resumable) {
+        this.filePath = filePath;
+        this.fileSize = fileSize;
+        this.fileModified = fileModified;
+        this.startIds = startIds;
+        this.maxIds = startIds.clone();
+        this.resumed = resumed;
+        this.resumable = resumable;
+    }
+
+    /**
+     * Checkpoint of a stream, never recorded nor resumed, with nothing to load back from the database. Without
+     * periodic commits, the whole stream is ingested in a single transaction, unless in auto-commit mode.
+     */
+    static Checkpoint forStream(Connection dbConnection, boolean periodicCommits) throws SQLException {
+        Checkpoint checkpoint = new Checkpoint(null, 0, 0, selectMaxIds(dbConnection), false, false);
+        checkpoint.periodic = periodicCommits;
+        return checkpoint;
+    }
+
+    /**
+     * Resumes the unfinished ingestion of this file, after deleting the rows written since its last checkpoint, or
+     * starts a new one from the current content of the tables. An unfinished ingestion of a file that is not
+     * resumable has all its rows deleted, and starts over.
+     */
+    static Checkpoint begin(Connection dbConnection, Path csvFile, boolean resumable)
+            throws SQLException, IOException {
+        String filePath = csvFile.toAbsolutePath().toString();
+        long fileSize = Files.size(csvFile);
+        long fileModified = Files.getLastModifiedTime(csvFile).toMillis();
+
+        Checkpoint checkpoint = null;
+        try (PreparedStatement stmt = dbConnection.prepareStatement(SELECT_CHECKPOINT)) {
+            stmt.setString(1, filePath);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next() && !rs.getBoolean("completed")
+                        && rs.getLong("file_size") == fileSize && rs.getLong("file_modified") == fileModified) {
+                    checkpoint = new Checkpoint(filePath, fileSize, fileModified, toInts(rs.getArray("start_ids")),
+                            resumable, resumable);
+                    checkpoint.maxIds = toInts(rs.getArray("max_ids"));
+                    if (resumable) {
+                        checkpoint.byteOffset = rs.getLong("byte_offset");
+                        checkpoint.csvLine = rs.getInt("csv_line");
+                        checkpoint.linesIngested = rs.getInt("lines_ingested");
+                        checkpoint.linesDropped = rs.getInt("lines_dropped");
+                        checkpoint.warnings = rs.getInt("warnings");
+                    } else {
+                        System.out.println("\nStarting " + filePath + " over, its ingestion was not completed");
+                    }
+                }
+            }
+        }
+
+        if (checkpoint == null) {
+            checkpoint = new Checkpoint(filePath, fileSize, fileModified, selectMaxIds(dbConnection), false,
+                    resumable);
+            checkpoint.save(dbConnection, false);
+        } else {
+            if (resumable) {
+                checkpoint.deleteRows(dbConnection, checkpoint.maxIds);
+            } else {
+                checkpoint.deleteRows(dbConnection, checkpoint.startIds);
+                // Any progress recorded by a load in another mode is gone with the rows
+                checkpoint.maxIds = checkpoint.startIds.clone();
+                checkpoint.save(dbConnection, false);
+            }
+        }
+        commit(dbConnection);
+        return checkpoint;
+    }
+
+    boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * The highest id of the table before the file or stream was started, the rows it wrote being above it.
+     */
+    int startId(String table) {
+        return startIds[tableIndex(table)];
+    }
+
+    boolean isDue(int csvLine, int lines, int seconds) {
+        if (!periodic) {
+            return false;
+        }
+        return csvLine - this.csvLine >= lines || System.currentTimeMillis() - savedAt >= seconds * 1000L;
+    }
+
+    /**
+     * Records the progress, to be called once everything up to it has been sent to the database. The transaction
+     * is committed, unless the connection is in auto-commit mode. Only the highest ids are recorded for a file
+     * that is not resumable, its progress is kept in memory.
+     */
+    void save(Connection dbConnection, long byteOffset, int csvLine, int linesIngested, int linesDropped,
+              int warnings) throws SQLException {
+        this.byteOffset = byteOffset;
+        this.csvLine = csvLine;
+        this.linesIngested = linesIngested;
+        this.linesDropped = linesDropped;
+        this.warnings = warnings;
+        if (filePath != null) {
+            this.maxIds = selectMaxIds(dbConnection);
+            save(dbConnection, false);
+        }
+        if (periodic) {
+            commit(dbConnection);
+        }
+        savedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Marks the file as ingested, the next ingestion of the same file will start from scratch.
+     */
+    void complete(Connection dbConnection) throws SQLException {
+        if (filePath == null) {
+            return;
+        }
+        save(dbConnection, true);
+    }
+
+    /**
+     * Counts again the brands of the lines covered by the checkpoint.
+     */
+    void loadBrandCounts(Connection dbConnection, BrandTracker brandTracker) throws SQLException {
+        int index = tableIndex("csv_brand");
+        String sql = "SELECT p.product_id, cb.name, cb.csv_line FROM csv_brand cb JOIN product p ON p.id = cb.id_product " +
+                "WHERE cb.id > ? AND cb.id <= ? ORDER BY cb.id";
+        try (PreparedStatement stmt = dbConnection.prepareStatement(sql)) {
+            stmt.setInt(1, startIds[index]);
+            stmt.setInt(2, maxIds[index]);
+            stmt.setFetchSize(10000);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    brandTracker.add(rs.getString(1), rs.getString(2), rs.getInt(3));
+                }
+            }
+        }
+    }
+
+    /**
+     * Records again the observations of the consistency rules on the lines covered by the checkpoint.
+     */
+    void loadObservations(Connection dbConnection, ConsistencyChecker consistency) throws SQLException {
+        List<ConsistencyRule> rules = consistency.getRules();
+        for (int i = 0; i < rules.size(); i++) {
+            ConsistencyRule rule = rules.get(i);
+            int index = tableIndex(rule.table);
+            if (startIds[index] >= maxIds[index]) {
+                continue;
+            }
+            String sql = "SELECT v.variant_id, " + rule.valueColumn + ", "
+                    + (rule.contextColumn == null ? "NULL" : rule.contextColumn) + ", t.csv_line FROM "
+                    + rule.table + " t JOIN variant v ON v.id = t.id_variant " + rule.join
+                    + " WHERE t.id > ? AND t.id <= ? ORDER BY t.id";
+            try (PreparedStatement stmt = dbConnection.prepareStatement(sql)) {
+                stmt.setInt(1, startIds[index]);
+                stmt.setInt(2, maxIds[index]);
+                stmt.setFetchSize(10000);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        consistency.add(i, rs.getString(1), rs.getString(2), rs.getString(3), rs.getInt(4));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts again, per type, the warnings written for the lines covered by the checkpoint. Those that were over
+     * their cap and only counted are not known anymore.
+     */
+    void loadWarningCounts(Connection dbConnection, WarningsSink warnings) throws SQLException {
+        int index = tableIndex("warnings");
+        String sql = "SELECT warning, count(*) FROM warnings WHERE id > ? AND id <= ? GROUP BY warning ORDER BY min(id)";
+        try (PreparedStatement stmt = dbConnection.prepareStatement(sql)) {
+            stmt.setInt(1, startIds[index]);
+            stmt.setInt(2, maxIds[index]);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    warnings.restore(rs.getString(1), rs.getInt(2));
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the rows of the file above the given ids. Without auto-commit, the rows written after the last save
+     * were rolled back with their transaction, and only those below the recorded highest ids are left. In auto-commit
+     * mode, they go up to the first ids of the files started since then, the rows above being theirs.
+     */
+    private void deleteRows(Connection dbConnection, int[] fromIds) throws SQLException {
+        int[] toIds = dbConnection.getAutoCommit() ? selectLaterStartIds(dbConnection, fromIds) : maxIds;
+        for (int i = 0; i < TABLES.length; i++) {
+            if (toIds[i] <= fromIds[i]) {
+                continue;
+            }
+            try (PreparedStatement stmt = dbConnection.prepareStatement(
+                    "DELETE FROM " + TABLES[i] + " WHERE id > ? AND id <= ?")) {
+                stmt.setInt(1, fromIds[i]);
+                stmt.setInt(2, toIds[i]);
+                int deleted = stmt.executeUpdate();
+                if (deleted > 0) {
+                    System.out.println("Deleted " + deleted + " rows of " + TABLES[i] + " written after the checkpoint");
+                }
+            }
+        }
+    }
+
+    // For each table, the lowest start id of the other files at or above the given id
+    private int[] selectLaterStartIds(Connection dbConnection, int[] fromIds) throws SQLException {
+        int[] toIds = new int[TABLES.length];
+        Arrays.fill(toIds, Integer.MAX_VALUE);
+        try (PreparedStatement stmt = dbConnection.prepareStatement(SELECT_OTHER_START_IDS)) {
+            stmt.setString(1, filePath);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int[] startIds = toInts(rs.getArray(1));
+                    for (int i = 0; i < TABLES.length; i++) {
+                        if (startIds[i] >= fromIds[i]) {
+                            toIds[i] = Math.min(toIds[i], startIds[i]);
+                        }
+                    }
+                }
+            }
+        }
+        return toIds;
+    }
+
+    private void save(Connection dbConnection, boolean completed) throws SQLException {
+        try (PreparedStatement stmt = dbConnection.prepareStatement(UPSERT_CHECKPOINT)) {
+            stmt.setString(1, filePath);
+            stmt.setLong(2, fileSize);
+            stmt.setLong(3, fileModified);
+            // Read back by a resumable load of the same file only
+            stmt.setLong(4, resumable ? byteOffset : 0);
+            stmt.setInt(5, resumable ? csvLine : 0);
+            stmt.setInt(6, resumable ? linesIngested : 0);
+            stmt.setInt(7, resumable ? linesDropped : 0);
+            stmt.setInt(8, resumable ? warnings : 0);
+            stmt.setArray(9, toArray(dbConnection, startIds));
+            stmt.setArray(10, toArray(dbConnection, maxIds));
+            stmt.setBoolean(11, completed);
+            stmt.executeUpdate();
+        }
+    }
+
+    private static int[] selectMaxIds(Connection dbConnection) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < TABLES.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append("(SELECT coalesce(max(id), 0) FROM ").append(TABLES[i]).append(')');
+        }
+        int[] maxIds = new int[TABLES.length];
+        try (Statement stmt = dbConnection.createStatement(); ResultSet rs = stmt.executeQuery(sql.toString())) {
+            rs.next();
+            for (int i = 0; i < TABLES.length; i++) {
+                maxIds[i] = rs.getInt(i + 1);
+            }
+        }
+        return maxIds;
+    }
+
+    private static int tableIndex(String table) {
+        for (int i = 0; i < TABLES.length; i++) {
+            if (TABLES[i].equals(table)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown table: " + table);
+    }
+
+    private static Array toArray(Connection dbConnection, int[] values) throws SQLException {
+        Integer[] boxed = new Integer[values.length];
+        for (int i = 0; i < values.length; i++) {
+            boxed[i] = values[i];
+        }
+        return dbConnection.createArrayOf("integer", boxed);
+    }
+
+    private static int[] toInts(Array array) throws SQLException {
+        Integer[] boxed = (Integer[]) array.getArray();
+        if (boxed.length != TABLES.length) {
+            throw new SQLException("Invalid checkpoint: " + boxed.length + " table ids instead of " + TABLES.length);
+        }
+        int[] values = new int[boxed.length];
+        for (int i = 0; i < boxed.length; i++) {
+            values[i] = boxed[i];
+        }
+        return values;
+    }
+
+    private static void commit(Connection dbConnection) throws SQLException {
+        if (!dbConnection.getAutoCommit()) {
+            dbConnection.commit();
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package ca.ulex;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Observations of the {@link ConsistencyRule}s on each variant, recorded as the rows go to the sink and checked in
+ * parallel partitions once the file has been read, so that the checks do not read the tables back. Spilled to
+ * sorted runs over the {@link MemoryBudget}.
+ */
+class ConsistencyChecker implements MemoryBudget.Holder
+{
+    private static final int PARTITIONS = 64;
+    private static final Metrics.Stage CHECK = Metrics.stage("consistency.check");
+    // The map entry, the Observations and the headers of its arrays
+    private static final long KEY_BYTES = MemoryBudget.ENTRY_BYTES + 24 + 2 * 16;
+    // Its slots in the arrays, the values and contexts being shared with the field dictionaries
+    private static final long OBSERVATION_BYTES = 2 * 4 + 3 * 4;
+
+    private final List<ConsistencyRule> rules;
+    // None without rules
+    private final List<Map<String, Observations>> partitions = new ArrayList<>();
+    private final MemoryBudget budget;
+    private final SortedRuns<Observations> runs;
+    private long heapBytes = 0;
+
+    ConsistencyChecker(List<ConsistencyRule> rules) {
+        this(rules, MemoryBudget.unbounded());
+    }
+
+    ConsistencyChecker(List<ConsistencyRule> rules, MemoryBudget budget) {
+        this.rules = rules;
+        this.budget = budget;
+        this.runs = new SortedRuns<>("observations", budget, new ObservationsCodec());
+        budget.register(this);
+        for (int i = 0; !rules.isEmpty() && i < PARTITIONS; i++) {
+            partitions.add(new HashMap<>());
+        }
+    }
+
+    List<ConsistencyRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Whether a rule reads the context of the rows, their locale.
+     */
+    boolean readsContext() {
+        for (ConsistencyRule rule : rules) {
+            if (rule.contextColumn != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void add(CsvRow row) {
+        if (rules.isEmpty()) {
+            return;
+        }
+        long added = 0;
+        Observations observations = partition(row.variantId).get(row.variantId);
+        if (observations == null) {
+            observations = newObservations(row.variantId);
+            added += KEY_BYTES + MemoryBudget.stringBytes(row.variantId);
+        }
+        for (int index = 0; index < rules.size(); index++) {
+            ConsistencyRule rule = rules.get(index);
+            if (observations.add(index, rule.value(row), rule.context(row), row.csvLine, 1)) {
+                added += OBSERVATION_BYTES;
+            }
+        }
+        grow(added);
+    }
+
+    /**
+     * Records an observation read back from the tables.
+     */
+    void add(int ruleIndex, String variantId, String value, String context, int csvLine) {
+        long added = 0;
+        Observations observations = partition(variantId).get(variantId);
+        if (observations == null) {
+            observations = newObservations(variantId);
+            added += KEY_BYTES + MemoryBudget.stringBytes(variantId);
+        }
+        if (observations.add(ruleIndex, value, context, csvLine, 1)) {
+            added += OBSERVATION_BYTES;
+        }
+        grow(added);
+    }
+
+    private Map<String, Observations> partition(String variantId) {
+        int hash = variantId.hashCode();
+        return partitions.get((hash ^ hash >>> 16) & (PARTITIONS - 1));
+    }
+
+    private Observations newObservations(String variantId) {
+        Observations observations = new Observations(rules.size());
+        partition(variantId).put(variantId, observations);
+        return observations;
+    }
+
+    // Once the observations of the line are all added, as a spill drops them
+    private void grow(long added) {
+        if (added > 0) {
+            heapBytes += added;
+            budget.grow(added);
+        }
+    }
+
+    @Override
+    public long heapBytes() {
+        return heapBytes;
+    }
+
+    @Override
+    public void spill() throws IOException {
+        runs.spill(entries());
+        for (Map<String, Observations> partition : partitions) {
+            partition.clear();
+        }
+        heapBytes = 0;
+    }
+
+    private List<Map.Entry<String, Observations>> entries() {
+        List<Map.Entry<String, Observations>> entries = new ArrayList<>();
+        for (Map<String, Observations> partition : partitions) {
+            entries.addAll(partition.entrySet());
+        }
+        return entries;
+    }
+
+    /**
+     * Checks the partitions on the given number of threads, then writes the warnings.
+     */
+    void check(WarningsSink warnings, int threads) throws SQLException, IOException {
+        if (rules.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<Warning> found = new ArrayList<>();
+        int variants;
+        if (!runs.isEmpty()) {
+            variants = checkRuns(found);
+        } else {
+            variants = checkPartitions(found, threads);
+        }
+
+        found.sort(Comparator.comparingInt((Warning warning) -> warning.csvLine)
+                .thenComparingInt(warning -> warning.rule));
+        CHECK.record(start);
+        for (Warning warning : found) {
+            ConsistencyRule rule = rules.get(warning.rule);
+            warnings.add(warning.csvLine, rule.warning, warning.description);
+        }
+        StringBuilder names = new StringBuilder();
+        for (ConsistencyRule rule : rules) {
+            names.append(names.length() == 0 ? "" : ", ").append(rule.name);
+        }
+        System.out.println("Consistency rules (" + names + ") checked on " + Utils.DECIMAL_FORMAT.format(variants)
+                + " variants: " + Utils.DECIMAL_FORMAT.format(found.size()) + " conflicts");
+    }
+
+    /**
+     * Checks the variants as the runs and the observations still in memory are merged, returns their number.
+     */
+    private int checkRuns(List<Warning> found) throws IOException, SQLException {
+        int[] variants = {0};
+        runs.forEach(entries(), (variantId, observations) -> {
+            variants[0]++;
+            check(variantId, observations, found);
+        });
+        return variants[0];
+    }
+
+    /**
+     * Checks the partitions on the given number of threads, returns the number of variants.
+     */
+    private int checkPartitions(List<Warning> found, int threads) {
+        int variants = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, PARTITIONS)));
+        try {
+            List<Future<List<Warning>>> futures = new ArrayList<>();
+            for (Map<String, Observations> partition : partitions) {
+                variants += partition.size();
+                futures.add(executor.submit(() -> check(partition)));
+            }
+            for (Future<List<Warning>> future : futures) {
+                found.addAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking the consistency rules", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return variants;
+    }
+
+    private List<Warning> check(Map<String, Observations> partition) {
+        List<Warning> found = new ArrayList<>();
+        for (Map.Entry<String, Observations> entry : partition.entrySet()) {
+            check(entry.getKey(), entry.getValue(), found);
+        }
+        return found;
+    }
+
+    private void check(String variantId, Observations observations, List<Warning> found) {
+        for (int index = 0; index < rules.size(); index++) {
+            Warning warning = observations.check(index, rules.get(index), variantId);
+            if (warning != null) {
+                found.add(warning);
+            }
+        }
+    }
+
+    /**
+     * The distinct (rule, value, context) triples seen on the lines of one variant: value and context in refs, rule,
+     * first csv_line and number of lines in ints.
+     */
+    private static final class Observations
+    {
+        private Object[] refs;
+        private int[] ints;
+        private int size = 0;
+
+        Observations(int capacity) {
+            this.refs = new Object[2 * capacity];
+            this.ints = new int[3 * capacity];
+        }
+
+        /**
+         * Adds lines to the triple, returns whether it is new.
+         */
+        boolean add(int rule, String value, String context, int csvLine, int lines) {
+            for (int i = 0; i < size; i++) {
+                if (ints[3 * i] == rule && equal(refs[2 * i], value) && equal(refs[2 * i + 1], context)) {
+                    ints[3 * i + 1] = Math.min(ints[3 * i + 1], csvLine);
+                    ints[3 * i + 2] += lines;
+                    return false;
+                }
+            }
+            if (size == ints.length / 3) {
+                refs = Arrays.copyOf(refs, 2 * refs.length);
+                ints = Arrays.copyOf(ints, 2 * ints.length);
+            }
+            refs[2 * size] = value;
+            refs[2 * size + 1] = context;
+            ints[3 * size] = rule;
+            ints[3 * size + 1] = csvLine;
+            ints[3 * size + 2] = lines;
+            size++;
+            return true;
+        }
+
+        /**
+         * A warning listing the values of the groups that hold more than one, on the first line of a value other
+         * than the most frequent of its group, or null.
+         */
+        Warning check(int ruleIndex, ConsistencyRule rule, String variantId) {
+            // Most variants have a single value, found without grouping anything
+            int observed = 0;
+            for (int i = 0; i < size; i++) {
+                if (ints[3 * i] == ruleIndex) {
+                    observed++;
+                }
+            }
+            if (observed < 2) {
+                return null;
+            }
+
+            // Lines and first csv_line of each (group, value), the same value may come with several contexts
+            String[] values = new String[observed];
+            String[] groups = new String[observed];
+            int[] counts = new int[observed];
+            int[] lines = new int[observed];
+            int entries = 0;
+            for (int i = 0; i < size; i++) {
+                if (ints[3 * i] != ruleIndex) {
+                    continue;
+                }
+                String value = (String) refs[2 * i];
+                String group = rule.group(value, (String) refs[2 * i + 1]);
+                int entry = 0;
+                while (entry < entries && !(equal(values[entry], value) && equal(groups[entry], group))) {
+                    entry++;
+                }
+                if (entry == entries) {
+                    values[entry] = value;
+                    groups[entry] = group;
+                    lines[entry] = Integer.MAX_VALUE;
+                    entries++;
+                }
+                counts[entry] += ints[3 * i + 2];
+                lines[entry] = Math.min(lines[entry], ints[3 * i + 1]);
+            }
+
+            // Most frequent first, then earliest; a handful of entries at most
+            for (int i = 1; i < entries; i++) {
+                for (int j = i; j > 0 && (counts[j] > counts[j - 1]
+                        || (counts[j] == counts[j - 1] && lines[j] < lines[j - 1])); j--) {
+                    swap(values, j);
+                    swap(groups, j);
+                    swap(counts, j);
+                    swap(lines, j);
+                }
+            }
+
+            StringBuilder conflicting = null;
+            int csvLine = Integer.MAX_VALUE;
+            boolean[] listed = new boolean[entries];
+            for (int i = 0; i < entries; i++) {
+                if (listed[i]) {
+                    continue;
+                }
+                for (int j = i + 1; j < entries; j++) {
+                    if (listed[j] || !equal(groups[j], groups[i])) {
+                        continue;
+                    }
+                    if (conflicting == null) {
+                        conflicting = new StringBuilder(rule.description).append(variantId).append(": ");
+                    } else if (!listed[i]) {
+                        conflicting.append(", ");
+                    }
+                    if (!listed[i]) {
+                        conflicting.append(values[i]).append(" (").append(counts[i]).append(')');
+                        listed[i] = true;
+                    }
+                    conflicting.append(", ").append(values[j]).append(" (").append(counts[j]).append(')');
+                    listed[j] = true;
+                    csvLine = Math.min(csvLine, lines[j]);
+                }
+            }
+            return conflicting == null ? null : new Warning(csvLine, ruleIndex, conflicting.toString());
+        }
+
+        private static <T> void swap(T[] array, int i) {
+            T swapped = array[i];
+            array[i] = array[i - 1];
+            array[i - 1] = swapped;
+        }
+
+        private static void swap(int[] array, int i) {
+            int swapped = array[i];
+            array[i] = array[i - 1];
+            array[i - 1] = swapped;
+        }
+
+        private static boolean equal(Object a, String b) {
+            return a == b || (a != null && a.equals(b));
+        }
+    }
+
+    /**
+     * The triples of a variant, a later run adding its lines to the same triples and appending its new ones.
+     */
+    private static final class ObservationsCodec implements SortedRuns.Codec<Observations>
+    {
+        @Override
+        public void write(DataOutputStream out, Observations observations) throws IOException {
+            out.writeInt(observations.size);
+            for (int i = 0; i < observations.size; i++) {
+                out.writeInt(observations.ints[3 * i]);
+                SortedRuns.writeString(out, (String) observations.refs[2 * i]);
+                SortedRuns.writeString(out, (String) observations.refs[2 * i + 1]);
+                out.writeInt(observations.ints[3 * i + 1]);
+                out.writeInt(observations.ints[3 * i + 2]);
+            }
+        }
+
+        @Override
+        public Observations read(DataInputStream in) throws IOException {
+            int size = in.readInt();
+            Observations observations = new Observations(Math.max(1, size));
+            for (int i = 0; i < size; i++) {
+                int rule = in.readInt();
+                String value = SortedRuns.readString(in);
+                String context = SortedRuns.readString(in);
+                int csvLine = in.readInt();
+                observations.add(rule, value, context, csvLine, in.readInt());
+            }
+            return observations;
+        }
+
+        @Override
+        public Observations combine(Observations earlier, Observations later) {
+            for (int i = 0; i < later.size; i++) {
+                earlier.add(later.ints[3 * i], (String) later.refs[2 * i], (String) later.refs[2 * i + 1],
+                        later.ints[3 * i + 1], later.ints[3 * i + 2]);
+            }
+            return earlier;
+        }
+    }
+
+    private static final class Warning
+    {
+        final int csvLine;
+        final int rule;
+        final String description;
+
+        Warning(int csvLine, int rule, String description) {
+            this.csvLine = csvLine;
+            this.rule = rule;
+            this.description = description;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package ca.ulex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A field that should not take different values on the lines of a same variant, except where the difference is a
+ * localization: the values are split into groups, and a variant with values in more than one group is flagged once.
+ */
+abstract class ConsistencyRule
+{
+    static final String GENDER = "gender";
+    static final String AGE_GROUP = "age_group";
+    static final String SIZE_LABEL = "size_label";
+    static final String PRODUCT_TYPE = "product_type";
+
+    final String name;
+    final String warning;
+    final String description;
+    // Where the rows of a resumed ingestion read the value and context back from: the table, as t, the joins to its
+    // lookup tables, and the columns, context being NULL if none
+    final String table;
+    final String join;
+    final String valueColumn;
+    final String contextColumn;
+
+    ConsistencyRule(String name, String warning, String description, String table, String join, String valueColumn,
+                    String contextColumn) {
+        this.name = name;
+        this.warning = warning;
+        this.description = description;
+        this.table = table;
+        this.join = join;
+        this.valueColumn = valueColumn;
+        this.contextColumn = contextColumn;
+    }
+
+    abstract String value(CsvRow row);
+
+    String context(CsvRow row) {
+        return null;
+    }
+
+    /**
+     * Values of the same group should be equal, by default all values of a key are in the same group.
+     */
+    String group(String value, String context) {
+        return "";
+    }
+
+    /**
+     * The rules named in the comma-separated list, in this order.
+     */
+    static List<ConsistencyRule> forNames(String names) {
+        List<ConsistencyRule> rules = new ArrayList<>();
+        for (String name : names.split(",")) {
+            switch (name.trim()) {
+                case "":
+                    break;
+                case GENDER:
+                    rules.add(new GenderRule());
+                    break;
+                case AGE_GROUP:
+                    rules.add(new ConsistencyRule(AGE_GROUP, "WARNING_CONFLICTING_AGE_GROUPS",
+                            Ingestor.WARNING_CONFLICTING_AGE_GROUPS, "csv_age_group", "", "t.age_group", null) {
+                        @Override
+                        String value(CsvRow row) {
+                            return row.ageGroup;
+                        }
+                    });
+                    break;
+                case SIZE_LABEL:
+                    rules.add(new SizeLabelRule());
+                    break;
+                case PRODUCT_TYPE:
+                    rules.add(new ProductTypeRule());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid consistency rule: " + name);
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * A variant may be meant for several of male, female and unisex, its flags keep them all; only the genders outside
+     * of these, which none of the flags keep, are a conflict (Kids, Baby).
+     */
+    private static final class GenderRule extends ConsistencyRule
+    {
+        GenderRule() {
+            super(GENDER, "WARNING_CONFLICTING_GENDERS", Ingestor.WARNING_CONFLICTING_GENDERS, "csv_gender", "",
+                    "t.gender", null);
+        }
+
+        @Override
+        String value(CsvRow row) {
+            return row.gender;
+        }
+
+        // Each valid gender in a group of its own, the others together
+        @Override
+        String group(String value, String context) {
+            return "male".equalsIgnoreCase(value) || "female".equalsIgnoreCase(value)
+                    || "unisex".equalsIgnoreCase(value) ? value : "";
+        }
+    }
+
+    /**
+     * Size labels of different units are localizations of each other (40 CM, 16 IN), but two labels of the same unit
+     * with different numbers (6 US, 4 US) are a conflict.
+     */
+    private static final class SizeLabelRule extends ConsistencyRule
+    {
+        SizeLabelRule() {
+            super(SIZE_LABEL, "WARNING_CONFLICTING_SIZE_LABELS",
+                    Ingestor.WARNING_CONFLICTING_SIZE_LABELS, "localized_meta",
+                    "JOIN size_label sl ON sl.id = t.id_size_label", "sl.name", null);
+        }
+
+        @Override
+        String value(CsvRow row) {
+            return row.sizeLabel;
+        }
+
+        // The label without its numbers and spaces
+        @Override
+        String group(String value, String context) {
+            StringBuilder unit = new StringBuilder(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (!Character.isDigit(c) && !Character.isWhitespace(c) && c != '.' && c != ',' && c != '/') {
+                    unit.append(c);
+                }
+            }
+            return unit.toString();
+        }
+    }
+
+    /**
+     * Product types in different languages are localizations of each other, two product types detected in the same
+     * language are a conflict.
+     */
+    private static final class ProductTypeRule extends ConsistencyRule
+    {
+        ProductTypeRule() {
+            super(PRODUCT_TYPE, "WARNING_CONFLICTING_PRODUCT_TYPES",
+                    Ingestor.WARNING_CONFLICTING_PRODUCT_TYPES, "localized_meta",
+                    "JOIN product_type pt ON pt.id = t.id_product_type LEFT JOIN locale l ON l.id = t.id_locale",
+                    "pt.name", "l.name");
+        }
+
+        @Override
+        String value(CsvRow row) {
+            return row.productType;
+        }
+
+        @Override
+        String context(CsvRow row) {
+            return row.locale;
+        }
+
+        @Override
+        String group(String value, String context) {
+            return context == null ? "" : context;
+        }
+    }
+}
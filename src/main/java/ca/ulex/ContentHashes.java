@@ -0,0 +1,152 @@
+package ca.ulex;
+
+/**
+ * Set of the 64-bit content hashes of the lines already ingested, in an open addressing table of primitive longs.
+ * Once filled, it can be read by several threads as long as nothing is added to it.
+ */
+class ContentHashes
+{
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] table = new long[16];
+    private int size = 0;
+    private boolean hasZero = false;
+
+    /**
+     * Adds the hash, returns false if it was already in the set.
+     */
+    boolean add(long hash) {
+        if (hash == 0) {
+            boolean added = !hasZero;
+            hasZero = true;
+            return added;
+        }
+        int mask = table.length - 1;
+        int slot = slot(hash) & mask;
+        for (; table[slot] != 0; slot = (slot + 1) & mask) {
+            if (table[slot] == hash) {
+                return false;
+            }
+        }
+        table[slot] = hash;
+        if (++size > table.length * LOAD_FACTOR) {
+            rehash();
+        }
+        return true;
+    }
+
+    boolean contains(long hash) {
+        if (hash == 0) {
+            return hasZero;
+        }
+        int mask = table.length - 1;
+        for (int slot = slot(hash) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            if (table[slot] == hash) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the hash, returns false if it was not in the set. The hashes that follow it in its cluster are moved
+     * back, so that no lookup stops at the slot it leaves empty.
+     */
+    boolean remove(long hash) {
+        if (hash == 0) {
+            boolean removed = hasZero;
+            hasZero = false;
+            return removed;
+        }
+        int mask = table.length - 1;
+        int slot = slot(hash) & mask;
+        for (; table[slot] != hash; slot = (slot + 1) & mask) {
+            if (table[slot] == 0) {
+                return false;
+            }
+        }
+        table[slot] = 0;
+        size--;
+        for (int next = (slot + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            // Moved into the empty slot unless its home slot lies between the empty slot and its own
+            int home = slot(table[next]) & mask;
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                table[slot] = table[next];
+                table[next] = 0;
+                slot = next;
+            }
+        }
+        return true;
+    }
+
+    void addAll(ContentHashes other) {
+        if (other.hasZero) {
+            hasZero = true;
+        }
+        for (long hash : other.table) {
+            if (hash != 0) {
+                add(hash);
+            }
+        }
+    }
+
+    int size() {
+        return size + (hasZero ? 1 : 0);
+    }
+
+    /**
+     * Hash of the normalized fields of a kept line, the csv_line and the detected locale left out.
+     */
+    static long hash(CsvRow row) {
+        long h = 0xCBF29CE484222325L;
+        h = hash(h, row.variantId);
+        h = hash(h, row.productId);
+        h = hash(h, row.sizeLabel);
+        h = hash(h, row.productName);
+        h = hash(h, row.brand);
+        h = hash(h, row.color);
+        h = hash(h, row.ageGroup);
+        h = hash(h, row.gender);
+        h = hash(h, row.sizeType);
+        h = hash(h, row.productType);
+        return mix(h);
+    }
+
+    // FNV-1a over the chars, each field prefixed by its length so that moving text from a field to
+    // the next one changes the hash
+    private static long hash(long h, String field) {
+        h = (h ^ field.length()) * 0x100000001B3L;
+        for (int i = 0; i < field.length(); i++) {
+            h = (h ^ field.charAt(i)) * 0x100000001B3L;
+        }
+        return h;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int slot(long hash) {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private void rehash() {
+        long[] oldTable = table;
+        table = new long[oldTable.length * 2];
+        int mask = table.length - 1;
+        for (long hash : oldTable) {
+            if (hash != 0) {
+                int slot = slot(hash) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = hash;
+            }
+        }
+    }
+}
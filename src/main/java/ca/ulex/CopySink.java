@@ -0,0 +1,251 @@
+package ca.ulex;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Bulk-load path: the rows are streamed with COPY into a staging table, then resolved into the
+ * brand/product/variant/csv_* /lookup/localized_meta tables with set-based SQL once the whole file has been read.
+ * The resulting rows and ids are the same as the ones of the row by row path.
+ */
+class CopySink implements RowSink
+{
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Metrics.Stage COPY_WRITE = Metrics.stage("copy.write");
+    private static final Metrics.Stage COPY_RESOLVE = Metrics.stage("copy.resolve");
+
+    private static final String[] CREATE_STAGING = {
+            "DROP TABLE IF EXISTS staging_csv, staging_product, staging_variant, staging_warnings",
+            "CREATE TEMP TABLE staging_csv (csv_line INTEGER NOT NULL, empty_field INTEGER, " +
+                    "variant_id TEXT, product_id TEXT, size_label TEXT, product_name TEXT, brand TEXT, color TEXT, " +
+                    "age_group TEXT, gender TEXT, size_type TEXT, product_type TEXT, locale TEXT)"
+    };
+
+    // The staging_csv column of a lookup table has its name
+    private static final String INSERT_LOOKUP =
+            "INSERT INTO %1$s (name) SELECT s.%1$s FROM staging_csv s " +
+                    "WHERE s.empty_field IS NULL AND s.%1$s IS NOT NULL " +
+                    "AND NOT EXISTS (SELECT 1 FROM %1$s t WHERE t.name = s.%1$s) GROUP BY s.%1$s ORDER BY min(s.csv_line) " +
+                    // A value another load has added meanwhile, which the joins below read back
+                    "ON CONFLICT (name) DO NOTHING";
+
+    // Brands, products and variants already in the database are reused, as in the row by row path: only the new
+    // ones are inserted, and the csv_* and localized_meta rows are joined to the tables on their unique keys
+    private static final String[] RESOLVE_STAGING = {
+            // First line of each new product, it holds the brand the product is created with
+            "CREATE TEMP TABLE staging_product AS " +
+                    "SELECT DISTINCT ON (s.product_id) s.product_id, s.brand, s.csv_line FROM staging_csv s " +
+                    "WHERE s.empty_field IS NULL AND NOT EXISTS (SELECT 1 FROM product p WHERE p.product_id = s.product_id) " +
+                    "ORDER BY s.product_id, s.csv_line",
+            "INSERT INTO brand (name) SELECT sp.brand FROM staging_product sp " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM brand b WHERE b.name = sp.brand) " +
+                    "GROUP BY sp.brand ORDER BY min(sp.csv_line) ON CONFLICT (name) DO NOTHING",
+            "INSERT INTO product (id_brand, product_id) " +
+                    "SELECT b.id, sp.product_id FROM staging_product sp JOIN brand b ON b.name = sp.brand " +
+                    "ORDER BY sp.csv_line ON CONFLICT (product_id) DO NOTHING",
+            "INSERT INTO csv_brand (id_product, csv_line, name) " +
+                    "SELECT p.id, s.csv_line, s.brand FROM staging_csv s JOIN product p USING (product_id) " +
+                    "WHERE s.empty_field IS NULL ORDER BY s.csv_line",
+            // First line of each variant, the genders being accumulated over all its lines
+            "CREATE TEMP TABLE staging_variant AS " +
+                    "SELECT f.variant_id, f.product_id, f.age_group, f.size_type, f.csv_line, " +
+                    "g.gender_male, g.gender_female, g.gender_unisex, " +
+                    "EXISTS (SELECT 1 FROM variant v WHERE v.variant_id = f.variant_id) AS existing " +
+                    "FROM (SELECT DISTINCT ON (variant_id) variant_id, product_id, age_group, size_type, csv_line " +
+                    "FROM staging_csv WHERE empty_field IS NULL ORDER BY variant_id, csv_line) f " +
+                    "JOIN (SELECT variant_id, bool_or(lower(gender) = 'male') AS gender_male, " +
+                    "bool_or(lower(gender) = 'female') AS gender_female, " +
+                    "bool_or(lower(gender) = 'unisex') AS gender_unisex " +
+                    "FROM staging_csv WHERE empty_field IS NULL GROUP BY variant_id) g USING (variant_id)",
+            // The variants already there only gain the genders they did not have
+            "UPDATE variant v SET gender_male = v.gender_male OR sv.gender_male, " +
+                    "gender_female = v.gender_female OR sv.gender_female, " +
+                    "gender_unisex = v.gender_unisex OR sv.gender_unisex " +
+                    "FROM staging_variant sv WHERE v.variant_id = sv.variant_id " +
+                    "AND (sv.gender_male > v.gender_male OR sv.gender_female > v.gender_female " +
+                    "OR sv.gender_unisex > v.gender_unisex)",
+            "INSERT INTO variant (id_product, variant_id, age_group, gender_male, gender_female, gender_unisex, " +
+                    "size_type) " +
+                    "SELECT p.id, sv.variant_id, sv.age_group, sv.gender_male, sv.gender_female, sv.gender_unisex, " +
+                    "sv.size_type FROM staging_variant sv JOIN product p USING (product_id) " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM variant v WHERE v.variant_id = sv.variant_id) " +
+                    "ORDER BY sv.csv_line ON CONFLICT (variant_id) DO NOTHING",
+            "INSERT INTO csv_age_group (id_variant, csv_line, age_group) " +
+                    "SELECT v.id, s.csv_line, s.age_group FROM staging_csv s JOIN variant v USING (variant_id) " +
+                    "WHERE s.empty_field IS NULL ORDER BY s.csv_line",
+            "INSERT INTO csv_gender (id_variant, csv_line, gender) " +
+                    "SELECT v.id, s.csv_line, s.gender FROM staging_csv s JOIN variant v USING (variant_id) " +
+                    "WHERE s.empty_field IS NULL ORDER BY s.csv_line",
+            // New values of the lookup tables, in the order they first appear
+            String.format(INSERT_LOOKUP, LookupTables.TABLES[LookupTables.LOCALE]),
+            String.format(INSERT_LOOKUP, LookupTables.TABLES[LookupTables.SIZE_LABEL]),
+            String.format(INSERT_LOOKUP, LookupTables.TABLES[LookupTables.COLOR]),
+            String.format(INSERT_LOOKUP, LookupTables.TABLES[LookupTables.PRODUCT_TYPE]),
+            "INSERT INTO localized_meta (id_variant, csv_line, id_locale, id_size_label, product_name, id_color, " +
+                    "id_product_type) " +
+                    "SELECT v.id, s.csv_line, l.id, sl.id, s.product_name, c.id, pt.id " +
+                    "FROM staging_csv s JOIN variant v USING (variant_id) " +
+                    "LEFT JOIN locale l ON l.name = s.locale " +
+                    "LEFT JOIN size_label sl ON sl.name = s.size_label " +
+                    "LEFT JOIN color c ON c.name = s.color " +
+                    "LEFT JOIN product_type pt ON pt.name = s.product_type " +
+                    "WHERE s.empty_field IS NULL ORDER BY s.csv_line"
+    };
+
+    // The later lines of a variant with an invalid gender, as the row by row path warns of them
+    private static final String SELECT_INVALID_GENDERS =
+            "SELECT s.gender, v.id FROM staging_csv s JOIN staging_variant sv USING (variant_id) " +
+                    "JOIN variant v USING (variant_id) " +
+                    "WHERE s.empty_field IS NULL AND lower(s.gender) NOT IN ('male', 'female', 'unisex') " +
+                    "AND (sv.existing OR s.csv_line <> sv.csv_line) ORDER BY s.csv_line";
+    private static final String DROP_STAGING = "DROP TABLE staging_csv, staging_product, staging_variant";
+
+    // The lines dropped for an empty field, numbered for the cap of the warnings sink
+    private static final String STAGING_WARNINGS =
+            "CREATE TEMP TABLE staging_warnings AS " +
+                    "SELECT csv_line, 'WARNING_EMPTY_FIELD' AS warning, " +
+                    "'" + Ingestor.WARNING_EMPTY_FIELD + "' || empty_field AS description, " +
+                    "row_number() OVER (ORDER BY csv_line) AS number " +
+                    "FROM staging_csv WHERE empty_field IS NOT NULL";
+    private static final String COUNT_WARNINGS =
+            "SELECT warning, count(*) FROM staging_warnings GROUP BY warning ORDER BY min(csv_line)";
+    private static final String INSERT_WARNINGS =
+            "INSERT INTO warnings (csv_line, warning, description) " +
+                    "SELECT csv_line, warning, description FROM staging_warnings WHERE %s ORDER BY csv_line";
+
+    private final Connection dbConnection;
+    private final WarningsSink warnings;
+    private final CopyIn copyIn;
+    private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE + 1024);
+
+    CopySink(Connection dbConnection, WarningsSink warnings) throws SQLException {
+        this.dbConnection = dbConnection;
+        this.warnings = warnings;
+        executeAll(CREATE_STAGING);
+        this.copyIn = dbConnection.unwrap(PGConnection.class).getCopyAPI().copyIn("COPY staging_csv FROM STDIN");
+    }
+
+    @Override
+    public void addRow(CsvRow row) throws SQLException {
+        buffer.append(row.csvLine).append("\t\\N");
+        appendField(row.variantId);
+        appendField(row.productId);
+        appendField(row.sizeLabel);
+        appendField(row.productName);
+        appendField(row.brand);
+        appendField(row.color);
+        appendField(row.ageGroup);
+        appendField(row.gender);
+        appendField(row.sizeType);
+        appendField(row.productType);
+        appendField(row.locale);
+        endLine();
+    }
+
+    @Override
+    public void dropRow(int csvLine, int emptyField) throws SQLException {
+        buffer.append(csvLine).append('\t').append(emptyField);
+        for (int i = 0; i < Utils.CSV_HEADER.length + 1; i++) {
+            buffer.append("\t\\N");
+        }
+        endLine();
+    }
+
+    /**
+     * Only flushes the buffer to the COPY stream: the rows do not reach their tables before {@link #finish}, and the
+     * connection cannot commit while the copy is in progress.
+     */
+    @Override
+    public void flush() throws SQLException {
+        flushBuffer();
+    }
+
+    @Override
+    public void finish() throws SQLException {
+        flushBuffer();
+        long rowsCopied = copyIn.endCopy();
+        System.out.println("\nRows copied to staging: " + Utils.DECIMAL_FORMAT.format(rowsCopied));
+
+        long start = System.nanoTime();
+        insertWarnings();
+        executeAll(RESOLVE_STAGING);
+        try (Statement stmt = dbConnection.createStatement();
+             ResultSet rs = stmt.executeQuery(SELECT_INVALID_GENDERS)) {
+            while (rs.next()) {
+                Ingestor.recordInvalidGenderWarning(rs.getString(1), rs.getInt(2));
+            }
+        }
+        executeAll(new String[] {DROP_STAGING});
+        COPY_RESOLVE.record(start);
+    }
+
+    private void insertWarnings() throws SQLException {
+        try (Statement stmt = dbConnection.createStatement()) {
+            stmt.execute(STAGING_WARNINGS);
+            try (ResultSet rs = stmt.executeQuery(COUNT_WARNINGS)) {
+                while (rs.next()) {
+                    warnings.addWritten(rs.getString(1), rs.getInt(2));
+                }
+            }
+            stmt.executeUpdate(String.format(INSERT_WARNINGS, warnings.writtenCondition("number")));
+            stmt.execute("DROP TABLE staging_warnings");
+        }
+    }
+
+    private void executeAll(String[] statements) throws SQLException {
+        try (Statement stmt = dbConnection.createStatement()) {
+            for (String sql : statements) {
+                stmt.execute(sql);
+            }
+        }
+    }
+
+    private void appendField(String value) {
+        buffer.append('\t');
+        if (value == null) {
+            buffer.append("\\N");
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': buffer.append("\\\\"); break;
+                case '\t': buffer.append("\\t"); break;
+                case '\n': buffer.append("\\n"); break;
+                case '\r': buffer.append("\\r"); break;
+                default: buffer.append(c);
+            }
+        }
+    }
+
+    private void endLine() throws SQLException {
+        buffer.append('\n');
+        if (buffer.length() >= BUFFER_SIZE) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws SQLException {
+        if (buffer.length() == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            copyIn.writeToCopy(bytes, 0, bytes.length);
+            COPY_WRITE.record(start);
+        } catch (SQLException e) {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+            throw e;
+        }
+        buffer.setLength(0);
+    }
+}
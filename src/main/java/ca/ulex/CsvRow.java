@@ -0,0 +1,102 @@
+package ca.ulex;
+
+/**
+ * One CSV line, with its fields already normalized the way they are stored in the database. A dropped line only
+ * carries its csv_line and the number of its first empty field.
+ */
+final class CsvRow
+{
+    // Numbered from 1 within its chunk until the pipeline's writer makes it the csv_line of the whole file
+    int csvLine;
+    final int emptyField;
+    final String variantId;
+    final String productId;
+    final String sizeLabel;
+    final String productName;
+    final String brand;
+    final String color;
+    final String ageGroup;
+    final String gender;
+    final String sizeType;
+    final String productType;
+    // Codes of the values in their FieldNormalizer dictionary, or FieldDictionary.NOT_INTERNED
+    final int sizeLabelCode;
+    final int colorCode;
+    final int ageGroupCode;
+    final int genderCode;
+    final int sizeTypeCode;
+    final int productTypeCode;
+    // As given by GenderAccumulator.flag, 0 for an invalid gender
+    final int genderFlag;
+    String locale;
+    // Delta mode only: hash of the fields, and whether the database already has a line with the same hash
+    long contentHash;
+    boolean unchanged;
+
+    private CsvRow(int csvLine, String[] line, FieldNormalizer normalizer) {
+        this.csvLine = csvLine;
+        this.emptyField = -1;
+        this.variantId = line[0];
+        this.productId = line[1];
+        this.productName = normalizer.normalizeText(line[3]);
+        this.brand = normalizer.normalizeText(line[4]);
+
+        FieldDictionary.Entry entry = normalizer.upperCase(line[2], FieldNormalizer.SIZE_LABELS);
+        this.sizeLabel = entry.value;
+        this.sizeLabelCode = entry.code;
+        entry = normalizer.normalizeText(line[5], FieldNormalizer.COLORS);
+        this.color = entry.value;
+        this.colorCode = entry.code;
+        entry = normalizer.normalizeText(line[6], FieldNormalizer.AGE_GROUPS);
+        this.ageGroup = entry.value;
+        this.ageGroupCode = entry.code;
+        entry = normalizer.normalizeText(line[7], FieldNormalizer.GENDERS);
+        this.gender = entry.value;
+        this.genderCode = entry.code;
+        this.genderFlag = normalizer.genderFlag(entry);
+        entry = normalizer.lowerCase(line[8], FieldNormalizer.SIZE_TYPES);
+        this.sizeType = entry.value;
+        this.sizeTypeCode = entry.code;
+        entry = normalizer.intern(line[9], FieldNormalizer.PRODUCT_TYPES);
+        this.productType = entry.value;
+        this.productTypeCode = entry.code;
+    }
+
+    private CsvRow(int csvLine, int emptyField) {
+        this.csvLine = csvLine;
+        this.emptyField = emptyField;
+        this.variantId = null;
+        this.productId = null;
+        this.sizeLabel = null;
+        this.productName = null;
+        this.brand = null;
+        this.color = null;
+        this.ageGroup = null;
+        this.gender = null;
+        this.sizeType = null;
+        this.productType = null;
+        this.sizeLabelCode = FieldDictionary.NOT_INTERNED;
+        this.colorCode = FieldDictionary.NOT_INTERNED;
+        this.ageGroupCode = FieldDictionary.NOT_INTERNED;
+        this.genderCode = FieldDictionary.NOT_INTERNED;
+        this.sizeTypeCode = FieldDictionary.NOT_INTERNED;
+        this.productTypeCode = FieldDictionary.NOT_INTERNED;
+        this.genderFlag = 0;
+    }
+
+    static CsvRow fromLine(int csvLine, String[] line, FieldNormalizer normalizer) {
+        return new CsvRow(csvLine, line, normalizer);
+    }
+
+    static CsvRow dropped(int csvLine, int emptyField) {
+        return new CsvRow(csvLine, emptyField);
+    }
+
+    boolean isDropped() {
+        return emptyField > 0;
+    }
+
+    String detectionText() {
+        return productName + " " + color + " " + productType.replace(">", " ");
+    }
+}
@@ -0,0 +1,29 @@
+package ca.ulex;
+
+import com.opencsv.exceptions.CsvException;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Record by record access to a CSV file, checking for empty fields before any field is turned into a String.
+ */
+interface CsvSource extends Closeable
+{
+    /**
+     * Moves to the next record, returns false at the end of the file.
+     */
+    boolean next() throws IOException, CsvException;
+
+    /**
+     * Number (starting at 1) of the first empty field of the current record, -1 if there is none.
+     */
+    int emptyField();
+
+    String[] fields();
+
+    /**
+     * Byte offset of the next record, -1 if the source does not know it.
+     */
+    long position();
+}
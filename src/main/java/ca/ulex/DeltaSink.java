@@ -0,0 +1,241 @@
+package ca.ulex;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Delta path: the dictionaries are warm-started from the whole tables, with the content hashes of the lines already
+ * ingested, so that the unchanged lines are skipped and the others written as in the batched path, with upserts. Once
+ * the feed is read, the lines of its variants that it no longer holds are deleted. The {@link Dictionaries} of a load
+ * can be handed to the next one, and must be dropped whenever a load does not end with a commit.
+ */
+class DeltaSink extends BatchSink
+{
+    private static final int FETCH_SIZE = 10000;
+    private static final Metrics.Stage ROW_HASH_BATCH = Metrics.stage("batch.row_hash");
+
+    private static final String WARM_START =
+            "SELECT 0, name, id, 0::BIGINT FROM brand " +
+                    "UNION ALL SELECT 1, product_id, id, 0 FROM product " +
+                    "UNION ALL SELECT 2, variant_id, id, 0 FROM variant " +
+                    "UNION ALL SELECT 3, NULL, 0, hash FROM row_hash";
+
+    private static final String INSERT_ROW_HASH = "INSERT INTO row_hash (hash, id_variant, csv_line) VALUES (?, ?, ?)";
+
+    private static final String SELECT_FEED_ROW_HASHES =
+            "SELECT id, hash FROM row_hash WHERE id_variant = ANY(?) AND id <= ?";
+
+    // The rows of a stale line, written before the load started: its csv_line may be that of a new line
+    private static final String[] DELETE_STALE_ROWS = {
+            "DELETE FROM localized_meta t USING row_hash h WHERE h.id = ANY(?) " +
+                    "AND t.id_variant = h.id_variant AND t.csv_line = h.csv_line AND t.id <= ?",
+            "DELETE FROM csv_gender t USING row_hash h WHERE h.id = ANY(?) " +
+                    "AND t.id_variant = h.id_variant AND t.csv_line = h.csv_line AND t.id <= ?",
+            "DELETE FROM csv_age_group t USING row_hash h WHERE h.id = ANY(?) " +
+                    "AND t.id_variant = h.id_variant AND t.csv_line = h.csv_line AND t.id <= ?",
+            // Left as it is when a line kept by the feed has the same product and csv_line, from another file
+            "DELETE FROM csv_brand t USING row_hash h JOIN variant v ON v.id = h.id_variant WHERE h.id = ANY(?) " +
+                    "AND t.id_product = v.id_product AND t.csv_line = h.csv_line AND t.id <= ? " +
+                    "AND NOT EXISTS (SELECT 1 FROM row_hash k JOIN variant kv ON kv.id = k.id_variant " +
+                    "WHERE kv.id_product = t.id_product AND k.csv_line = t.csv_line AND k.id <= ? " +
+                    "AND k.id <> ALL(?))"};
+
+    private static final String UPDATE_STALE_GENDERS =
+            "UPDATE variant v SET " +
+                    "gender_male = EXISTS (SELECT 1 FROM csv_gender g WHERE g.id_variant = v.id AND lower(g.gender) = 'male'), " +
+                    "gender_female = EXISTS (SELECT 1 FROM csv_gender g WHERE g.id_variant = v.id AND lower(g.gender) = 'female'), " +
+                    "gender_unisex = EXISTS (SELECT 1 FROM csv_gender g WHERE g.id_variant = v.id AND lower(g.gender) = 'unisex') " +
+                    "WHERE v.id IN (SELECT id_variant FROM row_hash WHERE id = ANY(?))";
+
+    private static final String DELETE_STALE_ROW_HASHES = "DELETE FROM row_hash WHERE id = ANY(?)";
+
+    private static final String[] STALE_ROW_TABLES = {"localized_meta", "csv_gender", "csv_age_group", "csv_brand"};
+
+    private final Connection dbConnection;
+    private final Dictionaries dictionaries;
+    private final Checkpoint checkpoint;
+    private final ContentHashes newRows = new ContentHashes();
+    // The hashes and variant ids of all the kept lines of the feed, written or unchanged
+    private final ContentHashes feedRows = new ContentHashes();
+    private final BitSet feedVariants = new BitSet();
+    private final PreparedStatement rowHashStmt;
+
+    /**
+     * Ids of the brands, products and variants in the database, and content hashes of the lines ingested.
+     */
+    static class Dictionaries
+    {
+        final KeyDictionary brandMap = new KeyDictionary();
+        final KeyDictionary productMap = new KeyDictionary();
+        final KeyDictionary variantMap = new KeyDictionary();
+        final ContentHashes knownRows = new ContentHashes();
+    }
+
+    private DeltaSink(Connection dbConnection, int batchSize, int idBlockSize, Dictionaries dictionaries,
+                      WarningsSink warnings, Checkpoint checkpoint) throws SQLException {
+        super(dbConnection, batchSize, idBlockSize, dictionaries.brandMap, dictionaries.productMap,
+                dictionaries.variantMap, warnings, true);
+        this.dbConnection = dbConnection;
+        this.dictionaries = dictionaries;
+        this.checkpoint = checkpoint;
+        this.rowHashStmt = dbConnection.prepareStatement(INSERT_ROW_HASH);
+    }
+
+    /**
+     * Opens the sink with the dictionaries left by the previous load, or with dictionaries read from the database
+     * if there are none. The rows above the start ids of the checkpoint are the load's own.
+     */
+    static DeltaSink open(Connection dbConnection, int batchSize, int idBlockSize, Dictionaries dictionaries,
+                          WarningsSink warnings, Checkpoint checkpoint) throws SQLException {
+        if (dictionaries == null) {
+            dictionaries = load(dbConnection);
+        }
+        return new DeltaSink(dbConnection, batchSize, idBlockSize, dictionaries, warnings, checkpoint);
+    }
+
+    private static Dictionaries load(Connection dbConnection) throws SQLException {
+        long startTime = System.currentTimeMillis();
+
+        Dictionaries dictionaries = new Dictionaries();
+        KeyDictionary brandMap = dictionaries.brandMap;
+        KeyDictionary productMap = dictionaries.productMap;
+        KeyDictionary variantMap = dictionaries.variantMap;
+        ContentHashes knownRows = dictionaries.knownRows;
+
+        // pgjdbc only streams a result set through a cursor, which needs a transaction
+        boolean autoCommit = dbConnection.getAutoCommit();
+        dbConnection.setAutoCommit(false);
+        try (Statement stmt = dbConnection.createStatement()) {
+            stmt.setFetchSize(FETCH_SIZE);
+            try (ResultSet rs = stmt.executeQuery(WARM_START)) {
+                while (rs.next()) {
+                    switch (rs.getInt(1)) {
+                        case 0: brandMap.put(rs.getString(2), rs.getInt(3)); break;
+                        case 1: productMap.put(rs.getString(2), rs.getInt(3)); break;
+                        case 2: variantMap.put(rs.getString(2), rs.getInt(3)); break;
+                        default: knownRows.add(rs.getLong(4));
+                    }
+                }
+            }
+        } finally {
+            dbConnection.setAutoCommit(autoCommit);
+        }
+
+        System.out.print("\nWarm start: " + brandMap.size() + " brands, " + productMap.size() + " products, "
+                + variantMap.size() + " variants, " + knownRows.size() + " known lines in "
+                + Utils.formatTime(System.currentTimeMillis() - startTime));
+        return dictionaries;
+    }
+
+    /**
+     * Content hashes of the lines already in the database, not modified until the sink is finished.
+     */
+    ContentHashes getKnownRows() {
+        return dictionaries.knownRows;
+    }
+
+    /**
+     * Dictionaries including the rows of this load, to be handed to the next load once it is committed.
+     */
+    Dictionaries getDictionaries() {
+        return dictionaries;
+    }
+
+    @Override
+    public void addRow(CsvRow row) throws SQLException {
+        super.addRow(row);
+        int idVariant = dictionaries.variantMap.get(row.variantId);
+        rowHashStmt.setLong(1, row.contentHash);
+        rowHashStmt.setInt(2, idVariant);
+        rowHashStmt.setInt(3, row.csvLine);
+        rowHashStmt.addBatch();
+        newRows.add(row.contentHash);
+        feedRows.add(row.contentHash);
+        feedVariants.set(idVariant);
+    }
+
+    /**
+     * Records a line of the feed already in the database, left as it is.
+     */
+    void keepRow(CsvRow row) {
+        feedRows.add(row.contentHash);
+        int idVariant = dictionaries.variantMap.get(row.variantId);
+        if (idVariant != KeyDictionary.NOT_FOUND) {
+            feedVariants.set(idVariant);
+        }
+    }
+
+    @Override
+    void executeBatches() throws SQLException {
+        super.executeBatches();
+        ROW_HASH_BATCH.executeBatch(rowHashStmt);
+    }
+
+    @Override
+    public void finish() throws SQLException {
+        super.finish();
+        rowHashStmt.close();
+        // The pipeline's workers are done with the known hashes
+        dictionaries.knownRows.addAll(newRows);
+        deleteStaleRows();
+    }
+
+    /**
+     * Deletes the lines of the feed's variants written before the load that the feed does not hold anymore.
+     */
+    private void deleteStaleRows() throws SQLException {
+        if (feedVariants.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int startRowHashId = checkpoint.startId("row_hash");
+        List<Integer> staleIds = new ArrayList<>();
+        try (PreparedStatement stmt = dbConnection.prepareStatement(SELECT_FEED_ROW_HASHES)) {
+            stmt.setArray(1, dbConnection.createArrayOf("integer", feedVariants.stream().boxed().toArray()));
+            stmt.setInt(2, startRowHashId);
+            stmt.setFetchSize(FETCH_SIZE);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (!feedRows.contains(rs.getLong(2))) {
+                        staleIds.add(rs.getInt(1));
+                        dictionaries.knownRows.remove(rs.getLong(2));
+                    }
+                }
+            }
+        }
+        if (staleIds.isEmpty()) {
+            return;
+        }
+
+        Array stale = dbConnection.createArrayOf("integer", staleIds.toArray());
+        int deleted = 0;
+        for (int i = 0; i < DELETE_STALE_ROWS.length; i++) {
+            try (PreparedStatement stmt = dbConnection.prepareStatement(DELETE_STALE_ROWS[i])) {
+                stmt.setArray(1, stale);
+                stmt.setInt(2, checkpoint.startId(STALE_ROW_TABLES[i]));
+                if (i == DELETE_STALE_ROWS.length - 1) {
+                    stmt.setInt(3, startRowHashId);
+                    stmt.setArray(4, stale);
+                }
+                deleted += stmt.executeUpdate();
+            }
+        }
+        try (PreparedStatement stmt = dbConnection.prepareStatement(UPDATE_STALE_GENDERS)) {
+            stmt.setArray(1, stale);
+            stmt.executeUpdate();
+        }
+        try (PreparedStatement stmt = dbConnection.prepareStatement(DELETE_STALE_ROW_HASHES)) {
+            stmt.setArray(1, stale);
+            stmt.executeUpdate();
+        }
+        System.out.print("\nStale lines: " + staleIds.size() + " replaced, " + deleted + " rows deleted in "
+                + Utils.formatTime(System.currentTimeMillis() - start));
+    }
+}
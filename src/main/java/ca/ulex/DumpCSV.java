@@ -1,82 +1,337 @@
 package ca.ulex;
 
+import org.postgresql.PGConnection;
+
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Array;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Dumps the ingested lines back to a CSV file with the columns of {@link Utils#CSV_HEADER}, ordered by product and
+ * csv_line, through a cursor or with COPY, both quoting as in RFC 4180. With {@code INGESTOR_DUMP_THREADS} above 1,
+ * ranges of products are dumped in parallel into part files, concatenated in order unless
+ * {@code INGESTOR_DUMP_PARTS=true}.
+ */
 public class DumpCSV
 {
+    final static String DUMP_MODE_CURSOR = "cursor";
+    final static String DUMP_MODE_COPY = "copy";
+
+    private static final int FETCH_SIZE = 10000;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String COPY_OPTIONS = " TO STDOUT WITH (FORMAT csv)";
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final String mode;
+    private final boolean gzip;
+    private final AtomicLong linesDumped = new AtomicLong();
+
+    private DumpCSV(String url, String user, String password, String mode, boolean gzip) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.mode = mode;
+        this.gzip = gzip;
+    }
+
     public static void main(String[] args) {
         String URL = System.getenv("INGESTOR_DB_URL");
         String USER = System.getenv("INGESTOR_DB_USER");
         String PASSWORD = System.getenv("INGESTOR_DB_PASSWORD");
         String CSV_FILE = System.getenv("INGESTOR_DB_CSV_OUTPUT");
+        String mode = Utils.getEnv("INGESTOR_DUMP_MODE", DUMP_MODE_CURSOR);
+        int threads = Utils.getEnvInt("INGESTOR_DUMP_THREADS", 1);
+        boolean keepParts = Boolean.parseBoolean(System.getenv("INGESTOR_DUMP_PARTS"));
+        boolean gzip = Boolean.parseBoolean(System.getenv("INGESTOR_DUMP_GZIP")) || CSV_FILE.endsWith(".gz");
+
+        if (!DUMP_MODE_CURSOR.equals(mode) && !DUMP_MODE_COPY.equals(mode)) {
+            throw new IllegalArgumentException("Invalid dump mode: " + mode);
+        }
+
+        long startTime = System.currentTimeMillis();
+        try {
+            long linesDumped = dump(URL, USER, PASSWORD, Paths.get(CSV_FILE), mode, threads, keepParts, gzip);
+
+            System.out.println("\nTotal lines dumped: " + linesDumped);
+            System.out.println("Total elapsed time: " + Utils.formatTime(System.currentTimeMillis() - startTime));
+            System.out.println("Data dumped successfully to " + CSV_FILE);
+        } catch (SQLException | IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Dumps the database to the file, returns the number of lines dumped.
+     */
+    static long dump(String url, String user, String password, Path csvFile, String mode, int threads,
+                     boolean keepParts, boolean gzip) throws SQLException, IOException, InterruptedException {
+        DumpCSV dump = new DumpCSV(url, user, password, mode, gzip);
+        if (threads > 1) {
+            dump.dumpParallel(csvFile, threads, keepParts);
+        } else {
+            try (OutputStream out = dump.open(csvFile)) {
+                writeHeader(out);
+                dump.dumpRange(out, null);
+            }
+        }
+        return dump.linesDumped.get();
+    }
 
-        String query = buildQuery();
+    /**
+     * Dumps each range of products into its own part file, each starting with the header if they are kept, or
+     * concatenated into the output file after a single header otherwise. Concatenated gzip streams are still a
+     * valid gzip file.
+     */
+    private void dumpParallel(Path csvFile, int threads, boolean keepParts)
+            throws SQLException, IOException, InterruptedException {
+        List<long[]> ranges;
+        try (Connection conn = Utils.getConnection(url, user, password)) {
+            ranges = productRanges(conn, threads);
+        }
 
-        try (Connection conn = DriverManager.getConnection(URL, USER, PASSWORD);
-             BufferedWriter writer = new BufferedWriter(new FileWriter(CSV_FILE))) {
+        List<Path> parts = new ArrayList<>();
+        for (int i = 0; i < ranges.size(); i++) {
+            parts.add(keepParts ? partPath(csvFile, i + 1) : Paths.get(csvFile + ".part" + (i + 1)));
+        }
 
-            writer.write(String.join(",", Utils.CSV_HEADER));
-            writer.newLine();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < ranges.size(); i++) {
+                Path part = parts.get(i);
+                long[] range = ranges.get(i);
+                futures.add(executor.submit(() -> {
+                    try (OutputStream out = open(part)) {
+                        if (keepParts) {
+                            writeHeader(out);
+                        }
+                        dumpRange(out, range);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
 
-            long startTime = System.currentTimeMillis();
-            int linesDumped = 0;
+        if (keepParts) {
+            System.out.println("\nParts written: " + parts.size());
+            return;
+        }
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(csvFile), BUFFER_SIZE)) {
+            try (OutputStream header = gzip ? new GZIPOutputStream(new KeepOpen(out)) : new KeepOpen(out)) {
+                writeHeader(header);
+            }
+            for (Path part : parts) {
+                Files.copy(part, out);
+                Files.delete(part);
+            }
+        }
+    }
 
-            try (Statement stmt = conn.createStatement();
-                 ResultSet rs = stmt.executeQuery(query)) {
+    /**
+     * Splits the product ids into ranges holding about the same number of products, as (low, high] bounds.
+     */
+    private static List<long[]> productRanges(Connection conn, int count) throws SQLException {
+        StringBuilder fractions = new StringBuilder();
+        for (int i = 1; i < count; i++) {
+            fractions.append(i == 1 ? "" : ", ").append((double) i / count);
+        }
+        String sql = "SELECT coalesce(max(id), 0), percentile_disc(ARRAY[" + fractions + "]) WITHIN GROUP (ORDER BY id) " +
+                "FROM product";
 
-                while (rs.next()) {
-                    writeRow(writer, rs);
-                    linesDumped++;
-                    if (linesDumped % 1000 == 0) {
-                        System.out.print("\rDumped lines: " + Utils.DECIMAL_FORMAT.format(linesDumped));
+        List<long[]> ranges = new ArrayList<>();
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            long maxId = rs.getLong(1);
+            Array bounds = rs.getArray(2);
+            long low = 0;
+            if (bounds != null) {
+                for (Integer bound : (Integer[]) bounds.getArray()) {
+                    if (bound > low) {
+                        ranges.add(new long[] {low, bound});
+                        low = bound;
                     }
                 }
+            }
+            ranges.add(new long[] {low, Math.max(low, maxId)});
+        }
+        return ranges;
+    }
 
-                System.out.println("\nTotal lines dumped: " + linesDumped);
-                System.out.println("Total elapsed time: " + Utils.formatTime(System.currentTimeMillis() - startTime));
+    private void dumpRange(OutputStream out, long[] range) throws SQLException, IOException {
+        String query = buildQuery(range);
+        try (Connection conn = Utils.getConnection(url, user, password)) {
+            // pgjdbc only streams a result set through a cursor, which needs a transaction
+            conn.setAutoCommit(false);
+            // The csv_line of each table being matched to the others, the planner expects a handful of lines and
+            // would probe the variants and the lookup tables once per line, hash joins are much faster
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("SET LOCAL enable_nestloop = off");
+            }
+            if (DUMP_MODE_COPY.equals(mode)) {
+                long lines = conn.unwrap(PGConnection.class).getCopyAPI().copyOut("COPY (" + query + ")" + COPY_OPTIONS, out);
+                linesDumped.addAndGet(lines);
+                conn.commit();
+                return;
             }
 
-            System.out.println("Data dumped successfully to " + CSV_FILE);
-        } catch (SQLException | IOException e) {
-            e.printStackTrace();
+            // Only flushed, the stream belongs to the caller
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+            String[] fields = new String[Utils.CSV_HEADER.length];
+            try (Statement stmt = conn.createStatement()) {
+                stmt.setFetchSize(FETCH_SIZE);
+                try (ResultSet rs = stmt.executeQuery(query)) {
+                    while (rs.next()) {
+                        for (int i = 0; i < fields.length; i++) {
+                            fields[i] = rs.getString(i + 1);
+                        }
+                        writeRow(writer, fields);
+                        long lines = linesDumped.incrementAndGet();
+                        if (lines % 10000 == 0) {
+                            System.out.print("\rDumped lines: " + Utils.DECIMAL_FORMAT.format(lines));
+                        }
+                    }
+                }
+            }
+            writer.flush();
+            conn.commit();
         }
     }
 
-    private static String buildQuery() {
-        return "SELECT b.id, p.id_brand, p.product_id, cb.id_product, cb.name, " +
-                "v.variant_id, cag.age_group, cg.gender, v.size_type, " +
-                "m.size_label, m.product_name, m.color, m.product_type " +
+    private static String buildQuery(long[] range) {
+        return "SELECT v.variant_id, p.product_id, sl.name, m.product_name, cb.name, c.name, " +
+                "cag.age_group, cg.gender, v.size_type, pt.name " +
                 "FROM product p " +
-                "JOIN brand b ON p.id_brand = b.id " +
                 "JOIN csv_brand cb ON cb.id_product = p.id " +
                 "JOIN variant v ON v.id_product = p.id " +
                 "JOIN csv_age_group cag ON cag.id_variant = v.id " +
                 "JOIN csv_gender cg ON cg.id_variant = v.id " +
                 "JOIN localized_meta m ON m.id_variant = v.id " +
-                "WHERE cag.csv_line = cg.csv_line AND cb.csv_line = cg.csv_line AND m.csv_line = cg.csv_line";
+                "LEFT JOIN size_label sl ON sl.id = m.id_size_label " +
+                "LEFT JOIN color c ON c.id = m.id_color " +
+                "LEFT JOIN product_type pt ON pt.id = m.id_product_type " +
+                "WHERE cag.csv_line = cg.csv_line AND cb.csv_line = cg.csv_line AND m.csv_line = cg.csv_line" +
+                (range == null ? "" : " AND p.id > " + range[0] + " AND p.id <= " + range[1]) +
+                " ORDER BY p.id, cg.csv_line";
+    }
+
+    private static void writeHeader(OutputStream out) throws IOException {
+        out.write((String.join(",", Utils.CSV_HEADER) + "\n").getBytes(StandardCharsets.UTF_8));
     }
 
-    private static void writeRow(BufferedWriter writer, ResultSet rs) throws SQLException, IOException {
-        String row = String.join(",",
-                rs.getString("variant_id"),
-                rs.getString("product_id"),
-                rs.getString("size_label"),
-                rs.getString("product_name"),
-                rs.getString("name"),
-                rs.getString("color"),
-                rs.getString("age_group"),
-                rs.getString("gender"),
-                rs.getString("size_type"),
-                rs.getString("product_type"));
-
-        writer.write(row);
-        writer.newLine();
+    static void writeRow(Writer writer, String[] fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeField(writer, fields[i]);
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * Same format as COPY's: a null is left empty, an empty string or one holding a comma, a quote or a line break is
+     * quoted, with its quotes doubled, and anything else is written as it is.
+     */
+    private static void writeField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        if (!needsQuotes(value)) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    private static boolean needsQuotes(String value) {
+        if (value.isEmpty()) {
+            return true;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private OutputStream open(Path path) throws IOException {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE);
+        return gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : out;
+    }
+
+    // dump.csv.gz gives dump-part-001.csv.gz
+    private static Path partPath(Path csvFile, int index) {
+        String name = csvFile.getFileName().toString();
+        int extension = name.indexOf('.');
+        String part = String.format("-part-%03d", index);
+        name = extension < 0 ? name + part : name.substring(0, extension) + part + name.substring(extension);
+        return csvFile.resolveSibling(name);
+    }
+
+    /**
+     * Leaves the underlying stream open when closed, so that several writers can follow each other on it.
+     */
+    private static class KeepOpen extends FilterOutputStream
+    {
+        KeepOpen(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
     }
 }
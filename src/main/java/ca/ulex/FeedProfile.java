@@ -0,0 +1,155 @@
+package ca.ulex;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data-quality profile of a CSV file, taken without a database: the distinct values of each column estimated by a
+ * {@link HyperLogLog}, the lines dropped, the locales detected and the warnings an ingestion would write, reported as
+ * JSON and as (metric, key, value) CSV lines.
+ */
+class FeedProfile implements RowSink
+{
+    private final WarningsSink warnings;
+    private final HyperLogLog[] distinct = new HyperLogLog[Utils.CSV_HEADER.length];
+    private final long[] empty = new long[Utils.CSV_HEADER.length];
+    private final Map<String, long[]> locales = new HashMap<>();
+
+    FeedProfile(WarningsSink warnings) {
+        this.warnings = warnings;
+        for (int i = 0; i < distinct.length; i++) {
+            distinct[i] = new HyperLogLog();
+        }
+    }
+
+    @Override
+    public void addRow(CsvRow row) throws SQLException {
+        distinct[0].add(row.variantId);
+        distinct[1].add(row.productId);
+        distinct[2].add(row.sizeLabel);
+        distinct[3].add(row.productName);
+        distinct[4].add(row.brand);
+        distinct[5].add(row.color);
+        distinct[6].add(row.ageGroup);
+        distinct[7].add(row.gender);
+        distinct[8].add(row.sizeType);
+        distinct[9].add(row.productType);
+        locales.computeIfAbsent(row.locale.isEmpty() ? "unknown" : row.locale, k -> new long[1])[0]++;
+    }
+
+    @Override
+    public void dropRow(int csvLine, int emptyField) throws SQLException {
+        warnings.add(csvLine, "WARNING_EMPTY_FIELD", Ingestor.WARNING_EMPTY_FIELD + emptyField);
+        empty[emptyField - 1]++;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    void print(IngestPipeline pipeline) {
+        System.out.println("\nTotal lines: " + Utils.DECIMAL_FORMAT.format(pipeline.csvLine) + " ("
+                + Utils.DECIMAL_FORMAT.format(pipeline.linesIngested) + " kept, "
+                + Utils.DECIMAL_FORMAT.format(pipeline.linesDropped) + " dropped)");
+        System.out.println("\nColumns (distinct values, lines dropped):");
+        for (int i = 0; i < distinct.length; i++) {
+            System.out.println(String.format("    %-14s : %,d, %,d", Utils.CSV_HEADER[i], distinct[i].estimate(),
+                    empty[i]));
+        }
+        System.out.println("\nLocales:");
+        for (Map.Entry<String, long[]> entry : sortedLocales()) {
+            System.out.println(String.format("    %-14s : %,d", entry.getKey(), entry.getValue()[0]));
+        }
+        System.out.println("\nNumber of warnings : " + pipeline.warnings);
+        warnings.printStats();
+    }
+
+    /**
+     * Writes the report to {@code reportPath}.json and {@code reportPath}.csv.
+     */
+    void write(String reportPath, String csvFilePath, IngestPipeline pipeline, long elapsedMillis)
+            throws IOException {
+        Files.write(Paths.get(reportPath + ".json"),
+                toJson(csvFilePath, pipeline, elapsedMillis).getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(reportPath + ".csv"), toCsv(pipeline).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Profile written to " + reportPath + ".json and " + reportPath + ".csv");
+    }
+
+    private String toJson(String csvFilePath, IngestPipeline pipeline, long elapsedMillis) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"file\": ").append(quote(csvFilePath))
+                .append(", \"lines\": ").append(pipeline.csvLine)
+                .append(", \"kept\": ").append(pipeline.linesIngested)
+                .append(", \"dropped\": ").append(pipeline.linesDropped)
+                .append(", \"warnings\": ").append(pipeline.warnings)
+                .append(", \"elapsed_ms\": ").append(elapsedMillis)
+                .append(",\n \"columns\": {");
+        for (int i = 0; i < distinct.length; i++) {
+            json.append(i == 0 ? "" : ", ").append(quote(Utils.CSV_HEADER[i]))
+                    .append(": {\"distinct\": ").append(distinct[i].estimate())
+                    .append(", \"empty\": ").append(empty[i]).append('}');
+        }
+        json.append("},\n \"locales\": {");
+        String separator = "";
+        for (Map.Entry<String, long[]> entry : sortedLocales()) {
+            json.append(separator).append(quote(entry.getKey())).append(": ").append(entry.getValue()[0]);
+            separator = ", ";
+        }
+        json.append("},\n \"warnings_by_type\": {");
+        separator = "";
+        for (Map.Entry<String, Integer> entry : warnings.getCounts().entrySet()) {
+            json.append(separator).append(quote(entry.getKey())).append(": ").append(entry.getValue());
+            separator = ", ";
+        }
+        return json.append("}}\n").toString();
+    }
+
+    private String toCsv(IngestPipeline pipeline) {
+        StringBuilder csv = new StringBuilder("metric,key,value\n");
+        csv.append("lines,,").append(pipeline.csvLine).append('\n');
+        csv.append("kept,,").append(pipeline.linesIngested).append('\n');
+        csv.append("dropped,,").append(pipeline.linesDropped).append('\n');
+        csv.append("warnings,,").append(pipeline.warnings).append('\n');
+        for (int i = 0; i < distinct.length; i++) {
+            csv.append("distinct,").append(Utils.CSV_HEADER[i]).append(',').append(distinct[i].estimate())
+                    .append('\n');
+        }
+        for (int i = 0; i < empty.length; i++) {
+            csv.append("empty,").append(Utils.CSV_HEADER[i]).append(',').append(empty[i]).append('\n');
+        }
+        // Locales and warning types are plain codes, with no comma nor quote to escape
+        for (Map.Entry<String, long[]> entry : sortedLocales()) {
+            csv.append("locale,").append(entry.getKey()).append(',').append(entry.getValue()[0]).append('\n');
+        }
+        for (Map.Entry<String, Integer> entry : warnings.getCounts().entrySet()) {
+            csv.append("warning,").append(entry.getKey()).append(',').append(entry.getValue()).append('\n');
+        }
+        return csv.toString();
+    }
+
+    /**
+     * The locales, the most frequent first.
+     */
+    private List<Map.Entry<String, long[]>> sortedLocales() {
+        List<Map.Entry<String, long[]>> sorted = new ArrayList<>(locales.entrySet());
+        sorted.sort((a, b) -> a.getValue()[0] != b.getValue()[0]
+                ? Long.compare(b.getValue()[0], a.getValue()[0]) : a.getKey().compareTo(b.getKey()));
+        return sorted;
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t") + "\"";
+    }
+}
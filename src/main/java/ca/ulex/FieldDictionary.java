@@ -0,0 +1,134 @@
+package ca.ulex;
+
+/**
+ * Canonical instances of the normalized values of one low-cardinality column, each with a small integer code
+ * numbered from 0 in order of first appearance. Shared by the pipeline's workers: lookups read an open addressing
+ * table without locking, with chars straight from a normalization buffer, and only the values seen for the first
+ * time take the lock to be added. Past its maximum size, new values are no longer interned.
+ */
+final class FieldDictionary
+{
+    static final int NOT_INTERNED = -1;
+
+    private final String column;
+    private final int maxSize;
+    private volatile Entry[] table = new Entry[16];
+    private int size = 0;
+
+    FieldDictionary(String column, int maxSize) {
+        this.column = column;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * The entry of the first length chars of the buffer, whose hash is that of the same String, or null.
+     */
+    Entry get(char[] chars, int length, int hash) {
+        Entry[] entries = table;
+        int mask = entries.length - 1;
+        for (int slot = mix(hash) & mask; entries[slot] != null; slot = (slot + 1) & mask) {
+            Entry entry = entries[slot];
+            if (entry.hash == hash && entry.matches(chars, length)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    Entry get(String value) {
+        Entry[] entries = table;
+        int mask = entries.length - 1;
+        int hash = value.hashCode();
+        for (int slot = mix(hash) & mask; entries[slot] != null; slot = (slot + 1) & mask) {
+            Entry entry = entries[slot];
+            if (entry.hash == hash && entry.value.equals(value)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the value if another thread has not in the meantime, returns null once the dictionary is full.
+     */
+    synchronized Entry add(String value) {
+        Entry entry = get(value);
+        if (entry != null) {
+            return entry;
+        }
+        if (size >= maxSize) {
+            return null;
+        }
+        if (2 * (size + 1) > table.length) {
+            resize();
+        }
+        entry = new Entry(value, size++);
+        insert(table, entry);
+        return entry;
+    }
+
+    String getColumn() {
+        return column;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size() >= maxSize;
+    }
+
+    // Readers keep probing the old table until the new one is published
+    private void resize() {
+        Entry[] entries = new Entry[2 * table.length];
+        for (Entry entry : table) {
+            if (entry != null) {
+                insert(entries, entry);
+            }
+        }
+        table = entries;
+    }
+
+    private static void insert(Entry[] entries, Entry entry) {
+        int mask = entries.length - 1;
+        int slot = mix(entry.hash) & mask;
+        while (entries[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        entries[slot] = entry;
+    }
+
+    private static int mix(int hash) {
+        int mixed = hash * 0x9E3779B9;
+        return mixed ^ mixed >>> 16;
+    }
+
+    /**
+     * A canonical value and its code; immutable, so that it can be read without locking.
+     */
+    static final class Entry
+    {
+        final String value;
+        final int code;
+        final int hash;
+
+        Entry(String value, int code) {
+            this.value = value;
+            this.code = code;
+            this.hash = value.hashCode();
+        }
+
+        private boolean matches(char[] chars, int length) {
+            if (value.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (value.charAt(i) != chars[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
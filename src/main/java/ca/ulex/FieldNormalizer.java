@@ -0,0 +1,210 @@
+package ca.ulex;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Normalizes the fields of a line into a reusable char buffer, with the results of {@link Utils#normalizeText} and
+ * of the String case mappings, and looks the low-cardinality columns up in their {@link FieldDictionary}. An
+ * instance is not thread-safe, each pipeline worker owns one.
+ */
+final class FieldNormalizer
+{
+    // As in String.toLowerCase(), these locales have their own rules
+    private static final boolean LOCALE_RULES = isLocaleWithRules(Locale.getDefault());
+
+    static final FieldDictionary SIZE_LABELS = new FieldDictionary("size_label", Ingestor.FIELD_DICTIONARY_SIZE);
+    static final FieldDictionary COLORS = new FieldDictionary("color", Ingestor.FIELD_DICTIONARY_SIZE);
+    static final FieldDictionary AGE_GROUPS = new FieldDictionary("age_group", Ingestor.FIELD_DICTIONARY_SIZE);
+    static final FieldDictionary GENDERS = new FieldDictionary("gender", Ingestor.FIELD_DICTIONARY_SIZE);
+    static final FieldDictionary SIZE_TYPES = new FieldDictionary("size_type", Ingestor.FIELD_DICTIONARY_SIZE);
+    static final FieldDictionary PRODUCT_TYPES = new FieldDictionary("product_type", Ingestor.FIELD_DICTIONARY_SIZE);
+    private static final FieldDictionary[] DICTIONARIES = {SIZE_LABELS, COLORS, AGE_GROUPS, GENDERS, SIZE_TYPES,
+            PRODUCT_TYPES};
+
+    private char[] buffer = new char[64];
+    private int length;
+    // Gender flag + 1 by gender code, 0 if not computed yet
+    private int[] genderFlags = new int[8];
+
+    /**
+     * Same as {@link Utils#normalizeText}.
+     */
+    String normalizeText(String input) {
+        if (!normalizeTextToBuffer(input)) {
+            return Utils.normalizeText(input);
+        }
+        return toString(input);
+    }
+
+    FieldDictionary.Entry normalizeText(String input, FieldDictionary dictionary) {
+        if (!normalizeTextToBuffer(input)) {
+            return intern(Utils.normalizeText(input), dictionary);
+        }
+        return internBuffer(input, dictionary);
+    }
+
+    /**
+     * Same as {@link String#toLowerCase()}.
+     */
+    FieldDictionary.Entry lowerCase(String input, FieldDictionary dictionary) {
+        if (LOCALE_RULES || !lowerCaseToBuffer(input, 0, input.length())) {
+            return intern(input.toLowerCase(), dictionary);
+        }
+        return internBuffer(input, dictionary);
+    }
+
+    /**
+     * Same as {@link String#toUpperCase()}.
+     */
+    FieldDictionary.Entry upperCase(String input, FieldDictionary dictionary) {
+        if (LOCALE_RULES || !upperCaseToBuffer(input)) {
+            return intern(input.toUpperCase(), dictionary);
+        }
+        return internBuffer(input, dictionary);
+    }
+
+    /**
+     * The value as it is.
+     */
+    FieldDictionary.Entry intern(String value, FieldDictionary dictionary) {
+        FieldDictionary.Entry entry = dictionary.get(value);
+        if (entry != null) {
+            return entry;
+        }
+        entry = dictionary.add(value);
+        return entry != null ? entry : new FieldDictionary.Entry(value, FieldDictionary.NOT_INTERNED);
+    }
+
+    /**
+     * Flag of a gender as given by {@link GenderAccumulator#flag}, computed once per gender code.
+     */
+    int genderFlag(FieldDictionary.Entry gender) {
+        int code = gender.code;
+        if (code == FieldDictionary.NOT_INTERNED) {
+            return GenderAccumulator.flag(gender.value);
+        }
+        if (code >= genderFlags.length) {
+            genderFlags = Arrays.copyOf(genderFlags, Math.max(code + 1, 2 * genderFlags.length));
+        }
+        if (genderFlags[code] == 0) {
+            genderFlags[code] = GenderAccumulator.flag(gender.value) + 1;
+        }
+        return genderFlags[code] - 1;
+    }
+
+    static void printStats() {
+        System.out.println("\nField dictionaries:");
+        for (FieldDictionary dictionary : DICTIONARIES) {
+            System.out.println(String.format("    %-15s: %,d values%s", dictionary.getColumn(), dictionary.size(),
+                    dictionary.isFull() ? " (full)" : ""));
+        }
+    }
+
+    /**
+     * Lowercases, trims and capitalizes the input into the buffer, returns false if it has to go through
+     * {@link Utils#normalizeText}, which also takes care of the null, empty and blank inputs.
+     */
+    private boolean normalizeTextToBuffer(String input) {
+        if (input == null || LOCALE_RULES) {
+            return false;
+        }
+        // Trimming first gives the same result: no character is lowercased to or from the trimmed ones
+        int start = 0;
+        int end = input.length();
+        while (start < end && input.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && input.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start == end || !lowerCaseToBuffer(input, start, end)) {
+            return false;
+        }
+        buffer[0] = Character.toUpperCase(buffer[0]);
+        return true;
+    }
+
+    private boolean lowerCaseToBuffer(String input, int start, int end) {
+        ensureCapacity(2 * (end - start));
+        length = 0;
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if (c < 0x80) {
+                buffer[length++] = c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+                continue;
+            }
+            // Dotted capital I and capital sigma are lowercased depending on what surrounds them
+            if (c == '\u0130' || c == '\u03A3') {
+                return false;
+            }
+            int codePoint = input.codePointAt(i);
+            length += Character.toChars(Character.toLowerCase(codePoint), buffer, length);
+            i += Character.charCount(codePoint) - 1;
+        }
+        return true;
+    }
+
+    // Some non-ASCII characters have an upper case of several characters, only ASCII is done here
+    private boolean upperCaseToBuffer(String input) {
+        ensureCapacity(input.length());
+        length = input.length();
+        for (int i = 0; i < length; i++) {
+            char c = input.charAt(i);
+            if (c >= 0x80) {
+                return false;
+            }
+            buffer[i] = c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c;
+        }
+        return true;
+    }
+
+    /**
+     * The canonical entry of the buffer's value, the input itself becoming the canonical String when it is already
+     * normalized.
+     */
+    private FieldDictionary.Entry internBuffer(String input, FieldDictionary dictionary) {
+        int hash = hash();
+        FieldDictionary.Entry entry = dictionary.get(buffer, length, hash);
+        if (entry != null) {
+            return entry;
+        }
+        return intern(toString(input), dictionary);
+    }
+
+    private String toString(String input) {
+        if (input.length() == length && input.hashCode() == hash() && matches(input)) {
+            return input;
+        }
+        return new String(buffer, 0, length);
+    }
+
+    private boolean matches(String value) {
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != buffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same as String.hashCode()
+    private int hash() {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        return hash;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.length < capacity) {
+            buffer = new char[Math.max(capacity, 2 * buffer.length)];
+        }
+    }
+
+    private static boolean isLocaleWithRules(Locale locale) {
+        String language = locale.getLanguage();
+        return "tr".equals(language) || "az".equals(language) || "lt".equals(language);
+    }
+}
@@ -0,0 +1,161 @@
+package ca.ulex;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Genders seen on the lines of each variant, kept as bitmasks so that a flush writes one UPDATE per variant, and only
+ * with the genders its row does not have yet. The variant rows must reach the database before {@link #flush}.
+ */
+class GenderAccumulator
+{
+    static final int MALE = 1;
+    static final int FEMALE = 2;
+    static final int UNISEX = 4;
+
+    private static final int PENDING_SHIFT = 3;
+    private static final float LOAD_FACTOR = 0.6f;
+    private static final String UPDATE_GENDERS = "UPDATE variant SET gender_male = gender_male OR ?, " +
+            "gender_female = gender_female OR ?, gender_unisex = gender_unisex OR ? WHERE id = ?";
+    private static final Metrics.Stage UPDATE_GENDERS_BATCH = Metrics.stage("batch.variant_genders");
+
+    private final Connection dbConnection;
+    private final int maxSize;
+    private int[] ids = new int[16];
+    private byte[] flags = new byte[16];
+    private int size = 0;
+    private int pending = 0;
+    private PreparedStatement stmt;
+
+    GenderAccumulator(Connection dbConnection, int maxSize) {
+        this.dbConnection = dbConnection;
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * Flag of a valid gender, 0 for any other value.
+     */
+    static int flag(String gender) {
+        switch (gender.toLowerCase()) {
+            case "male": return MALE;
+            case "female": return FEMALE;
+            case "unisex": return UNISEX;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Records a variant inserted with the gender flag of its first line.
+     */
+    void inserted(int idVariant, int flag) {
+        // slot() may grow the table, it must be called before reading the array
+        int slot = slot(idVariant);
+        flags[slot] = (byte) flag;
+    }
+
+    /**
+     * Records the gender flag of another line of an existing variant.
+     */
+    void add(int idVariant, int flag) {
+        if (flag == 0) {
+            return;
+        }
+        int slot = slot(idVariant);
+        int bits = flags[slot] & 0xFF;
+        if (((bits | bits >> PENDING_SHIFT) & flag) != 0) {
+            return;
+        }
+        if (bits >> PENDING_SHIFT == 0) {
+            pending++;
+        }
+        flags[slot] = (byte) (bits | flag << PENDING_SHIFT);
+    }
+
+    boolean isFull() {
+        return size >= maxSize;
+    }
+
+    /**
+     * Writes the pending flags as one batch, they are then known to be stored.
+     */
+    void flush() throws SQLException {
+        if (pending == 0) {
+            return;
+        }
+        if (stmt == null) {
+            stmt = dbConnection.prepareStatement(UPDATE_GENDERS);
+        }
+        for (int slot = 0; slot < ids.length; slot++) {
+            int pendingFlags = (flags[slot] & 0xFF) >> PENDING_SHIFT;
+            if (ids[slot] == 0 || pendingFlags == 0) {
+                continue;
+            }
+            stmt.setBoolean(1, (pendingFlags & MALE) != 0);
+            stmt.setBoolean(2, (pendingFlags & FEMALE) != 0);
+            stmt.setBoolean(3, (pendingFlags & UNISEX) != 0);
+            stmt.setInt(4, ids[slot]);
+            stmt.addBatch();
+            flags[slot] = (byte) ((flags[slot] | pendingFlags) & ((1 << PENDING_SHIFT) - 1));
+        }
+        UPDATE_GENDERS_BATCH.executeBatch(stmt);
+        pending = 0;
+    }
+
+    /**
+     * Forgets the variants, to be called once flushed.
+     */
+    void clear() {
+        ids = new int[16];
+        flags = new byte[16];
+        size = 0;
+    }
+
+    void close() throws SQLException {
+        flush();
+        if (stmt != null) {
+            stmt.close();
+            stmt = null;
+        }
+    }
+
+    // Slot of the variant, added with no flags if it was not there
+    private int slot(int idVariant) {
+        int mask = ids.length - 1;
+        int slot = mix(idVariant) & mask;
+        for (; ids[slot] != 0; slot = (slot + 1) & mask) {
+            if (ids[slot] == idVariant) {
+                return slot;
+            }
+        }
+        ids[slot] = idVariant;
+        flags[slot] = 0;
+        if (++size > ids.length * LOAD_FACTOR) {
+            rehash();
+            return slot(idVariant);
+        }
+        return slot;
+    }
+
+    private static int mix(int id) {
+        return id * 0x9E3779B9;
+    }
+
+    private void rehash() {
+        int[] oldIds = ids;
+        byte[] oldFlags = flags;
+        ids = new int[oldIds.length * 2];
+        flags = new byte[oldIds.length * 2];
+        int mask = ids.length - 1;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != 0) {
+                int slot = mix(oldIds[i]) & mask;
+                while (ids[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                ids[slot] = oldIds[i];
+                flags[slot] = oldFlags[i];
+            }
+        }
+    }
+}
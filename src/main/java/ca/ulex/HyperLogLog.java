@@ -0,0 +1,64 @@
+package ca.ulex;
+
+/**
+ * Estimate of the number of distinct strings added, in a fixed 64 KB whatever their number: each string is hashed
+ * to 64 bits, the first {@link #PRECISION} bits pick a register, which keeps the longest run of leading zeros seen in
+ * the rest. The estimate is typically within 0.4% of the exact count; below about 260,000, it is computed from the
+ * number of registers left empty instead, which is within a value or two for a few hundred values. Past 2.5 values
+ * per register, where the usual switch happens, the register estimate still runs about 2% high: the count from the
+ * empty registers is kept up to 4 values per register, and is within 0.7% there.
+ */
+final class HyperLogLog
+{
+    private static final int PRECISION = 16;
+    private static final int REGISTERS = 1 << PRECISION;
+
+    private final byte[] registers = new byte[REGISTERS];
+
+    void add(String value) {
+        long hash = hash(value);
+        int index = (int) (hash >>> (64 - PRECISION));
+        // The bit set past the end of the hash bounds the run of zeros when the rest is all zeros
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    long estimate() {
+        double sum = 0;
+        int empty = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                empty++;
+            }
+        }
+        if (empty > 0) {
+            double linearCount = REGISTERS * Math.log((double) REGISTERS / empty);
+            if (linearCount <= 4.0 * REGISTERS) {
+                return Math.round(linearCount);
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        return Math.round(alpha * REGISTERS * REGISTERS / sum);
+    }
+
+    /**
+     * FNV-1a over the chars, its bits then mixed as in MurmurHash3's finalizer, so that the first ones are as
+     * random as the others.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,193 @@
+package ca.ulex;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Service mode: the CSV files dropped into a directory, and optionally a stream on the standard input, are ingested
+ * one at a time by a process that stays warm. Files are picked up once their size stops changing, and moved to the
+ * done or the failed subdirectory.
+ */
+class IngestDaemon
+{
+    private static final String DONE_DIR = "done";
+    private static final String FAILED_DIR = "failed";
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long RETRY_MILLIS = 2000;
+    private static final long SETTLE_MILLIS = 100;
+
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final boolean autoCommit;
+    private final String loadMode;
+    private Connection dbConnection;
+
+    private interface Load
+    {
+        IngestPipeline run(Connection dbConnection) throws SQLException;
+    }
+
+    IngestDaemon(String dbUrl, String dbUser, String dbPassword, boolean autoCommit, String loadMode) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        this.autoCommit = autoCommit;
+        this.loadMode = loadMode;
+    }
+
+    /**
+     * Ingests the standard input if asked to, then watches the directory until the process is stopped. Without a
+     * directory, returns once the standard input is ingested.
+     */
+    void run(Path watchDir, boolean readStdin) throws IOException, InterruptedException {
+        if (readStdin) {
+            // A stream cannot be read twice, it gets a single attempt
+            ingest("stdin", 1, dbConnection -> Ingestor.ingestStream(System.in, dbConnection, loadMode, true));
+        }
+        if (watchDir == null) {
+            closeConnection();
+            return;
+        }
+
+        Files.createDirectories(watchDir.resolve(DONE_DIR));
+        Files.createDirectories(watchDir.resolve(FAILED_DIR));
+        try (WatchService watchService = watchDir.getFileSystem().newWatchService()) {
+            // Registered before the first listing, so that no file is missed in between
+            watchDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            System.out.println("Watching " + watchDir.toAbsolutePath() + " for CSV files");
+            while (true) {
+                for (Path csvFile : listCsvFiles(watchDir)) {
+                    waitUntilWritten(csvFile);
+                    String csvFilePath = csvFile.toString();
+                    IngestPipeline pipeline = ingest(csvFile.getFileName().toString(), MAX_ATTEMPTS,
+                            dbConnection -> Ingestor.ingestCSV(csvFilePath, dbConnection, loadMode));
+                    Path target = watchDir.resolve(pipeline == null ? FAILED_DIR : DONE_DIR).resolve(csvFile.getFileName());
+                    Files.move(csvFile, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+
+                WatchKey key = watchService.take();
+                key.pollEvents();
+                if (!key.reset()) {
+                    throw new IOException("Watched directory is no longer accessible: " + watchDir);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the load, retrying from its checkpoint on database errors, and reports its throughput. Returns null if
+     * the load failed.
+     */
+    private IngestPipeline ingest(String name, int attempts, Load load) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        IngestPipeline pipeline = null;
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            try {
+                if (dbConnection == null) {
+                    dbConnection = Utils.getConnection(dbUrl, dbUser, dbPassword);
+                    dbConnection.setAutoCommit(autoCommit);
+                }
+                Ingestor.LOADS.lock();
+                try {
+                    pipeline = load.run(dbConnection);
+                    if (pipeline == null) {
+                        // The CSV could not be read, retrying would not help
+                        rollback();
+                    } else if (!autoCommit) {
+                        dbConnection.commit();
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    // Dropped before the next load can take them
+                    Ingestor.deltaDictionaries = null;
+                    throw e;
+                } finally {
+                    Ingestor.LOADS.unlock();
+                }
+                break;
+            } catch (SQLException e) {
+                pipeline = null;
+                System.err.println("Database error on " + name + ": " + e.getMessage());
+                closeConnection();
+                if (attempt < attempts) {
+                    System.out.println("Retrying " + name + " in " + RETRY_MILLIS / 1000 + "s.");
+                    Thread.sleep(RETRY_MILLIS);
+                }
+            } catch (RuntimeException e) {
+                pipeline = null;
+                System.err.println("An error occurred on " + name + ": " + e.getMessage());
+                e.printStackTrace();
+                rollback();
+                break;
+            }
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        if (pipeline == null) {
+            System.out.println("\n" + name + ": failed after " + Utils.formatTime(elapsed));
+        } else {
+            System.out.println("\n" + name + ": " + Utils.DECIMAL_FORMAT.format(pipeline.csvLine) + " lines ("
+                    + pipeline.linesIngested + " ingested, " + pipeline.linesDropped + " dropped, "
+                    + pipeline.warnings + " warnings) in " + Utils.formatTime(elapsed) + ", "
+                    + Utils.DECIMAL_FORMAT.format(pipeline.csvLine * 1000L / elapsed) + " lines/s");
+        }
+        return pipeline;
+    }
+
+    private static List<Path> listCsvFiles(Path watchDir) throws IOException {
+        List<Path> csvFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(watchDir, "*.csv")) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path)) {
+                    csvFiles.add(path);
+                }
+            }
+        }
+        csvFiles.sort(null);
+        return csvFiles;
+    }
+
+    private static void waitUntilWritten(Path csvFile) throws IOException, InterruptedException {
+        long size = Files.size(csvFile);
+        while (true) {
+            Thread.sleep(SETTLE_MILLIS);
+            long newSize = Files.size(csvFile);
+            if (newSize == size) {
+                return;
+            }
+            size = newSize;
+        }
+    }
+
+    private void rollback() {
+        try {
+            if (dbConnection != null && !autoCommit) {
+                dbConnection.rollback();
+            }
+        } catch (SQLException e) {
+            closeConnection();
+        }
+    }
+
+    private void closeConnection() {
+        if (dbConnection == null) {
+            return;
+        }
+        try {
+            dbConnection.close();
+        } catch (SQLException e) {
+            // Ignore
+        }
+        dbConnection = null;
+    }
+}
@@ -0,0 +1,34 @@
+package ca.ulex;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link Metrics}, counted since the start of the process. The stage maps are keyed by stage name.
+ */
+public interface IngestMetricsMXBean
+{
+    long getLinesWritten();
+
+    /**
+     * Rate over the last period logged by the current or last run.
+     */
+    double getLinesPerSecond();
+
+    long getRoundTrips();
+
+    long getBatches();
+
+    long getBatchedStatements();
+
+    double getLocaleCacheHitRate();
+
+    Map<String, Long> getStageCounts();
+
+    Map<String, Double> getStageMeanMicros();
+
+    Map<String, Double> getStageP50Micros();
+
+    Map<String, Double> getStageP99Micros();
+
+    Map<String, Double> getStageMaxMicros();
+}
@@ -0,0 +1,437 @@
+package ca.ulex;
+
+import com.opencsv.exceptions.CsvException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Staged ingestion: a reader thread cuts the CSV into chunks, a pool of workers parses, normalizes and detects the
+ * locale of their lines, and the calling thread writes them to the {@link RowSink} in csv_line order. The stages are
+ * joined by bounded queues, so a slow writer throttles the reader.
+ */
+class IngestPipeline
+{
+    private static final int CHUNK_LINES = 500;
+    private static final long POLL_MILLIS = 100;
+
+    private static final Chunk END = new Chunk(-1);
+    private static final Metrics.Stage PARSE = Metrics.stage("parse");
+    private static final Metrics.Stage ADD_ROW = Metrics.stage("sink.add_row");
+
+    // Kept warm across the runs of a long-lived process, each cache owning its language detector
+    private static final Queue<LocaleCache> localeCaches = new ConcurrentLinkedQueue<>();
+
+    private final CsvSource csvSource;
+    private final long chunkBytes;
+    private final RowSink sink;
+    private final BrandTracker brandTracker;
+    private final ConsistencyChecker consistency;
+    private final ChunkListener chunkListener;
+    private final int workers;
+    private final BlockingQueue<Chunk> parseQueue;
+    private final BlockingQueue<Chunk> writeQueue;
+    private final Semaphore chunksInFlight;
+    private volatile Throwable failure;
+
+    private final AtomicLong readerStallNanos = new AtomicLong();
+    private final AtomicLong workersInputStallNanos = new AtomicLong();
+    private final AtomicLong workersOutputStallNanos = new AtomicLong();
+    private final AtomicLong writerStallNanos = new AtomicLong();
+
+    int csvLine = 0;
+    int linesIngested = 0;
+    int linesDropped = 0;
+    int linesUnchanged = 0;
+    // Set once the ingestion is over, post-processing included
+    int warnings = 0;
+    // System.nanoTime of the first line handed to the sink, 0 until then
+    long firstRowNanos = 0;
+    // Delta mode only: the workers read the known hashes, the writer hands the unchanged lines to the sink
+    ContentHashes knownRows;
+    DeltaSink delta;
+    // The locale of an unchanged line is only needed by a rule reading it
+    private final boolean detectUnchanged;
+
+    IngestPipeline(CsvSource csvSource, RowSink sink, BrandTracker brandTracker, ConsistencyChecker consistency,
+                   ChunkListener chunkListener, int workers, long chunkBytes) {
+        this.csvSource = csvSource;
+        this.chunkBytes = Math.max(1, chunkBytes);
+        this.sink = sink;
+        this.brandTracker = brandTracker;
+        this.consistency = consistency;
+        this.detectUnchanged = consistency.readsContext();
+        this.chunkListener = chunkListener;
+        this.workers = Math.max(1, workers);
+        this.parseQueue = new ArrayBlockingQueue<>(2 * this.workers);
+        this.writeQueue = new ArrayBlockingQueue<>(2 * this.workers);
+        // Also bounds the chunks waiting for an earlier one to be written
+        this.chunksInFlight = new Semaphore(4 * this.workers);
+    }
+
+    void run() throws IOException, SQLException, CsvException {
+        List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(this::read, "ingest-reader"));
+        for (int i = 0; i < workers; i++) {
+            threads.add(new Thread(this::process, "ingest-worker-" + i));
+        }
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long allocated = Metrics.threadAllocatedBytes();
+        try {
+            write();
+        } catch (SQLException | IOException | CsvException | RuntimeException e) {
+            // Also stops the reader and the workers when the writer is interrupted
+            failure = e;
+            throw e;
+        } finally {
+            Metrics.allocatedBytes.add(Metrics.threadAllocatedBytes() - allocated);
+            joinAll(threads);
+        }
+    }
+
+    void printStallTimes() {
+        System.out.println("\nStage stall times:");
+        System.out.println("    Reader (queue full)      : " + formatNanos(readerStallNanos.get()));
+        System.out.println("    Workers (waiting input)  : " + formatNanos(workersInputStallNanos.get()));
+        System.out.println("    Workers (queue full)     : " + formatNanos(workersOutputStallNanos.get()));
+        System.out.println("    Writer (waiting input)   : " + formatNanos(writerStallNanos.get()));
+    }
+
+    private void read() {
+        long allocated = Metrics.threadAllocatedBytes();
+        try {
+            // A single worker would only pay for the extra boundary scan
+            if (csvSource instanceof MappedCsvReader && workers > 1) {
+                splitRanges((MappedCsvReader) csvSource);
+            } else {
+                readLines();
+            }
+        } catch (Throwable e) {
+            failure = e;
+        } finally {
+            for (int i = 0; i < workers; i++) {
+                put(parseQueue, END, readerStallNanos);
+            }
+            Metrics.allocatedBytes.add(Metrics.threadAllocatedBytes() - allocated);
+        }
+    }
+
+    private void splitRanges(MappedCsvReader reader) throws IOException {
+        long sequence = 0;
+        long start = reader.position();
+        while (failure == null && start < reader.size()) {
+            long end = reader.skipTo(start + chunkBytes);
+            Chunk chunk = new Chunk(sequence++);
+            chunk.start = start;
+            chunk.end = end;
+            if (!acquireChunk() || !put(parseQueue, chunk, readerStallNanos)) {
+                return;
+            }
+            start = end;
+        }
+    }
+
+    private void readLines() throws IOException, CsvException {
+        long sequence = 0;
+        Chunk chunk = new Chunk(sequence++);
+        while (failure == null && next(csvSource)) {
+            // Lines with an empty field are dropped without decoding any of their fields
+            int emptyField = csvSource.emptyField();
+            chunk.add(emptyField > 0 ? null : csvSource.fields(), emptyField);
+            if (chunk.lines.size() == CHUNK_LINES) {
+                chunk.end = csvSource.position();
+                if (!acquireChunk() || !put(parseQueue, chunk, readerStallNanos)) {
+                    return;
+                }
+                chunk = new Chunk(sequence++);
+            }
+        }
+        chunk.end = csvSource.position();
+        if (chunk.lines != null && acquireChunk()) {
+            put(parseQueue, chunk, readerStallNanos);
+        }
+    }
+
+    private void process() {
+        long allocated = Metrics.threadAllocatedBytes();
+        LocaleCache localeCache = null;
+        FieldNormalizer normalizer = new FieldNormalizer();
+        try {
+            localeCache = takeLocaleCache();
+            Chunk chunk;
+            while ((chunk = take(parseQueue, workersInputStallNanos)) != END && chunk != null) {
+                if (chunk.lines == null) {
+                    parseRange(chunk, normalizer, localeCache);
+                } else {
+                    processLines(chunk, normalizer, localeCache);
+                }
+                put(writeQueue, chunk, workersOutputStallNanos);
+            }
+        } catch (Throwable e) {
+            failure = e;
+        } finally {
+            if (localeCache != null) {
+                localeCaches.add(localeCache);
+            }
+            put(writeQueue, END, workersOutputStallNanos);
+            Metrics.allocatedBytes.add(Metrics.threadAllocatedBytes() - allocated);
+        }
+    }
+
+    /**
+     * Locale cache left by a previous worker, or a new one. A detector is not thread-safe: a new cache gets a
+     * detector of its own, over the models shared by all.
+     */
+    private static LocaleCache takeLocaleCache() {
+        LocaleCache localeCache = localeCaches.poll();
+        if (localeCache != null) {
+            return localeCache;
+        }
+        return new LocaleCache(LanguageModels.newDetector(), Ingestor.LOCALE_CACHE_SIZE,
+                Ingestor.LOCALE_CACHE_POLICY, Ingestor.LOCALE_CACHE_KEY);
+    }
+
+    private void parseRange(Chunk chunk, FieldNormalizer normalizer, LocaleCache localeCache)
+            throws IOException, CsvException {
+        chunk.rows = new ArrayList<>();
+        try (MappedCsvReader reader = ((MappedCsvReader) csvSource).range(chunk.start, chunk.end)) {
+            int csvLine = 1;
+            while (failure == null && next(reader)) {
+                int emptyField = reader.emptyField();
+                chunk.rows.add(emptyField > 0
+                        ? CsvRow.dropped(csvLine, emptyField)
+                        : Ingestor.toCsvRow(csvLine, reader.fields(), normalizer, localeCache, knownRows,
+                                detectUnchanged));
+                csvLine++;
+            }
+        }
+    }
+
+    private void processLines(Chunk chunk, FieldNormalizer normalizer, LocaleCache localeCache) {
+        chunk.rows = new ArrayList<>(chunk.lines.size());
+        for (int i = 0; i < chunk.lines.size(); i++) {
+            int csvLine = i + 1;
+            chunk.rows.add(chunk.emptyFields[i] > 0
+                    ? CsvRow.dropped(csvLine, chunk.emptyFields[i])
+                    : Ingestor.toCsvRow(csvLine, chunk.lines.get(i), normalizer, localeCache, knownRows,
+                            detectUnchanged));
+        }
+        chunk.lines = null;
+    }
+
+    private void write() throws SQLException, IOException, CsvException {
+        Map<Long, Chunk> pending = new HashMap<>();
+        long nextSequence = 0;
+        int finishedWorkers = 0;
+
+        while (finishedWorkers < workers) {
+            Chunk chunk = take(writeQueue, writerStallNanos);
+            rethrowFailure();
+            if (chunk == null) {
+                // Interrupted, by the shutdown of a daemon or a server
+                throw new InterruptedIOException("Ingestion interrupted after csv_line " + csvLine);
+            }
+            if (chunk == END) {
+                finishedWorkers++;
+                continue;
+            }
+            pending.put(chunk.sequence, chunk);
+            while ((chunk = pending.remove(nextSequence)) != null) {
+                writeChunk(chunk);
+                chunksInFlight.release();
+                chunkListener.chunkWritten(this, chunk.end);
+                nextSequence++;
+            }
+        }
+        rethrowFailure();
+    }
+
+    private void writeChunk(Chunk chunk) throws SQLException {
+        if (firstRowNanos == 0 && !chunk.rows.isEmpty()) {
+            firstRowNanos = System.nanoTime();
+        }
+        int chunkCsvLine = csvLine;
+        for (CsvRow row : chunk.rows) {
+            row.csvLine += chunkCsvLine;
+            csvLine = row.csvLine;
+            if (row.isDropped()) {
+                sink.dropRow(row.csvLine, row.emptyField);
+                linesDropped++;
+                continue;
+            }
+            // An unchanged line is not written again, but still counts for the brands and the consistency rules
+            brandTracker.add(row.productId, row.brand, row.csvLine);
+            consistency.add(row);
+            if (row.unchanged) {
+                linesUnchanged++;
+                delta.keepRow(row);
+                continue;
+            }
+
+            linesIngested++;
+            long start = System.nanoTime();
+            sink.addRow(row);
+            ADD_ROW.record(start);
+            Metrics.linesWritten.increment();
+
+            if (linesIngested % 1000 == 0) {
+                System.out.print("\rIngested lines: " + Utils.DECIMAL_FORMAT.format(linesIngested) + "+");
+                System.out.flush();
+            }
+        }
+    }
+
+    /**
+     * Parses the next line, timed.
+     */
+    private static boolean next(CsvSource source) throws IOException, CsvException {
+        long start = System.nanoTime();
+        boolean next = source.next();
+        PARSE.record(start);
+        return next;
+    }
+
+    private void rethrowFailure() throws IOException, CsvException {
+        Throwable e = failure;
+        if (e == null) {
+            return;
+        }
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof CsvException) {
+            throw (CsvException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw new IOException("Ingestion pipeline failed", e);
+    }
+
+    /**
+     * Blocks until the number of chunks in flight allows a new one, returns false if another stage has failed in
+     * the meantime.
+     */
+    private boolean acquireChunk() {
+        long start = System.nanoTime();
+        try {
+            while (!chunksInFlight.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (failure != null) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            readerStallNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Blocks until the chunk is queued, returns false if another stage has failed in the meantime.
+     */
+    private boolean put(BlockingQueue<Chunk> queue, Chunk chunk, AtomicLong stallNanos) {
+        long start = System.nanoTime();
+        try {
+            while (!queue.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (failure != null) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            stallNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Blocks until a chunk is available, returns null if another stage has failed in the meantime.
+     */
+    private Chunk take(BlockingQueue<Chunk> queue, AtomicLong stallNanos) {
+        long start = System.nanoTime();
+        try {
+            Chunk chunk;
+            while ((chunk = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                if (failure != null) {
+                    return null;
+                }
+            }
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            stallNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private static void joinAll(List<Thread> threads) {
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static String formatNanos(long nanos) {
+        return Utils.formatTime(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * Called by the writer once all the lines before the given byte offset (-1 if unknown) have been handed to the
+     * sink.
+     */
+    interface ChunkListener
+    {
+        void chunkWritten(IngestPipeline pipeline, long byteOffset) throws SQLException;
+    }
+
+    private static final class Chunk
+    {
+        final long sequence;
+        // Byte range of the chunk, for the chunks parsed by the workers
+        long start;
+        long end;
+        // Lines of the chunk, for the chunks read by the reader thread
+        int[] emptyFields;
+        List<String[]> lines;
+        List<CsvRow> rows;
+
+        Chunk(long sequence) {
+            this.sequence = sequence;
+        }
+
+        void add(String[] line, int emptyField) {
+            if (lines == null) {
+                lines = new ArrayList<>(CHUNK_LINES);
+                emptyFields = new int[CHUNK_LINES];
+            }
+            emptyFields[lines.size()] = emptyField;
+            lines.add(line);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ca.ulex;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP endpoint ingesting the CSV body of a {@code POST /ingest} request as it arrives, the pipeline's bounded queues
+ * slowing the client down through TCP flow control. Each upload is committed as a whole, one at a time like all the
+ * loads of the process ({@link Ingestor#LOADS}), and answered with its line counts as JSON.
+ */
+class IngestServer
+{
+    static final String PATH = "/ingest";
+
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final boolean autoCommit;
+    private final String loadMode;
+
+    IngestServer(String dbUrl, String dbUser, String dbPassword, boolean autoCommit, String loadMode) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        this.autoCommit = autoCommit;
+        this.loadMode = loadMode;
+    }
+
+    void start(int port, int threads) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(Math.max(1, threads)));
+        server.start();
+        System.out.println("Accepting CSV uploads on http://localhost:" + port + PATH);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, error("Only POST is supported"));
+                return;
+            }
+
+            String name = "upload from " + exchange.getRemoteAddress();
+            long startTime = System.currentTimeMillis();
+            try (InputStream body = exchange.getRequestBody()) {
+                IngestPipeline pipeline = ingest(body);
+                if (pipeline == null) {
+                    respond(exchange, 400, error("The CSV could not be read"));
+                    return;
+                }
+                long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+                System.out.println("\n" + name + ": " + Utils.DECIMAL_FORMAT.format(pipeline.csvLine) + " lines in "
+                        + Utils.formatTime(elapsed) + ", "
+                        + Utils.DECIMAL_FORMAT.format(pipeline.csvLine * 1000L / elapsed) + " lines/s");
+                respond(exchange, 200, counts(pipeline, elapsed));
+            } catch (SQLException e) {
+                System.err.println("Database error on " + name + ": " + e.getMessage());
+                respond(exchange, 500, error("Database error: " + e.getMessage()));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, error(e.getMessage()));
+            }
+        } catch (RuntimeException e) {
+            System.err.println("An error occurred: " + e.getMessage());
+            e.printStackTrace();
+            respond(exchange, 500, error("Internal error: " + e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Ingests the body in a single transaction, unless in auto-commit mode. Returns null if the CSV could not be
+     * read, in which case nothing is committed.
+     */
+    private IngestPipeline ingest(InputStream body) throws SQLException {
+        try (Connection dbConnection = Utils.getConnection(dbUrl, dbUser, dbPassword)) {
+            dbConnection.setAutoCommit(autoCommit);
+            Ingestor.LOADS.lock();
+            try {
+                IngestPipeline pipeline = Ingestor.ingestStream(body, dbConnection, loadMode, false);
+                if (!autoCommit) {
+                    if (pipeline == null) {
+                        dbConnection.rollback();
+                    } else {
+                        dbConnection.commit();
+                    }
+                }
+                return pipeline;
+            } catch (SQLException | RuntimeException e) {
+                Ingestor.deltaDictionaries = null;
+                throw e;
+            } finally {
+                Ingestor.LOADS.unlock();
+            }
+        }
+    }
+
+    private static String counts(IngestPipeline pipeline, long elapsed) {
+        return "{\"lines\": " + pipeline.csvLine
+                + ", \"ingested\": " + pipeline.linesIngested
+                + ", \"dropped\": " + pipeline.linesDropped
+                + ", \"unchanged\": " + pipeline.linesUnchanged
+                + ", \"warnings\": " + pipeline.warnings
+                + ", \"elapsed_ms\": " + elapsed + "}";
+    }
+
+    private static String error(String message) {
+        return "{\"error\": \"" + message.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t") + "\"}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -1,52 +1,155 @@
 package ca.ulex;
 
-import com.opencsv.CSVReader;
 import com.opencsv.exceptions.CsvException;
-import org.apache.tika.langdetect.optimaize.OptimaizeLangDetector;
-import org.apache.tika.language.detect.LanguageDetector;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
-import org.apache.commons.text.similarity.JaroWinklerSimilarity;
-import org.apache.commons.text.similarity.JaccardSimilarity;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Ingestor
 {
     final static String[] LOCALES = {"zh-CN", "en", "fr", "de", "it", "ja", "ko", "pt", "ru", "es"};
-    final static LanguageDetector detector = initializeLanguageDetector();
     final static String WARNING_EMPTY_FIELD = "Line dropped - No content for field ";
     final static String WARNING_OUTLIER_BRAND_NAME = "Outlier brand - Too different from other names: ";
     final static String WARNING_MULTIPLE_BRAND_NAMES = "Multiple brand names - Chosen name: ";
+    final static String WARNING_SIMILAR_BRAND_NAMES = "Similar brand names across products: ";
+    final static String WARNING_CONFLICTING_GENDERS = "Conflicting genders - Variant ";
+    final static String WARNING_CONFLICTING_AGE_GROUPS = "Conflicting age groups - Variant ";
+    final static String WARNING_CONFLICTING_SIZE_LABELS = "Conflicting size labels of the same unit - Variant ";
+    final static String WARNING_CONFLICTING_PRODUCT_TYPES = "Conflicting product types in the same language - Variant ";
     final static double SIMILARITY_THRESHOLD=0.8;
-    static int warningsCount = 0;
+    final static String LOAD_MODE_ROW = "row";
+    final static String LOAD_MODE_COPY = "copy";
+    final static String LOAD_MODE_BATCH = "batch";
+    final static String LOAD_MODE_DELTA = "delta";
+    // Not a load mode, only the name of the profiling runs in the metrics report
+    final static String LOAD_MODE_PROFILE = "profile";
+    final static String CSV_READER_MAPPED = "mapped";
+    final static String CSV_READER_OPENCSV = "opencsv";
+    final static String CSV_READER = Utils.getEnv("INGESTOR_CSV_READER", CSV_READER_MAPPED);
+    final static int BATCH_SIZE = Utils.getEnvInt("INGESTOR_BATCH_SIZE", 5000);
+    final static int ID_BLOCK_SIZE = Utils.getEnvInt("INGESTOR_ID_BLOCK_SIZE", 10000);
+    final static boolean BULK_LOAD = Boolean.parseBoolean(System.getenv("INGESTOR_BULK_LOAD"));
+    final static boolean BRAND_CLUSTERING = Boolean.parseBoolean(System.getenv("INGESTOR_BRAND_CLUSTERING"));
+    final static int WORKERS = Utils.getEnvInt("INGESTOR_WORKERS", Runtime.getRuntime().availableProcessors());
+    final static int CHUNK_SIZE = Utils.getEnvInt("INGESTOR_CHUNK_SIZE", 4 * 1024 * 1024);
+    final static int CHECKPOINT_LINES = Utils.getEnvInt("INGESTOR_CHECKPOINT_LINES", 100000);
+    final static int CHECKPOINT_SECONDS = Utils.getEnvInt("INGESTOR_CHECKPOINT_SECONDS", 30);
+    final static int LOCALE_CACHE_SIZE = Utils.getEnvInt("INGESTOR_LOCALE_CACHE_SIZE", 100000);
+    final static String LOCALE_CACHE_POLICY = Utils.getEnv("INGESTOR_LOCALE_CACHE_POLICY", LocaleCache.POLICY_LRU);
+    final static String LOCALE_CACHE_KEY = Utils.getEnv("INGESTOR_LOCALE_CACHE_KEY", LocaleCache.KEY_EXACT);
+    final static int GENDER_ACCUMULATOR_SIZE = Utils.getEnvInt("INGESTOR_GENDER_ACCUMULATOR_SIZE", 1000000);
+    final static int WARNINGS_MAX_PER_TYPE = Utils.getEnvInt("INGESTOR_WARNINGS_MAX_PER_TYPE", 0);
+    final static int WARNINGS_SAMPLE_EVERY = Utils.getEnvInt("INGESTOR_WARNINGS_SAMPLE_EVERY", 0);
+    final static int FIELD_DICTIONARY_SIZE = Utils.getEnvInt("INGESTOR_FIELD_DICTIONARY_SIZE", 100000);
+    final static String CONSISTENCY_RULES = Utils.getEnv("INGESTOR_CONSISTENCY_RULES", String.join(",",
+            ConsistencyRule.GENDER, ConsistencyRule.AGE_GROUP, ConsistencyRule.SIZE_LABEL, ConsistencyRule.PRODUCT_TYPE));
+    final static int METRICS_LOG_SECONDS = Utils.getEnvInt("INGESTOR_METRICS_LOG_SECONDS", 10);
+    final static int MEMORY_BUDGET_MB = Utils.getEnvInt("INGESTOR_MEMORY_BUDGET_MB", 0);
+    final static String SPILL_DIR = Utils.getEnv("INGESTOR_SPILL_DIR", System.getProperty("java.io.tmpdir"));
+
+    private final static Metrics.Stage NORMALIZE = Metrics.stage("normalize");
+    private final static Metrics.Stage HASH = Metrics.stage("hash");
+    private final static Metrics.Stage DETECT = Metrics.stage("detect");
+    private final static Metrics.Stage INSERT_BRAND = Metrics.stage("insert.brand");
+    private final static Metrics.Stage INSERT_PRODUCT = Metrics.stage("insert.product");
+    private final static Metrics.Stage INSERT_CSV_BRAND = Metrics.stage("insert.csv_brand");
+    private final static Metrics.Stage INSERT_VARIANT = Metrics.stage("insert.variant");
+    private final static Metrics.Stage INSERT_CSV_AGE_GROUP = Metrics.stage("insert.csv_age_group");
+    private final static Metrics.Stage INSERT_CSV_GENDER = Metrics.stage("insert.csv_gender");
+    private final static Metrics.Stage INSERT_LOCALIZED_META = Metrics.stage("insert.localized_meta");
+    private final static Metrics.Stage CHECKPOINT = Metrics.stage("checkpoint");
+    private final static Metrics.Stage POST_PROCESS = Metrics.stage("post_process");
+    // Handed from a delta load to the next one in the same process, until a load fails
+    static DeltaSink.Dictionaries deltaDictionaries = null;
+    /**
+     * The loads of a process, files of the service mode, standard input and HTTP uploads, run one at a time, from
+     * their checkpoint to their commit. A checkpoint covers the ids written between two of its saves, which would
+     * also hold the rows of a load running alongside: they would be deleted on resume, and read back into the
+     * dictionaries and counts of the file. The delta dictionaries, the metrics of a run and the locale cache counts
+     * are also those of a single load at a time.
+     */
+    static final ReentrantLock LOADS = new ReentrantLock(true);
 
     public static void main(String[] args) {
+        // Loaded while the connection is opened and the first lines read
+        LanguageModels.preload();
         String dbUrl = System.getenv("INGESTOR_DB_URL");
         String dbUser = System.getenv("INGESTOR_DB_USER");
         String dbPassword = System.getenv("INGESTOR_DB_PASSWORD");
         boolean autoCommit = Boolean.parseBoolean(System.getenv("INGESTOR_DB_AUTOCOMMIT"));
         String csvFilePath = System.getenv("INGESTOR_DB_CSV_INPUT");
+        String loadMode = Utils.getEnv("INGESTOR_LOAD_MODE", LOAD_MODE_ROW);
+        String watchDir = System.getenv("INGESTOR_WATCH_DIR");
+        boolean readStdin = Boolean.parseBoolean(System.getenv("INGESTOR_STDIN"));
+        int httpPort = Utils.getEnvInt("INGESTOR_HTTP_PORT", 0);
+        String profileReport = System.getenv("INGESTOR_PROFILE_REPORT");
+
+        if (profileReport != null) {
+            // No database at all, the language models are the only thing to wait for
+            Utils.exitOnInvalidCSVFilePath(csvFilePath);
+            if (profileCSV(csvFilePath, profileReport) == null) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        if (httpPort > 0) {
+            // The server's threads keep the process running
+            try {
+                new IngestServer(dbUrl, dbUser, dbPassword, autoCommit, loadMode)
+                        .start(httpPort, Utils.getEnvInt("INGESTOR_HTTP_THREADS", 4));
+            } catch (IOException e) {
+                System.err.println("An error occurred: " + e.getMessage());
+                e.printStackTrace();
+                System.exit(1);
+            }
+            if (watchDir == null && !readStdin) {
+                return;
+            }
+        }
+
+        if (watchDir != null || readStdin) {
+            IngestDaemon daemon = new IngestDaemon(dbUrl, dbUser, dbPassword, autoCommit, loadMode);
+            try {
+                daemon.run(watchDir == null ? null : Paths.get(watchDir), readStdin);
+            } catch (IOException | InterruptedException e) {
+                System.err.println("An error occurred: " + e.getMessage());
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
 
         Utils.exitOnInvalidCSVFilePath(csvFilePath);
 
+        BulkLoad bulkLoad = BULK_LOAD
+                ? new BulkLoad(dbUrl, dbUser, dbPassword, Utils.getEnvInt("INGESTOR_BULK_LOAD_THREADS", 4)) : null;
+        boolean loaded = false;
         int remainingAttemptsLeft=10;
         while (remainingAttemptsLeft > 0) {
             remainingAttemptsLeft--;
-            try (Connection dbConnection = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            try (Connection dbConnection = Utils.getConnection(dbUrl, dbUser, dbPassword)) {
                 dbConnection.setAutoCommit(autoCommit);
+                if (bulkLoad != null) {
+                    bulkLoad.prepare(dbConnection);
+                }
 
-                ingestCSV(csvFilePath, dbConnection);
+                loaded = ingestCSV(csvFilePath, dbConnection, loadMode) != null;
                 remainingAttemptsLeft=-1;
 
                 if (!autoCommit) {
                     dbConnection.commit();
                 }
             } catch (SQLException e) {
+                deltaDictionaries = null;
                 System.err.println("Database error: " + e.getMessage());
                 if (remainingAttemptsLeft > 0) {
                     System.out.println("DB system may not be ready yet, retrying in 2s.");
@@ -61,167 +164,409 @@ public class Ingestor
                 e.printStackTrace();
             }
         }
+
+        // Not retried with the load, which is complete and would start over
+        if (bulkLoad != null && loaded) {
+            try {
+                bulkLoad.finish();
+                bulkLoad.printTimes();
+            } catch (SQLException e) {
+                System.err.println("Database error while rebuilding the tables: " + e.getMessage());
+                System.exit(1);
+            }
+        }
     }
 
 
-    private static LanguageDetector initializeLanguageDetector()
+    static IngestPipeline ingestCSV(String csvFilePath, Connection dbConnection, String loadMode) throws SQLException {
+        return ingest(() -> openCsvSource(csvFilePath), Paths.get(csvFilePath), dbConnection, loadMode, true);
+    }
+
+    /**
+     * Ingests a CSV stream, which is read once and never checkpointed, committed periodically or only by the caller.
+     */
+    static IngestPipeline ingestStream(InputStream inputStream, Connection dbConnection, String loadMode,
+                                       boolean periodicCommits) throws SQLException {
+        return ingest(() -> new OpenCsvSource(inputStream), null, dbConnection, loadMode, periodicCommits);
+    }
+
+    private interface CsvSourceOpener
     {
-        Set<String> languages = new HashSet<>(Arrays.asList(LOCALES));
-        try {
-            return new OptimaizeLangDetector().loadModels(languages);
-        } catch (IOException e) {
-            return new OptimaizeLangDetector().loadModels();
-        }
+        CsvSource open() throws IOException;
     }
 
-    private static void ingestCSV(String csvFilePath, Connection dbConnection) {
-        Map<String, Integer> productMap = new HashMap<>();
-        Map<String, Integer> variantMap = new HashMap<>();
-        Map<String, Integer> brandMap = new HashMap<>();
+    /**
+     * Returns the pipeline with the line counts, or null if the CSV could not be read.
+     */
+    private static IngestPipeline ingest(CsvSourceOpener csvSourceOpener, Path csvFile, Connection dbConnection,
+                                         String loadMode, boolean periodicCommits) throws SQLException {
         long startTime = System.currentTimeMillis();
         long postProcessStartTime = System.currentTimeMillis();
         long stopTime = System.currentTimeMillis();
 
-        int linesIngested = 0;
-        int linesDropped = 0;
-        int csvLine = 0;
-        try (CSVReader csvReader = new CSVReader(new FileReader(csvFilePath))) {
-            String[] header = csvReader.readNext();
-            if (header == null || header.length < 10 || !Arrays.equals(header, Utils.CSV_HEADER)) {
-                throw new IllegalArgumentException("Invalid CSV header");
+        IngestPipeline pipeline = null;
+        WarningsSink warnings = null;
+        RunReport report = RunReport.start();
+        MemoryBudget budget = new MemoryBudget(MEMORY_BUDGET_MB * 1024L * 1024L, SPILL_DIR);
+        try (CsvSource csvSource = csvSourceOpener.open()) {
+            readHeader(csvSource);
+
+            // A delta load skips the unchanged lines it reads, it cannot be resumed past them
+            Checkpoint checkpoint = csvFile == null ? Checkpoint.forStream(dbConnection, periodicCommits)
+                    : Checkpoint.begin(dbConnection, csvFile, !LOAD_MODE_DELTA.equals(loadMode));
+            if (checkpoint.isResumed()) {
+                System.out.print("\nResuming from the checkpoint at csv_line " + checkpoint.csvLine + "...");
+                skipToCheckpoint(csvSource, checkpoint);
             }
 
-            String[] line;
-            System.out.print("\nIngesting CSV...");
+            BrandTracker brandTracker = new BrandTracker(budget);
+            checkpoint.loadBrandCounts(dbConnection, brandTracker);
+            ConsistencyChecker consistency = new ConsistencyChecker(ConsistencyRule.forNames(CONSISTENCY_RULES),
+                    budget);
+            checkpoint.loadObservations(dbConnection, consistency);
+            warnings = new WarningsSink(dbConnection, BATCH_SIZE, WARNINGS_MAX_PER_TYPE,
+                    WARNINGS_SAMPLE_EVERY);
+            checkpoint.loadWarningCounts(dbConnection, warnings);
+
+            // Last, as the copy sink keeps the connection busy with its COPY until it is finished
+            RowSink sink = createRowSink(dbConnection, loadMode, checkpoint, warnings);
+            System.out.print("\nIngesting CSV (" + loadMode + " mode, " + WORKERS + " workers)...");
             System.out.flush();
-
-            while ((line = csvReader.readNext()) != null) {
-                csvLine++;
-
-                int emptyField = hasEmptyField(line);
-                if (emptyField > 0) {
-                    insertWarning(dbConnection, csvLine, "WARNING_EMPTY_FIELD", WARNING_EMPTY_FIELD + emptyField);
-                    linesDropped++;
-                    continue;
-                }
-
-                linesIngested++;
-
-                int idProduct = insertProductAndBrand(dbConnection, productMap, brandMap, csvLine,
-                        line[1],                       // product_id
-                        Utils.normalizeText(line[4])   // brand
-                );
-                int idVariant = insertVariant(dbConnection, variantMap, idProduct, csvLine,
-                        line[0],                       // variant_id
-                        Utils.normalizeText(line[6]),  // age_group
-                        Utils.normalizeText(line[7]),  // gender
-                        line[8].toLowerCase()          // size_type
-                );
-                insertLocalizedMeta(dbConnection, idVariant, csvLine,
-                        line[2].toUpperCase(),         // size_label
-                        Utils.normalizeText(line[3]),  // product_name
-                        Utils.normalizeText(line[5]),  // color
-                        line[9]                        // product_type
-                );
-
-                if (linesIngested % 1000 == 0) {
-                    System.out.print("\rIngested lines: " + Utils.DECIMAL_FORMAT.format(linesIngested) + "+");
-                    System.out.flush();
-                }
+            pipeline = new IngestPipeline(csvSource, sink, brandTracker, consistency,
+                    periodicCheckpoints(dbConnection, loadMode, sink, warnings, checkpoint), WORKERS, CHUNK_SIZE);
+            pipeline.csvLine = checkpoint.csvLine;
+            pipeline.linesIngested = checkpoint.linesIngested;
+            pipeline.linesDropped = checkpoint.linesDropped;
+            if (sink instanceof DeltaSink) {
+                pipeline.delta = (DeltaSink) sink;
+                pipeline.knownRows = pipeline.delta.getKnownRows();
             }
+            pipeline.run();
+            sink.finish();
+            warnings.flush();
+            checkpoint.save(dbConnection, csvSource.position(), pipeline.csvLine, pipeline.linesIngested,
+                    pipeline.linesDropped, warnings.getCount());
 
             postProcessStartTime = System.currentTimeMillis();
-            postProcessBrandNamesForProducts(dbConnection, csvLine);
+            long postProcessStart = System.nanoTime();
+            postProcessBrandNamesForProducts(dbConnection, brandTracker, warnings);
+            consistency.check(warnings, WORKERS);
+            warnings.close();
+            POST_PROCESS.record(postProcessStart);
+            pipeline.warnings = warnings.getCount();
+            checkpoint.complete(dbConnection);
+            if (sink instanceof DeltaSink) {
+                deltaDictionaries = ((DeltaSink) sink).getDictionaries();
+            }
             stopTime = System.currentTimeMillis();
 
-        } catch (IOException | SQLException | CsvException e) {
-            System.out.println("Error on csvLine: " + csvLine);
+        } catch (IOException | CsvException e) {
+            System.out.println("Error on csvLine: " + (pipeline == null ? 0 : pipeline.csvLine));
             e.printStackTrace();
+            return null;
+        } catch (SQLException e) {
+            // Retried by the caller, from the last checkpoint
+            System.out.println("Error on csvLine: " + (pipeline == null ? 0 : pipeline.csvLine));
+            throw e;
+        } finally {
+            report.stop();
+            try {
+                budget.close();
+            } catch (IOException e) {
+                System.err.println("Could not delete the spilled state: " + e.getMessage());
+            }
         }
 
-        System.out.println("\nTotal lines ingested: " + linesIngested);
-        System.out.println("Total lines dropped: " + linesDropped);
-        System.out.println("Number of warnings : " + warningsCount);
+        if (pipeline == null) {
+            return null;
+        }
+        System.out.println("\nTotal lines ingested: " + pipeline.linesIngested);
+        System.out.println("Total lines dropped: " + pipeline.linesDropped);
+        if (pipeline.knownRows != null) {
+            System.out.println("Total lines unchanged: " + pipeline.linesUnchanged);
+        }
+        System.out.println("Number of warnings : " + pipeline.warnings);
+        warnings.printStats();
         System.out.println("\nTotal elapsed time : " + Utils.formatTime(stopTime - startTime));
         System.out.println("    Ingestion      : " + Utils.formatTime(postProcessStartTime - startTime));
         System.out.println("    Post-process   : " + Utils.formatTime(stopTime - postProcessStartTime));
+        System.out.println("    Throughput     : " + Utils.DECIMAL_FORMAT.format(
+                pipeline.csvLine * 1000L / Math.max(1, stopTime - startTime)) + " lines/s");
+        pipeline.printStallTimes();
+        budget.printStats();
+        LocaleCache.printStats(report.sinceStart());
+        FieldNormalizer.printStats();
+        report.finish(pipeline, loadMode);
+        return pipeline;
     }
 
-    public static void postProcessBrandNamesForProducts(Connection dbConnection, int csvLine) throws SQLException {
-        System.out.println("\nPost processing...");
-        String sql = "SELECT p.product_id, cb.name, cb.csv_line FROM product p JOIN csv_brand cb ON p.id = cb.id_product";
+    /**
+     * Reads the CSV file through the pipeline and the post-processing, without any database, and writes what was
+     * found to the JSON and CSV reports at {@code reportPath}. Returns null if the CSV could not be read.
+     */
+    static FeedProfile profileCSV(String csvFilePath, String reportPath) {
+        long startTime = System.currentTimeMillis();
+        long postProcessStartTime = System.currentTimeMillis();
+        long stopTime = System.currentTimeMillis();
 
-        try (PreparedStatement stmt = dbConnection.prepareStatement(sql);
-             ResultSet rs = stmt.executeQuery()) {
-            Map<String, Map<String, Integer>> productBrandFrequency = populateBrandFrequencyMap(rs);
-            ResultSet rs2 = stmt.executeQuery();
-            Map<String, Integer> productBrandCsvLine = populateBrandCsvLine(rs2);
-            findAndLogBrandIssues(productBrandFrequency, productBrandCsvLine, dbConnection);
+        IngestPipeline pipeline = null;
+        FeedProfile profile = null;
+        RunReport report = RunReport.start();
+        MemoryBudget budget = new MemoryBudget(MEMORY_BUDGET_MB * 1024L * 1024L, SPILL_DIR);
+        try (CsvSource csvSource = openCsvSource(csvFilePath)) {
+            readHeader(csvSource);
+
+            BrandTracker brandTracker = new BrandTracker(budget);
+            ConsistencyChecker consistency = new ConsistencyChecker(ConsistencyRule.forNames(CONSISTENCY_RULES),
+                    budget);
+            WarningsSink warnings = WarningsSink.counting();
+            profile = new FeedProfile(warnings);
+            System.out.print("\nProfiling CSV (" + WORKERS + " workers)...");
+            System.out.flush();
+            pipeline = new IngestPipeline(csvSource, profile, brandTracker, consistency, (p, byteOffset) -> { },
+                    WORKERS, CHUNK_SIZE);
+            pipeline.run();
+
+            postProcessStartTime = System.currentTimeMillis();
+            long postProcessStart = System.nanoTime();
+            postProcessBrandNamesForProducts(null, brandTracker, warnings);
+            consistency.check(warnings, WORKERS);
+            POST_PROCESS.record(postProcessStart);
+            pipeline.warnings = warnings.getCount();
+            stopTime = System.currentTimeMillis();
+        } catch (IOException | CsvException | SQLException | IllegalArgumentException e) {
+            // Nothing is written without a database, a SQLException only comes from the interfaces
+            System.out.println("Error on csvLine: " + (pipeline == null ? 0 : pipeline.csvLine));
+            e.printStackTrace();
+            return null;
+        } finally {
+            report.stop();
+            try {
+                budget.close();
+            } catch (IOException e) {
+                System.err.println("Could not delete the spilled state: " + e.getMessage());
+            }
         }
+
+        profile.print(pipeline);
+        System.out.println("\nTotal elapsed time : " + Utils.formatTime(stopTime - startTime));
+        System.out.println("    Reading        : " + Utils.formatTime(postProcessStartTime - startTime));
+        System.out.println("    Post-process   : " + Utils.formatTime(stopTime - postProcessStartTime));
+        System.out.println("    Throughput     : " + Utils.DECIMAL_FORMAT.format(
+                pipeline.csvLine * 1000L / Math.max(1, stopTime - startTime)) + " lines/s");
+        pipeline.printStallTimes();
+        budget.printStats();
+        LocaleCache.printStats(report.sinceStart());
+        FieldNormalizer.printStats();
+        report.finish(pipeline, LOAD_MODE_PROFILE);
+        try {
+            profile.write(reportPath, csvFilePath, pipeline, stopTime - startTime);
+        } catch (IOException e) {
+            System.err.println("Could not write the profile: " + e.getMessage());
+            return null;
+        }
+        return profile;
     }
 
-    private static Map<String, Integer> populateBrandCsvLine(ResultSet rs) throws SQLException {
-        Map<String, Integer> productBrandCsvLine = new HashMap<>();
+    private static void readHeader(CsvSource csvSource) throws IOException, CsvException {
+        String[] header = csvSource.next() ? csvSource.fields() : null;
+        if (header == null || header.length < 10 || !Arrays.equals(header, Utils.CSV_HEADER)) {
+            throw new IllegalArgumentException("Invalid CSV header");
+        }
+    }
 
-        while (rs.next()) {
-            String brandName = rs.getString("name");
-            int csvLine = rs.getInt("csv_line");
+    private static void skipToCheckpoint(CsvSource csvSource, Checkpoint checkpoint) throws IOException, CsvException {
+        if (checkpoint.csvLine == 0) {
+            return;
+        }
+        if (csvSource instanceof MappedCsvReader && checkpoint.byteOffset > 0) {
+            ((MappedCsvReader) csvSource).seek(checkpoint.byteOffset);
+            return;
+        }
+        for (int i = 0; i < checkpoint.csvLine; i++) {
+            if (!csvSource.next()) {
+                throw new IOException("CSV file shorter than its checkpoint at csv_line " + checkpoint.csvLine);
+            }
+        }
+    }
 
-            productBrandCsvLine.put(brandName, csvLine);
+    /**
+     * Commits and saves a checkpoint every CHECKPOINT_LINES lines or CHECKPOINT_SECONDS seconds, whichever comes
+     * first. The copy mode only reaches its tables at the end of the file, it is checkpointed there only.
+     */
+    private static IngestPipeline.ChunkListener periodicCheckpoints(Connection dbConnection, String loadMode,
+                                                                    RowSink sink, WarningsSink warnings,
+                                                                    Checkpoint checkpoint) {
+        if (LOAD_MODE_COPY.equals(loadMode)) {
+            return (pipeline, byteOffset) -> { };
         }
-        return productBrandCsvLine;
+        return (pipeline, byteOffset) -> {
+            if (checkpoint.isDue(pipeline.csvLine, CHECKPOINT_LINES, CHECKPOINT_SECONDS)) {
+                long start = System.nanoTime();
+                sink.flush();
+                warnings.flush();
+                checkpoint.save(dbConnection, byteOffset, pipeline.csvLine, pipeline.linesIngested,
+                        pipeline.linesDropped, warnings.getCount());
+                CHECKPOINT.record(start);
+            }
+        };
     }
 
-    private static Map<String, Map<String, Integer>> populateBrandFrequencyMap(ResultSet rs) throws SQLException {
-        Map<String, Map<String, Integer>> productBrandFrequency = new HashMap<>();
+    private static CsvSource openCsvSource(String csvFilePath) throws IOException {
+        switch (CSV_READER) {
+            case CSV_READER_MAPPED:
+                return new MappedCsvReader(Paths.get(csvFilePath));
+            case CSV_READER_OPENCSV:
+                return new OpenCsvSource(csvFilePath);
+            default:
+                throw new IllegalArgumentException("Invalid CSV reader: " + CSV_READER);
+        }
+    }
 
-        while (rs.next()) {
-            String productId = rs.getString("product_id");
-            String brandName = rs.getString("name");
+    static CsvRow toCsvRow(int csvLine, String[] line, FieldNormalizer normalizer, LocaleCache localeCache,
+                           ContentHashes knownRows, boolean detectUnchanged) {
+        long start = System.nanoTime();
+        CsvRow row = CsvRow.fromLine(csvLine, line, normalizer);
+        NORMALIZE.record(start);
+        if (knownRows != null) {
+            start = System.nanoTime();
+            row.contentHash = ContentHashes.hash(row);
+            row.unchanged = knownRows.contains(row.contentHash);
+            HASH.record(start);
+        }
+        // Unchanged lines are not written, they only need a locale for the consistency rules reading it
+        if (!row.unchanged || detectUnchanged) {
+            start = System.nanoTime();
+            row.locale = localeCache.detect(row);
+            DETECT.record(start);
+        }
+        return row;
+    }
 
-            productBrandFrequency
-                    .computeIfAbsent(productId, k -> new HashMap<>())
-                    .merge(brandName, 1, Integer::sum);
+    private static RowSink createRowSink(Connection dbConnection, String loadMode, Checkpoint checkpoint,
+                                         WarningsSink warnings) throws SQLException {
+        switch (loadMode) {
+            case LOAD_MODE_ROW:
+                return new RowByRowSink(dbConnection, loadDictionary(dbConnection, "brand", "name"),
+                        loadDictionary(dbConnection, "product", "product_id"),
+                        loadDictionary(dbConnection, "variant", "variant_id"), warnings);
+            case LOAD_MODE_COPY:
+                return new CopySink(dbConnection, warnings);
+            case LOAD_MODE_BATCH:
+                return new BatchSink(dbConnection, BATCH_SIZE, ID_BLOCK_SIZE,
+                        loadDictionary(dbConnection, "brand", "name"),
+                        loadDictionary(dbConnection, "product", "product_id"),
+                        loadDictionary(dbConnection, "variant", "variant_id"), warnings);
+            case LOAD_MODE_DELTA:
+                // The dictionaries cover the whole tables, including the lines of this file already ingested.
+                // They are modified by the load, and only given back to the next one if it succeeds.
+                DeltaSink.Dictionaries dictionaries = deltaDictionaries;
+                deltaDictionaries = null;
+                return DeltaSink.open(dbConnection, BATCH_SIZE, ID_BLOCK_SIZE, dictionaries, warnings, checkpoint);
+            default:
+                throw new IllegalArgumentException("Invalid load mode: " + loadMode);
         }
-        return productBrandFrequency;
     }
 
-    private static void findAndLogBrandIssues(Map<String, Map<String, Integer>> productBrandFrequency,
-                                              Map<String, Integer>  productBrandCsvLine,
-                                              Connection dbConnection) throws SQLException {
-        for (Map.Entry<String, Map<String, Integer>> entry : productBrandFrequency.entrySet()) {
-            String productId = entry.getKey();
-            Map<String, Integer> brandMap = entry.getValue();
+    /**
+     * Dictionary of the given unique column to the ids of the whole table, so that the brands, products and
+     * variants of earlier loads, and those of this file already ingested, are reused instead of inserted again.
+     */
+    private static KeyDictionary loadDictionary(Connection dbConnection, String table, String keyColumn)
+            throws SQLException {
+        KeyDictionary dictionary = new KeyDictionary();
+        try (Statement stmt = dbConnection.createStatement()) {
+            stmt.setFetchSize(10000);
+            try (ResultSet rs = stmt.executeQuery("SELECT " + keyColumn + ", id FROM " + table)) {
+                while (rs.next()) {
+                    dictionary.put(rs.getString(1), rs.getInt(2));
+                }
+            }
+        }
+        return dictionary;
+    }
 
-            if (brandMap.size() > 1) {
-                String mostFrequentBrand = findMostFrequentBrand(brandMap);
-                insertWarning(dbConnection, productBrandCsvLine.get(mostFrequentBrand),
-                        "WARNING_MULTIPLE_BRAND_NAMES", WARNING_MULTIPLE_BRAND_NAMES + mostFrequentBrand);
-                findBrandNameOutliers(brandMap.keySet(), productBrandCsvLine, dbConnection);
+    /**
+     * Elects the brand name of each product and flags its other names. Ties between equally frequent names go to
+     * the first one in lexical order, so that the result does not depend on the order of the lines or of the maps.
+     */
+    public static void postProcessBrandNamesForProducts(Connection dbConnection, BrandTracker brandTracker,
+                                                        WarningsSink warnings) throws SQLException, IOException {
+        System.out.println("\nPost processing...");
+        // Caches the fingerprints of the brand names of this run only
+        BrandSimilarity brandSimilarity = new BrandSimilarity();
+        // Sorted, so that the clusters are formed the same way whatever the order of the products
+        Map<String, BrandTracker.BrandCount> catalogBrands = new TreeMap<>();
+        brandTracker.forEachProduct((productId, brandCounts) -> {
+            findAndLogBrandIssues(brandCounts, brandSimilarity, warnings);
+            if (BRAND_CLUSTERING) {
+                for (Map.Entry<String, BrandTracker.BrandCount> entry : brandCounts.entrySet()) {
+                    BrandTracker.BrandCount total = catalogBrands.computeIfAbsent(entry.getKey(), k -> new BrandTracker.BrandCount());
+                    total.frequency += entry.getValue().frequency;
+                    total.csvLine = Math.max(total.csvLine, entry.getValue().csvLine);
+                }
             }
+        });
+        if (BRAND_CLUSTERING) {
+            findAndLogSimilarBrands(catalogBrands, brandSimilarity, warnings);
         }
     }
 
-    private static String findMostFrequentBrand(Map<String, Integer> brandMap) {
-        return brandMap.entrySet().stream()
-                .max(Map.Entry.comparingByValue())
-                .map(Map.Entry::getKey)
-                .orElse(null);
+    private static void findAndLogSimilarBrands(Map<String, BrandTracker.BrandCount> catalogBrands,
+                                                BrandSimilarity brandSimilarity, WarningsSink warnings)
+            throws SQLException {
+        for (List<String> cluster : brandSimilarity.cluster(catalogBrands.keySet(), SIMILARITY_THRESHOLD)) {
+            String mostFrequentBrand = findMostFrequentBrand(catalogBrands, cluster);
+            warnings.add(catalogBrands.get(mostFrequentBrand).csvLine,
+                    "WARNING_SIMILAR_BRAND_NAMES", WARNING_SIMILAR_BRAND_NAMES + String.join(", ", cluster));
+        }
     }
 
-    private static void findBrandNameOutliers(Set<String> brandNames, Map<String, Integer> productBrandCsvLine,
-                                              Connection dbConnection) throws SQLException {
-        Map<String, Integer> similarityMap = calculateSimilarityMap(brandNames);
-        logBrandNameOutliers(brandNames, similarityMap, productBrandCsvLine, dbConnection);
+    private static void findAndLogBrandIssues(Map<String, BrandTracker.BrandCount> brandCounts,
+                                              BrandSimilarity brandSimilarity, WarningsSink warnings)
+            throws SQLException {
+        if (brandCounts.size() > 1) {
+            String mostFrequentBrand = findMostFrequentBrand(brandCounts, brandCounts.keySet());
+            warnings.add(brandCounts.get(mostFrequentBrand).csvLine,
+                    "WARNING_MULTIPLE_BRAND_NAMES", WARNING_MULTIPLE_BRAND_NAMES + mostFrequentBrand);
+            findBrandNameOutliers(brandCounts, brandSimilarity, warnings);
+        }
     }
 
-    private static Map<String, Integer> calculateSimilarityMap(Set<String> brandNames) {
-        Map<String, Integer> similarityMap = new HashMap<>();
+    /**
+     * The most frequent of the brands, the first in lexical order among the equally frequent ones.
+     */
+    static String findMostFrequentBrand(Map<String, BrandTracker.BrandCount> brandCounts, Collection<String> brands) {
+        String mostFrequentBrand = null;
+        int frequency = -1;
+        for (String brand : brands) {
+            int brandFrequency = brandCounts.get(brand).frequency;
+            if (brandFrequency > frequency || (brandFrequency == frequency && brand.compareTo(mostFrequentBrand) < 0)) {
+                mostFrequentBrand = brand;
+                frequency = brandFrequency;
+            }
+        }
+        return mostFrequentBrand;
+    }
+
+    private static void findBrandNameOutliers(Map<String, BrandTracker.BrandCount> brandCounts,
+                                              BrandSimilarity brandSimilarity, WarningsSink warnings)
+            throws SQLException {
+        Map<String, Integer> similarityMap = calculateSimilarityMap(brandCounts.keySet(), brandSimilarity);
+        logBrandNameOutliers(similarityMap, brandCounts, warnings);
+    }
+
+    /**
+     * The number of similar names of each brand name, in lexical order.
+     */
+    private static Map<String, Integer> calculateSimilarityMap(Set<String> brandNames,
+                                                               BrandSimilarity brandSimilarity) {
+        Map<String, Integer> similarityMap = new TreeMap<>();
 
         for (String brand1 : brandNames) {
             int similarityCount = 0;
             for (String brand2 : brandNames) {
-                if (!brand1.equalsIgnoreCase(brand2) && computeSimilarity(brand1, brand2) >= SIMILARITY_THRESHOLD) {
+                if (!brand1.equalsIgnoreCase(brand2) && brandSimilarity.computeSimilarity(brand1, brand2) >= SIMILARITY_THRESHOLD) {
                     similarityCount++;
                 }
             }
@@ -230,11 +575,12 @@ public class Ingestor
         return similarityMap;
     }
 
-    private static void logBrandNameOutliers(Set<String> brandNames, Map<String, Integer> similarityMap,
-                                             Map<String, Integer> productBrandCsvLine, Connection dbConnection) throws SQLException {
+    private static void logBrandNameOutliers(Map<String, Integer> similarityMap,
+                                             Map<String, BrandTracker.BrandCount> brandCounts,
+                                             WarningsSink warnings) throws SQLException {
         for (Map.Entry<String, Integer> entry : similarityMap.entrySet()) {
             if (entry.getValue() < 1) {
-                insertWarning(dbConnection, productBrandCsvLine.get(entry.getKey()), "WARNING_OUTLIER_BRAND_NAME", WARNING_OUTLIER_BRAND_NAME + entry.getKey());
+                warnings.add(brandCounts.get(entry.getKey()).csvLine, "WARNING_OUTLIER_BRAND_NAME", WARNING_OUTLIER_BRAND_NAME + entry.getKey());
                 if (similarityMap.size() < 3) {
                     break;
                 }
@@ -242,46 +588,18 @@ public class Ingestor
         }
     }
 
-    private static double computeSimilarity(String s1, String s2) {
-        String ss1 = s1.toLowerCase().replaceAll("[^a-z0-9]", "").trim();
-        String ss2 = s2.toLowerCase().replaceAll("[^a-z0-9]", "").trim();
-
-        if (isSubset(s1, s2) || isSubset(s2, s1)) {
-            return 1;
-        }
-        JaroWinklerSimilarity jaroWinkler = new JaroWinklerSimilarity();
-        double similarity1 = jaroWinkler.apply(ss1, ss2);
-        JaccardSimilarity jaccard = new JaccardSimilarity();
-        double similarity2 = jaccard.apply(ss2, ss1);
-
-        return Math.max(similarity1, similarity2);
+    /**
+     * Similarity of two names, without the fingerprint cache of a run.
+     */
+    static double computeSimilarity(String s1, String s2) {
+        return new BrandSimilarity().computeSimilarity(s1, s2);
     }
 
     public static boolean isSubset(String s1, String s2) {
-        Set<Character> set1 = toSet(s1.toLowerCase().replaceAll("[^a-z0-9]", "").trim());
-        Set<Character> set2 = toSet(s2.toLowerCase().replaceAll("[^a-z0-9]", "").trim());
-        return set2.containsAll(set1);
-    }
-
-    private static Set<Character> toSet(String str) {
-        Set<Character> set = new HashSet<>();
-        for (char c : str.toCharArray()) {
-            set.add(c);
-        }
-        return set;
-    }
-
-    private static void insertWarning(Connection dbConnection, int csvLine, String warning, String description) throws SQLException {
-        String sql = "INSERT INTO warnings (csv_line, warning, description) VALUES (?, ?, ?)";
-        PreparedStatement stmt = dbConnection.prepareStatement(sql);
-        stmt.setInt(1, csvLine);
-        stmt.setString(2, warning);
-        stmt.setString(3, description);
-        stmt.executeUpdate();
-        warningsCount++;
+        return new BrandSimilarity().isSubset(s1, s2);
     }
 
-    private static int hasEmptyField(String[] line) {
+    static int hasEmptyField(String[] line) {
         for (int i = 0; i < line.length; i++) {
             if (line[i] == null || line[i].isEmpty()) {
                 return (i+1);
@@ -290,8 +608,8 @@ public class Ingestor
         return -1;
     }
 
-    private static int insertProductAndBrand(Connection dbConnection, Map<String, Integer> productMap,
-                                             Map<String, Integer> brandMap,
+    private static int insertProductAndBrand(Connection dbConnection, KeyDictionary productMap,
+                                             KeyDictionary brandMap,
                                              int csvLine, String productId, String brand) throws SQLException {
         // Check if the product already exists in the map
         if (productMap.containsKey(productId)) {
@@ -308,7 +626,9 @@ public class Ingestor
             stmt.setInt(1, idBrand);
             stmt.setString(2, productId);
 
+            long start = System.nanoTime();
             try (ResultSet rs = stmt.executeQuery()) {
+                INSERT_PRODUCT.roundTrip(start);
                 if (rs.next()) {
                     int idProduct = rs.getInt(1);
                     productMap.put(productId, idProduct);
@@ -321,7 +641,7 @@ public class Ingestor
         throw new SQLException("Failed to insert product and brand for CSV line: " + csvLine);
     }
 
-    private static int insertBrand(Connection dbConnection, Map<String, Integer> brandMap, String brand) throws SQLException {
+    private static int insertBrand(Connection dbConnection, KeyDictionary brandMap, String brand) throws SQLException {
         if (brandMap.containsKey(brand)) {
             return brandMap.get(brand);
         }
@@ -329,7 +649,9 @@ public class Ingestor
         String sql = "INSERT INTO brand (name) VALUES (?) RETURNING id";
         try (PreparedStatement stmt = dbConnection.prepareStatement(sql)) {
             stmt.setString(1, brand);
+            long start = System.nanoTime();
             try (ResultSet rs = stmt.executeQuery()) {
+                INSERT_BRAND.roundTrip(start);
                 if (rs.next()) {
                     int brandId = rs.getInt(1);
                     brandMap.put(brand, brandId);
@@ -348,7 +670,9 @@ public class Ingestor
             stmt.setInt(1, idProduct);
             stmt.setInt(2, csvLine);
             stmt.setString(3, brand);
+            long start = System.nanoTime();
             try (ResultSet rs = stmt.executeQuery()) {
+                INSERT_CSV_BRAND.roundTrip(start);
                 if (!rs.next()) {
                     throw new SQLException("Failed to insert CSV brand for product ID: " + idProduct + " at CSV line: " + csvLine);
                 }
@@ -356,13 +680,17 @@ public class Ingestor
         }
     }
 
-    private static int insertVariant(Connection dbConnection, Map<String, Integer> variantMap, int idProduct,
-                                     int csvLine, String variantId, String ageGroup, String gender, String sizeType) throws SQLException {
+    private static int insertVariant(Connection dbConnection, KeyDictionary variantMap, GenderAccumulator genders,
+                                     int idProduct, int csvLine, String variantId, String ageGroup, String gender,
+                                     int genderFlag, String sizeType) throws SQLException {
         if (variantMap.containsKey(variantId)) {
             int idVariant = variantMap.get(variantId);
             insertCsvAgeGroup(dbConnection, idVariant, csvLine, ageGroup);
             insertCsvGender(dbConnection, idVariant, csvLine, gender);
-            updateGender(dbConnection, gender, idVariant);
+            if (genderFlag == 0) {
+                recordInvalidGenderWarning(gender, idVariant);
+            }
+            genders.add(idVariant, genderFlag);
             return idVariant;
         }
 
@@ -377,10 +705,13 @@ public class Ingestor
             stmt.setBoolean(6, "unisex".equalsIgnoreCase(gender));
             stmt.setString(7, sizeType);
 
+            long start = System.nanoTime();
             try (ResultSet rs = stmt.executeQuery()) {
+                INSERT_VARIANT.roundTrip(start);
                 if (rs.next()) {
                     int idVariant = rs.getInt(1);
                     variantMap.put(variantId, idVariant);
+                    genders.inserted(idVariant, genderFlag);
                     insertCsvAgeGroup(dbConnection, idVariant, csvLine, ageGroup);
                     insertCsvGender(dbConnection, idVariant, csvLine, gender);
                     return idVariant;
@@ -391,28 +722,7 @@ public class Ingestor
         throw new SQLException("Failed to insert variant for ID: " + variantId + " at CSV line: " + csvLine);
     }
 
-    private static void updateGender(Connection dbConnection, String gender, int idVariant) throws SQLException {
-        String normalizedGender = gender.toLowerCase();
-
-        if (isValidGender(normalizedGender)) {
-            String sql = "UPDATE variant SET gender_" + normalizedGender + " = true WHERE id = ?";
-
-            try (PreparedStatement stmt = dbConnection.prepareStatement(sql)) {
-                stmt.setInt(1, idVariant);
-                stmt.executeUpdate();
-            }
-        } else {
-            // Record a warning for invalid gender
-            recordInvalidGenderWarning(gender, idVariant);
-        }
-    }
-
-    private static boolean isValidGender(String gender) {
-        return "male".equals(gender) || "female".equals(gender) || "unisex".equals(gender);
-    }
-
-    private static void recordInvalidGenderWarning(String gender, int idVariant) {
-        // Implement warning logging here
+    static void recordInvalidGenderWarning(String gender, int idVariant) {
         System.err.println("Warning: Invalid gender '" + gender + "' for variant ID: " + idVariant);
     }
 
@@ -424,7 +734,9 @@ public class Ingestor
             stmt.setInt(2, csvLine);
             stmt.setString(3, ageGroup);
 
+            long start = System.nanoTime();
             try (ResultSet rs = stmt.executeQuery()) {
+                INSERT_CSV_AGE_GROUP.roundTrip(start);
                 if (!rs.next()) {
                     throw new SQLException("Insertion failed, no ID returned for variant ID: " + idVariant);
                 }
@@ -440,7 +752,9 @@ public class Ingestor
             stmt.setInt(2, csvLine);
             stmt.setString(3, gender);
 
+            long start = System.nanoTime();
             try (ResultSet rs = stmt.executeQuery()) {
+                INSERT_CSV_GENDER.roundTrip(start);
                 if (!rs.next()) {
                     throw new SQLException("Insertion failed, no ID returned for variant ID: " + idVariant);
                 }
@@ -448,26 +762,26 @@ public class Ingestor
         }
     }
 
-    private static void insertLocalizedMeta(Connection dbConnection, int idVariant, int csvLine,
-                                            String sizeLabel, String productName, String color, String productType) throws SQLException {
-        String sql = "INSERT INTO localized_meta(id_variant, csv_line, locale, size_label, product_name, color, product_type) VALUES (?, ?, ?, ?, ?, ?, ?) RETURNING id";
+    private static void insertLocalizedMeta(Connection dbConnection, LookupTables lookups, int idVariant, int csvLine,
+                                            String locale, String sizeLabel, String productName, String color,
+                                            String productType) throws SQLException {
+        String sql = "INSERT INTO localized_meta(id_variant, csv_line, id_locale, id_size_label, product_name, id_color, id_product_type) VALUES (?, ?, ?, ?, ?, ?, ?) RETURNING id";
 
         try (PreparedStatement stmt = dbConnection.prepareStatement(sql)) {
             stmt.setInt(1, idVariant);
             stmt.setInt(2, csvLine);
-
-            // Detect language
-            String locale = detector.detect(productName + " " + color + " " + productType.replace(">", " ")).getLanguage();
-            stmt.setString(3, locale);
+            lookups.setId(stmt, 3, LookupTables.LOCALE, locale);
 
             // Set other parameters
-            stmt.setString(4, sizeLabel);
+            lookups.setId(stmt, 4, LookupTables.SIZE_LABEL, sizeLabel);
             stmt.setString(5, productName);
-            stmt.setString(6, color);
-            stmt.setString(7, productType);
+            lookups.setId(stmt, 6, LookupTables.COLOR, color);
+            lookups.setId(stmt, 7, LookupTables.PRODUCT_TYPE, productType);
 
             // Execute the insert
+            long start = System.nanoTime();
             try (ResultSet rs = stmt.executeQuery()) {
+                INSERT_LOCALIZED_META.roundTrip(start);
                 if (!rs.next()) {
                     throw new SQLException("Insertion failed, no ID returned for variant ID: " + idVariant);
                 }
@@ -475,5 +789,62 @@ public class Ingestor
         }
     }
 
-}
+    /**
+     * Row by row path: every line costs a few synchronous round trips to the database.
+     */
+    private static class RowByRowSink implements RowSink
+    {
+        private final Connection dbConnection;
+        private final KeyDictionary productMap;
+        private final KeyDictionary variantMap;
+        private final KeyDictionary brandMap;
+        private final GenderAccumulator genders;
+        private final LookupTables lookups;
+        private final WarningsSink warnings;
+
+        RowByRowSink(Connection dbConnection, KeyDictionary brandMap, KeyDictionary productMap,
+                     KeyDictionary variantMap, WarningsSink warnings) throws SQLException {
+            this.dbConnection = dbConnection;
+            this.brandMap = brandMap;
+            this.productMap = productMap;
+            this.variantMap = variantMap;
+            this.genders = new GenderAccumulator(dbConnection, GENDER_ACCUMULATOR_SIZE);
+            this.lookups = new LookupTables(dbConnection);
+            this.warnings = warnings;
+        }
 
+        @Override
+        public void addRow(CsvRow row) throws SQLException {
+            int idProduct = insertProductAndBrand(dbConnection, productMap, brandMap, row.csvLine,
+                    row.productId, row.brand);
+            int idVariant = insertVariant(dbConnection, variantMap, genders, idProduct, row.csvLine,
+                    row.variantId, row.ageGroup, row.gender, row.genderFlag, row.sizeType);
+            insertLocalizedMeta(dbConnection, lookups, idVariant, row.csvLine, row.locale,
+                    row.sizeLabel, row.productName, row.color, row.productType);
+            if (genders.isFull()) {
+                genders.flush();
+                genders.clear();
+            }
+        }
+
+        @Override
+        public void dropRow(int csvLine, int emptyField) throws SQLException {
+            warnings.add(csvLine, "WARNING_EMPTY_FIELD", WARNING_EMPTY_FIELD + emptyField);
+        }
+
+        /**
+         * The rows have already been written, only the gender flags gathered since the last flush are left. The
+         * warnings are flushed by their own sink.
+         */
+        @Override
+        public void flush() throws SQLException {
+            genders.flush();
+        }
+
+        @Override
+        public void finish() throws SQLException {
+            lookups.close();
+            genders.close();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package ca.ulex;
+
+import java.util.Arrays;
+
+/**
+ * Compact String to int dictionary for the product, variant and brand id maps, without an object per key. Values must
+ * be non-negative, and instances are not thread-safe.
+ */
+class KeyDictionary
+{
+    static final int NOT_FOUND = -1;
+
+    private static final int PAGE_BITS = 22;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    // Packed numeric keys: <number> or <number>-<number>, without leading zeros
+    private static final int SUFFIX_BITS = 23;
+    private static final long MAX_PREFIX = (1L << (62 - SUFFIX_BITS)) - 1;
+    private static final long NUMBER_FLAG = 1L << 62;
+
+    // Arena keys: the table holds entry index + 1, 0 meaning empty
+    private int[] table = new int[16];
+    private int[] hashes = new int[16];
+    private long[] keyRefs = new long[16];
+    private int[] values = new int[16];
+    private int entries = 0;
+    private byte[][] pages = new byte[1][];
+    private int pageCount = 0;
+    private int pagePosition = PAGE_SIZE;
+    private byte[] scratch = new byte[64];
+
+    // Packed numeric keys: the key is stored + 1, 0 meaning empty
+    private long[] packedKeys = new long[16];
+    private int[] packedValues = new int[16];
+    private int packedEntries = 0;
+
+    int get(String key) {
+        long packed = pack(key);
+        if (packed >= 0) {
+            return getPacked(packed);
+        }
+
+        int length = encode(key);
+        int hash = hash(scratch, length);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (entry < 0) {
+                return NOT_FOUND;
+            }
+            if (hashes[entry] == hash && keyEquals(keyRefs[entry], length)) {
+                return values[entry];
+            }
+        }
+    }
+
+    boolean containsKey(String key) {
+        return get(key) != NOT_FOUND;
+    }
+
+    void put(String key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value for key: " + key);
+        }
+        long packed = pack(key);
+        if (packed >= 0) {
+            putPacked(packed, value);
+            return;
+        }
+
+        int length = encode(key);
+        int hash = hash(scratch, length);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (; table[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (hashes[entry] == hash && keyEquals(keyRefs[entry], length)) {
+                values[entry] = value;
+                return;
+            }
+        }
+
+        if (entries == hashes.length) {
+            int capacity = hashes.length * 2;
+            hashes = Arrays.copyOf(hashes, capacity);
+            keyRefs = Arrays.copyOf(keyRefs, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        hashes[entries] = hash;
+        keyRefs[entries] = store(length);
+        values[entries] = value;
+        table[slot] = ++entries;
+
+        if (entries > table.length * LOAD_FACTOR) {
+            rehash();
+        }
+    }
+
+    int size() {
+        return entries + packedEntries;
+    }
+
+    /**
+     * Approximate heap used by the dictionary, in bytes.
+     */
+    long memoryBytes() {
+        return 4L * table.length + 16L * hashes.length + (long) pageCount * PAGE_SIZE
+                + 12L * packedKeys.length;
+    }
+
+    private int getPacked(long packed) {
+        long stored = packed + 1;
+        int mask = packedKeys.length - 1;
+        for (int slot = hash(stored) & mask; ; slot = (slot + 1) & mask) {
+            if (packedKeys[slot] == stored) {
+                return packedValues[slot];
+            }
+            if (packedKeys[slot] == 0) {
+                return NOT_FOUND;
+            }
+        }
+    }
+
+    private void putPacked(long packed, int value) {
+        long stored = packed + 1;
+        int mask = packedKeys.length - 1;
+        int slot = hash(stored) & mask;
+        for (; packedKeys[slot] != 0; slot = (slot + 1) & mask) {
+            if (packedKeys[slot] == stored) {
+                packedValues[slot] = value;
+                return;
+            }
+        }
+        packedKeys[slot] = stored;
+        packedValues[slot] = value;
+        if (++packedEntries > packedKeys.length * LOAD_FACTOR) {
+            rehashPacked();
+        }
+    }
+
+    private void rehash() {
+        int[] newTable = new int[table.length * 2];
+        int mask = newTable.length - 1;
+        for (int entry = 0; entry < entries; entry++) {
+            int slot = hashes[entry] & mask;
+            while (newTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = entry + 1;
+        }
+        table = newTable;
+    }
+
+    private void rehashPacked() {
+        long[] oldKeys = packedKeys;
+        int[] oldValues = packedValues;
+        packedKeys = new long[oldKeys.length * 2];
+        packedValues = new int[oldKeys.length * 2];
+        int mask = packedKeys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (packedKeys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                packedKeys[slot] = oldKeys[i];
+                packedValues[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Packs keys like {@code 12620014} or {@code 12620014-17} into a long, returns -1 for any other key.
+     */
+    static long pack(String key) {
+        int dash = key.indexOf('-');
+        if (dash < 0) {
+            long number = parseDigits(key, 0, key.length(), NUMBER_FLAG - 1);
+            return number < 0 ? -1 : NUMBER_FLAG | number;
+        }
+        if (dash == 0 || dash == key.length() - 1) {
+            return -1;
+        }
+        long prefix = parseDigits(key, 0, dash, MAX_PREFIX);
+        long suffix = parseDigits(key, dash + 1, key.length(), (1L << SUFFIX_BITS) - 1);
+        if (prefix < 0 || suffix < 0) {
+            return -1;
+        }
+        return (prefix << SUFFIX_BITS) | suffix;
+    }
+
+    private static long parseDigits(String key, int start, int end, long max) {
+        if (end == start || (end - start > 1 && key.charAt(start) == '0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            if (value > (max - (c - '0')) / 10) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+            if (value > max) {
+                return -1;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Encodes the key as UTF-8 into the scratch buffer, returns the number of bytes.
+     */
+    private int encode(String key) {
+        int maxLength = key.length() * 3;
+        if (scratch.length < maxLength) {
+            scratch = new byte[Math.max(maxLength, scratch.length * 2)];
+        }
+        int length = 0;
+        for (int i = 0; i < key.length(); i++) {
+            int c = key.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < key.length()
+                    && Character.isLowSurrogate(key.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, key.charAt(++i));
+            }
+            if (c < 0x80) {
+                scratch[length++] = (byte) c;
+            } else if (c < 0x800) {
+                scratch[length++] = (byte) (0xC0 | (c >> 6));
+                scratch[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (c < 0x10000) {
+                scratch[length++] = (byte) (0xE0 | (c >> 12));
+                scratch[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                scratch[length++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                scratch[length++] = (byte) (0xF0 | (c >> 18));
+                scratch[length++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+                scratch[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                scratch[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Copies the encoded key into the arena, prefixed by its length, and returns its reference.
+     */
+    private long store(int length) {
+        int needed = length + 2;
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("Key too long: " + length + " bytes");
+        }
+        if (pagePosition + needed > PAGE_SIZE) {
+            if (pageCount == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length * 2);
+            }
+            pages[pageCount++] = new byte[PAGE_SIZE];
+            pagePosition = 0;
+        }
+        byte[] page = pages[pageCount - 1];
+        page[pagePosition] = (byte) (length >> 8);
+        page[pagePosition + 1] = (byte) length;
+        System.arraycopy(scratch, 0, page, pagePosition + 2, length);
+        long ref = ((long) (pageCount - 1) << PAGE_BITS) | pagePosition;
+        pagePosition += needed;
+        return ref;
+    }
+
+    private boolean keyEquals(long ref, int length) {
+        byte[] page = pages[(int) (ref >>> PAGE_BITS)];
+        int position = (int) (ref & (PAGE_SIZE - 1));
+        int storedLength = ((page[position] & 0xFF) << 8) | (page[position + 1] & 0xFF);
+        if (storedLength != length) {
+            return false;
+        }
+        return Arrays.equals(page, position + 2, position + 2 + length, scratch, 0, length);
+    }
+
+    private static int hash(byte[] bytes, int length) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ bytes[i]) * 0x01000193;
+        }
+        return mix(h);
+    }
+
+    private static int hash(long key) {
+        return mix((int) (key ^ (key >>> 32)) * 0x9E3779B1);
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -0,0 +1,387 @@
+package ca.ulex;
+
+import com.optimaize.langdetect.DetectedLanguage;
+import com.optimaize.langdetect.LanguageDetectorBuilder;
+import com.optimaize.langdetect.i18n.LdLocale;
+import com.optimaize.langdetect.ngram.NgramExtractors;
+import com.optimaize.langdetect.profiles.BuiltInLanguages;
+import com.optimaize.langdetect.profiles.LanguageProfile;
+import com.optimaize.langdetect.profiles.LanguageProfileReader;
+import org.apache.tika.language.detect.LanguageConfidence;
+import org.apache.tika.language.detect.LanguageNames;
+import org.apache.tika.language.detect.LanguageResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The language models of {@link Ingestor#LOCALES}, loaded once per process on a background thread ({@link #preload})
+ * from a snapshot of their Optimaize n-grams made by the build ({@link #main}), or else from the Optimaize profiles.
+ * The probabilities, and the language a tie goes to, are those of Tika's OptimaizeLangDetector.
+ */
+final class LanguageModels
+{
+    static final String SNAPSHOT = "language-models.bin";
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int MAX_CHARS_FOR_DETECTION = 20000;
+    // Tika adds a text by chunks of this length, each followed by a space
+    private static final int CHUNK_LENGTH = 4096;
+    // Shorter texts are scored by OptimaizeLangDetector with the short text algorithm
+    private static final int SHORT_TEXT_LENGTH = 30;
+    private static final Metrics.Stage LOAD = Metrics.stage("language_models");
+
+    private static FutureTask<com.optimaize.langdetect.LanguageDetector> models;
+
+    private LanguageModels() {
+    }
+
+    /**
+     * Starts loading the models in the background, if not already done.
+     */
+    static synchronized void preload() {
+        if (models != null) {
+            return;
+        }
+        models = new FutureTask<>(LanguageModels::load);
+        Thread loader = new Thread(models, "language-models");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * A new detector, not thread-safe, waiting for the models if needed.
+     */
+    static Detector newDetector() {
+        preload();
+        try {
+            return new Detector(models.get());
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not load the language models", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading the language models", e);
+        }
+    }
+
+    private static com.optimaize.langdetect.LanguageDetector load() throws IOException {
+        long start = System.nanoTime();
+        List<LanguageProfile> profiles;
+        String source = "snapshot";
+        try (InputStream in = LanguageModels.class.getResourceAsStream(SNAPSHOT)) {
+            profiles = in == null ? null : readSnapshot(in, locales());
+        }
+        if (profiles == null) {
+            source = "profiles";
+            try {
+                profiles = new LanguageProfileReader().readBuiltIn(locales());
+            } catch (IOException e) {
+                profiles = new LanguageProfileReader().readAllBuiltIn();
+            }
+        }
+        com.optimaize.langdetect.LanguageDetector detector = LanguageDetectorBuilder.create(NgramExtractors.standard())
+                .shortTextAlgorithm(SHORT_TEXT_LENGTH)
+                .withProfiles(profiles)
+                .build();
+        LOAD.record(start);
+        System.out.println("\nLanguage models of " + profiles.size() + " locales loaded from the " + source + " in "
+                + Utils.formatTime((System.nanoTime() - start) / 1_000_000));
+        return detector;
+    }
+
+    /**
+     * The built-in Optimaize locales named in {@link Ingestor#LOCALES}, as Tika matches them.
+     */
+    private static List<LdLocale> locales() {
+        Set<String> names = new HashSet<>();
+        for (String locale : Ingestor.LOCALES) {
+            names.add(LanguageNames.normalizeName(locale));
+        }
+        List<LdLocale> locales = new ArrayList<>();
+        for (LdLocale locale : BuiltInLanguages.getLanguages()) {
+            if (names.contains(languageName(locale))) {
+                locales.add(locale);
+            }
+        }
+        return locales;
+    }
+
+    private static String languageName(LdLocale locale) {
+        return LanguageNames.makeName(locale.getLanguage(), locale.getScript().orNull(), locale.getRegion().orNull());
+    }
+
+    /**
+     * Writes the snapshot of the n-grams of the locales to the given file, run by the build.
+     */
+    public static void main(String[] args) throws IOException {
+        List<LdLocale> locales = locales();
+        List<LanguageProfile> profiles = new LanguageProfileReader().readBuiltIn(locales);
+        Files.createDirectories(Paths.get(args[0]).toAbsolutePath().getParent());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(Paths.get(args[0]))))) {
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(profiles.size());
+            for (LanguageProfile profile : profiles) {
+                out.writeUTF(profile.getLocale().toString());
+                out.writeInt(profile.getGramLengths().size());
+                for (int gramLength : profile.getGramLengths()) {
+                    TreeSet<String> grams = new TreeSet<>();
+                    for (Map.Entry<String, Integer> gram : profile.iterateGrams(gramLength)) {
+                        grams.add(gram.getKey());
+                    }
+                    out.writeInt(gramLength);
+                    out.writeInt(grams.size());
+                    for (String gram : grams) {
+                        out.writeUTF(gram);
+                        out.writeInt(profile.getFrequency(gram));
+                    }
+                }
+            }
+        }
+        System.out.println("Language models of " + profiles.size() + " locales written to " + args[0]);
+    }
+
+    /**
+     * The profiles of the snapshot, or null if it was not made for these locales.
+     */
+    private static List<LanguageProfile> readSnapshot(InputStream snapshot, List<LdLocale> locales)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(snapshot, 1 << 16));
+        if (in.readInt() != SNAPSHOT_VERSION) {
+            return null;
+        }
+        List<LanguageProfile> profiles = new ArrayList<>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            LdLocale locale = LdLocale.fromString(in.readUTF());
+            int[] gramLengths = new int[in.readInt()];
+            String[][] grams = new String[gramLengths.length][];
+            int[][] frequencies = new int[gramLengths.length][];
+            for (int j = 0; j < gramLengths.length; j++) {
+                gramLengths[j] = in.readInt();
+                grams[j] = new String[in.readInt()];
+                frequencies[j] = new int[grams[j].length];
+                for (int k = 0; k < grams[j].length; k++) {
+                    grams[j][k] = in.readUTF();
+                    frequencies[j][k] = in.readInt();
+                }
+            }
+            profiles.add(new CompactProfile(locale, gramLengths, grams, frequencies));
+        }
+        List<LdLocale> snapshotLocales = new ArrayList<>();
+        for (LanguageProfile profile : profiles) {
+            snapshotLocales.add(profile.getLocale());
+        }
+        return new HashSet<>(snapshotLocales).equals(new HashSet<>(locales)) ? profiles : null;
+    }
+
+    /**
+     * A profile held in sorted arrays of n-grams and frequencies, by n-gram length.
+     */
+    private static final class CompactProfile implements LanguageProfile
+    {
+        private final LdLocale locale;
+        private final List<Integer> gramLengths;
+        private final String[][] grams;
+        private final int[][] frequencies;
+        private final long[] occurrences;
+        private final long[] minCounts;
+        private final long[] maxCounts;
+        private final int hashCode;
+
+        CompactProfile(LdLocale locale, int[] gramLengths, String[][] grams, int[][] frequencies) {
+            this.locale = locale;
+            List<Integer> lengths = new ArrayList<>();
+            for (int gramLength : gramLengths) {
+                lengths.add(gramLength);
+            }
+            this.gramLengths = Collections.unmodifiableList(lengths);
+            this.grams = grams;
+            this.frequencies = frequencies;
+            this.occurrences = new long[gramLengths.length];
+            this.minCounts = new long[gramLengths.length];
+            this.maxCounts = new long[gramLengths.length];
+            for (int i = 0; i < gramLengths.length; i++) {
+                minCounts[i] = frequencies[i].length == 0 ? 0 : Long.MAX_VALUE;
+                for (int frequency : frequencies[i]) {
+                    occurrences[i] += frequency;
+                    minCounts[i] = Math.min(minCounts[i], frequency);
+                    maxCounts[i] = Math.max(maxCounts[i], frequency);
+                }
+            }
+            this.hashCode = 31 * locale.hashCode() + ngramsHashCode(gramLengths, grams, frequencies);
+        }
+
+        /**
+         * The hash code of the n-grams as the map of LanguageProfileImpl, by length then n-gram, would have it.
+         */
+        private static int ngramsHashCode(int[] gramLengths, String[][] grams, int[][] frequencies) {
+            int hashCode = 0;
+            for (int i = 0; i < gramLengths.length; i++) {
+                int lengthHashCode = 0;
+                for (int j = 0; j < grams[i].length; j++) {
+                    lengthHashCode += grams[i][j].hashCode() ^ Integer.hashCode(frequencies[i][j]);
+                }
+                hashCode += Integer.hashCode(gramLengths[i]) ^ lengthHashCode;
+            }
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CompactProfile)) {
+                return false;
+            }
+            CompactProfile other = (CompactProfile) o;
+            return locale.equals(other.locale) && gramLengths.equals(other.gramLengths)
+                    && Arrays.deepEquals(grams, other.grams) && Arrays.deepEquals(frequencies, other.frequencies);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public LdLocale getLocale() {
+            return locale;
+        }
+
+        @Override
+        public List<Integer> getGramLengths() {
+            return gramLengths;
+        }
+
+        @Override
+        public int getFrequency(String gram) {
+            int index = gramLengths.indexOf(gram.length());
+            if (index < 0) {
+                return 0;
+            }
+            int found = Arrays.binarySearch(grams[index], gram);
+            return found < 0 ? 0 : frequencies[index][found];
+        }
+
+        @Override
+        public int getNumGrams(int gramLength) {
+            int index = gramLengths.indexOf(gramLength);
+            return index < 0 ? 0 : grams[index].length;
+        }
+
+        @Override
+        public int getNumGrams() {
+            int count = 0;
+            for (String[] lengthGrams : grams) {
+                count += lengthGrams.length;
+            }
+            return count;
+        }
+
+        @Override
+        public long getNumGramOccurrences(int gramLength) {
+            int index = gramLengths.indexOf(gramLength);
+            return index < 0 ? 0 : occurrences[index];
+        }
+
+        @Override
+        public long getMinGramCount(int gramLength) {
+            int index = gramLengths.indexOf(gramLength);
+            return index < 0 ? 0 : minCounts[index];
+        }
+
+        @Override
+        public long getMaxGramCount(int gramLength) {
+            int index = gramLengths.indexOf(gramLength);
+            return index < 0 ? 0 : maxCounts[index];
+        }
+
+        @Override
+        public Iterable<Map.Entry<String, Integer>> iterateGrams() {
+            List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+            for (int gramLength : gramLengths) {
+                for (Map.Entry<String, Integer> entry : iterateGrams(gramLength)) {
+                    entries.add(entry);
+                }
+            }
+            return entries;
+        }
+
+        @Override
+        public Iterable<Map.Entry<String, Integer>> iterateGrams(int gramLength) {
+            int index = gramLengths.indexOf(gramLength);
+            if (index < 0) {
+                return Collections.emptyList();
+            }
+            List<Map.Entry<String, Integer>> entries = new ArrayList<>(grams[index].length);
+            for (int i = 0; i < grams[index].length; i++) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(grams[index][i], frequencies[index][i]));
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * The text buffer and results of OptimaizeLangDetector, over a shared model. Only detects a whole text at a time,
+     * which is all the ingestion needs of Tika's LanguageDetector.
+     */
+    static final class Detector
+    {
+        private final com.optimaize.langdetect.LanguageDetector detector;
+        private final StringBuilder buffer = new StringBuilder();
+
+        private Detector(com.optimaize.langdetect.LanguageDetector detector) {
+            this.detector = detector;
+        }
+
+        /**
+         * The most probable language of the text, as Tika names it, or an empty string if none.
+         */
+        String detect(String text) {
+            return detectAll(text).get(0).getLanguage();
+        }
+
+        /**
+         * The languages of the text, most probable first, as given by Tika's OptimaizeLangDetector.
+         */
+        List<LanguageResult> detectAll(String text) {
+            buffer.setLength(0);
+            int start = 0;
+            do {
+                int end = Math.min(start + CHUNK_LENGTH, text.length());
+                buffer.append(text, start, end).append(' ');
+                start = end;
+            } while (start < text.length() && buffer.length() < MAX_CHARS_FOR_DETECTION);
+
+            List<LanguageResult> results = new ArrayList<>();
+            for (DetectedLanguage language : detector.getProbabilities(buffer)) {
+                LanguageConfidence confidence = language.getProbability() > 0.9
+                        ? LanguageConfidence.HIGH : LanguageConfidence.MEDIUM;
+                results.add(new LanguageResult(languageName(language.getLocale()), confidence,
+                        (float) language.getProbability()));
+            }
+            if (results.isEmpty()) {
+                results.add(LanguageResult.NULL);
+            }
+            return results;
+        }
+    }
+}
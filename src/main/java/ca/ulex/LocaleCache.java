@@ -0,0 +1,89 @@
+package ca.ulex;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded memoizing cache in front of the language detector, keyed by the text detected or only by the product type.
+ * An instance is not thread-safe, each pipeline worker owns one.
+ */
+class LocaleCache
+{
+    static final String POLICY_LRU = "lru";
+    static final String POLICY_FIFO = "fifo";
+    static final String KEY_EXACT = "exact";
+    static final String KEY_PRODUCT_TYPE = "product_type";
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    private final LanguageModels.Detector detector;
+    private final boolean productTypeKey;
+    private final Map<String, String> cache;
+
+    LocaleCache(LanguageModels.Detector detector, int capacity, String policy, String keying) {
+        if (!POLICY_LRU.equals(policy) && !POLICY_FIFO.equals(policy)) {
+            throw new IllegalArgumentException("Invalid locale cache policy: " + policy);
+        }
+        if (!KEY_EXACT.equals(keying) && !KEY_PRODUCT_TYPE.equals(keying)) {
+            throw new IllegalArgumentException("Invalid locale cache key: " + keying);
+        }
+        this.detector = detector;
+        this.productTypeKey = KEY_PRODUCT_TYPE.equals(keying);
+        this.cache = capacity <= 0 ? null : new LinkedHashMap<>(16, 0.75f, POLICY_LRU.equals(policy)) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    String detect(CsvRow row) {
+        String text = row.detectionText();
+        if (cache == null) {
+            return detector.detect(text);
+        }
+
+        String key = productTypeKey ? row.productType : text;
+        String locale = cache.get(key);
+        if (locale != null) {
+            hits.increment();
+            return locale;
+        }
+
+        misses.increment();
+        locale = detector.detect(text);
+        cache.put(key, locale);
+        return locale;
+    }
+
+    static long getHits() {
+        return hits.sum();
+    }
+
+    static long getMisses() {
+        return misses.sum();
+    }
+
+    static long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Prints the counts of a run, the counters being those of the whole process.
+     */
+    static void printStats(Metrics.Snapshot run) {
+        long lookups = run.localeCacheHits + run.localeCacheMisses;
+        System.out.println("\nLocale cache:");
+        System.out.println("    Hits           : " + Utils.DECIMAL_FORMAT.format(run.localeCacheHits)
+                + (lookups == 0 ? "" : String.format(" (%.1f%%)", 100.0 * run.localeCacheHits / lookups)));
+        System.out.println("    Misses         : " + Utils.DECIMAL_FORMAT.format(run.localeCacheMisses));
+        System.out.println("    Evictions      : " + Utils.DECIMAL_FORMAT.format(run.localeCacheEvictions));
+    }
+}
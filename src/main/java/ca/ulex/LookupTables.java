@@ -0,0 +1,90 @@
+package ca.ulex;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+/**
+ * The ids of the locales, size labels, colors and product types of localized_meta, each value stored once in its
+ * lookup table. A value not seen yet is inserted at once, or read back if another load has added it meanwhile.
+ */
+class LookupTables
+{
+    // Each table has the name of the localized_meta column it replaces, and of the staging_csv column
+    static final String[] TABLES = {"locale", "size_label", "color", "product_type"};
+    static final int LOCALE = 0;
+    static final int SIZE_LABEL = 1;
+    static final int COLOR = 2;
+    static final int PRODUCT_TYPE = 3;
+
+    private final KeyDictionary[] ids = new KeyDictionary[TABLES.length];
+    private final PreparedStatement[] inserts = new PreparedStatement[TABLES.length];
+    private final PreparedStatement[] selects = new PreparedStatement[TABLES.length];
+    private final Metrics.Stage[] insertStages = new Metrics.Stage[TABLES.length];
+
+    LookupTables(Connection dbConnection) throws SQLException {
+        try (Statement stmt = dbConnection.createStatement()) {
+            for (int i = 0; i < TABLES.length; i++) {
+                ids[i] = new KeyDictionary();
+                try (ResultSet rs = stmt.executeQuery("SELECT id, name FROM " + TABLES[i])) {
+                    while (rs.next()) {
+                        ids[i].put(rs.getString(2), rs.getInt(1));
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < TABLES.length; i++) {
+            inserts[i] = dbConnection.prepareStatement(
+                    "INSERT INTO " + TABLES[i] + " (name) VALUES (?) ON CONFLICT (name) DO NOTHING RETURNING id");
+            selects[i] = dbConnection.prepareStatement("SELECT id FROM " + TABLES[i] + " WHERE name = ?");
+            insertStages[i] = Metrics.stage("insert." + TABLES[i]);
+        }
+    }
+
+    /**
+     * Sets the parameter to the id of the value in the table, adding it if new, or to NULL.
+     */
+    void setId(PreparedStatement stmt, int parameterIndex, int table, String value) throws SQLException {
+        if (value == null) {
+            stmt.setNull(parameterIndex, Types.INTEGER);
+            return;
+        }
+        int id = ids[table].get(value);
+        if (id == KeyDictionary.NOT_FOUND) {
+            id = insert(table, value);
+            ids[table].put(value, id);
+        }
+        stmt.setInt(parameterIndex, id);
+    }
+
+    private int insert(int table, String value) throws SQLException {
+        long start = System.nanoTime();
+        inserts[table].setString(1, value);
+        try (ResultSet rs = inserts[table].executeQuery()) {
+            insertStages[table].roundTrip(start);
+            if (rs.next()) {
+                return rs.getInt(1);
+            }
+        }
+        // Added by another load
+        start = System.nanoTime();
+        selects[table].setString(1, value);
+        try (ResultSet rs = selects[table].executeQuery()) {
+            insertStages[table].roundTrip(start);
+            if (!rs.next()) {
+                throw new SQLException("No " + TABLES[table] + " named " + value + " after a conflicting insert");
+            }
+            return rs.getInt(1);
+        }
+    }
+
+    void close() throws SQLException {
+        for (int i = 0; i < TABLES.length; i++) {
+            inserts[i].close();
+            selects[i].close();
+        }
+    }
+}
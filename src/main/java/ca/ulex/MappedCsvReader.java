@@ -0,0 +1,424 @@
+package ca.ulex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * CSV reader working directly on the UTF-8 bytes of a memory-mapped file, giving the records of opencsv's default
+ * {@code CSVReader}. Fields are only decoded into Strings when asked for, and a reader can be split into readers over
+ * byte ranges of the file ({@link #range}).
+ */
+class MappedCsvReader implements CsvSource
+{
+    private static final byte SEPARATOR = ',';
+    private static final byte QUOTE = '"';
+    private static final byte ESCAPE = '\\';
+    private static final int BEGINNING_OF_LINE = 3;
+    private static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE - 8;
+    private static final int NEEDS_MORE_DATA = -1;
+
+    private final FileChannel channel;
+    private final boolean ownsChannel;
+    private final long fileSize;
+    private final long end;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private MappedByteBuffer window;
+    private ByteBuffer windowView;
+    private long windowStart = 0;
+    private int windowLength = 0;
+    private long position = 0;
+
+    // Current record: each field is a slice of the window or of the scratch buffer
+    private int fieldCount = 0;
+    private int[] fieldOffsets = new int[16];
+    private int[] fieldLengths = new int[16];
+    private boolean[] fieldInScratch = new boolean[16];
+    private byte[] scratch = new byte[1024];
+    private int scratchLength = 0;
+    private byte[] decodeBuffer = new byte[1024];
+
+    // Field being parsed: scratch[fieldStart, scratchLength) followed by window[from, to)
+    private int fieldStart;
+    private int from;
+    private int to;
+
+    // Like in opencsv, this one carries over from one line to the next
+    private boolean inField = false;
+
+    MappedCsvReader(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.ownsChannel = true;
+        this.fileSize = channel.size();
+        this.end = fileSize;
+    }
+
+    private MappedCsvReader(MappedCsvReader parent, long start, long end) {
+        this.channel = parent.channel;
+        this.ownsChannel = false;
+        this.fileSize = parent.fileSize;
+        this.end = end;
+        this.position = start;
+        this.windowSize = (int) Math.min(Math.max(end - start, 1 << 16), DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Reader over the records starting in [start, end) of the same file, both offsets being record starts as
+     * returned by {@link #position} or {@link #skipTo}. The returned reader shares this one's file channel, it must
+     * be closed before this one but closing it leaves the channel open.
+     */
+    MappedCsvReader range(long start, long end) {
+        return new MappedCsvReader(this, start, end);
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (position < end) {
+            if (window == null || position < windowStart || position >= windowStart + windowLength) {
+                map(position);
+            }
+            boolean inFieldAtStart = inField;
+            int end = parseRecord((int) (position - windowStart));
+            if (end != NEEDS_MORE_DATA) {
+                position = windowStart + end;
+                return true;
+            }
+
+            // The record goes past the end of the window
+            inField = inFieldAtStart;
+            if (position == windowStart) {
+                if (windowSize == MAX_WINDOW_SIZE) {
+                    throw new IOException("CSV record too large at byte offset " + position);
+                }
+                windowSize = (int) Math.min(2L * windowSize, MAX_WINDOW_SIZE);
+            }
+            map(position);
+        }
+        return false;
+    }
+
+    @Override
+    public int emptyField() {
+        for (int i = 0; i < fieldCount; i++) {
+            if (fieldLengths[i] == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String[] fields() {
+        String[] fields = new String[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            fields[i] = getString(i);
+        }
+        return fields;
+    }
+
+    int fieldCount() {
+        return fieldCount;
+    }
+
+    boolean isEmpty(int field) {
+        return fieldLengths[field] == 0;
+    }
+
+    String getString(int field) {
+        int length = fieldLengths[field];
+        if (fieldInScratch[field]) {
+            return new String(scratch, fieldOffsets[field], length, StandardCharsets.UTF_8);
+        }
+        if (decodeBuffer.length < length) {
+            decodeBuffer = new byte[Math.max(length, 2 * decodeBuffer.length)];
+        }
+        windowView.position(fieldOffsets[field]);
+        windowView.get(decodeBuffer, 0, length);
+        return new String(decodeBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Moves to the record starting at the given offset, as returned by {@link #position} or {@link #skipTo}.
+     */
+    void seek(long offset) {
+        position = offset;
+        inField = false;
+    }
+
+    long size() {
+        return fileSize;
+    }
+
+    /**
+     * Moves, without parsing the fields, to the first record starting at or after the given offset and returns its
+     * offset. Only the quoting state is tracked, with the same rules as the parser, so a newline inside a quoted
+     * field is never taken for the end of a record.
+     */
+    long skipTo(long target) throws IOException {
+        long p = position;
+        long recordStart = p;
+        boolean inQuotes = false;
+        boolean inRecordField = false;
+        while (recordStart < target && p < fileSize) {
+            // Keeps the next byte mapped too, for the \r\n and escape lookaheads
+            if (window == null || p < windowStart
+                    || (p + 2 > windowStart + windowLength && windowStart + windowLength < fileSize)) {
+                map(p);
+            }
+            int i = (int) (p - windowStart);
+            byte c = window.get(i);
+            byte n = i + 1 < windowLength ? window.get(i + 1) : 0;
+            boolean nextInLine = i + 1 < windowLength && n != '\n' && n != '\r';
+
+            if (c == '\n' || c == '\r') {
+                p += (c == '\r' && n == '\n') ? 2 : 1;
+                if (!inQuotes) {
+                    inRecordField = false;
+                    recordStart = p;
+                }
+            } else if (c == ESCAPE) {
+                inRecordField = true;
+                p += (nextInLine && isEscapable(n)) ? 2 : 1;
+            } else if (c == QUOTE) {
+                if ((inQuotes || inRecordField) && nextInLine && n == QUOTE) {
+                    p += 2;
+                } else {
+                    inQuotes = !inQuotes;
+                    p++;
+                }
+                inRecordField = !inRecordField;
+            } else {
+                if (c == SEPARATOR && !inQuotes) {
+                    inRecordField = false;
+                } else {
+                    inRecordField = true;
+                }
+                p++;
+            }
+        }
+        // Past the end of the file, the last record goes on to the end
+        position = recordStart < target ? fileSize : recordStart;
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsChannel) {
+            channel.close();
+        }
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        windowLength = (int) Math.min(windowSize, fileSize - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+        windowView = window.duplicate();
+    }
+
+    /**
+     * Parses one record starting at the given window offset, returns the offset following it or NEEDS_MORE_DATA
+     * if the window ends before the record does.
+     */
+    private int parseRecord(int start) throws IOException {
+        boolean windowIsLast = windowStart + windowLength >= fileSize;
+        fieldCount = 0;
+        scratchLength = 0;
+        startField(start);
+
+        boolean pending = false;
+        int lineStart = start;
+        while (true) {
+            int lineEnd = lineStart;
+            while (lineEnd < windowLength && window.get(lineEnd) != '\n' && window.get(lineEnd) != '\r') {
+                lineEnd++;
+            }
+            int next;
+            if (lineEnd == windowLength) {
+                if (!windowIsLast) {
+                    return NEEDS_MORE_DATA;
+                }
+                next = lineEnd;
+            } else if (window.get(lineEnd) == '\r') {
+                if (lineEnd + 1 == windowLength && !windowIsLast) {
+                    return NEEDS_MORE_DATA;
+                }
+                next = (lineEnd + 1 < windowLength && window.get(lineEnd + 1) == '\n') ? lineEnd + 2 : lineEnd + 1;
+            } else {
+                next = lineEnd + 1;
+            }
+
+            if (!parseLine(lineStart, lineEnd, pending)) {
+                endField();
+                return next;
+            }
+
+            // Quoted field going on over the next line
+            materialize();
+            appendScratch((byte) '\n');
+            if (next == windowLength) {
+                if (!windowIsLast) {
+                    return NEEDS_MORE_DATA;
+                }
+                throw new IOException("Unterminated quoted field at end of CSV file: "
+                        + new String(scratch, fieldStart, scratchLength - fieldStart, StandardCharsets.UTF_8));
+            }
+            pending = true;
+            lineStart = next;
+            from = to = lineStart;
+        }
+    }
+
+    /**
+     * Port of opencsv's CSVParser.parseLine for its default settings, returns true if the line ends inside a
+     * quoted field.
+     */
+    private boolean parseLine(int lineStart, int lineEnd, boolean pending) {
+        boolean inQuotes = pending;
+        int chars = 0;
+
+        for (int i = lineStart; i < lineEnd; i++) {
+            byte c = window.get(i);
+            chars += charCount(c);
+
+            if (c == ESCAPE) {
+                inField = true;
+                if (i + 1 < lineEnd && isEscapable(window.get(i + 1))) {
+                    i++;
+                    chars++;
+                    appendPrev(i);
+                }
+            } else if (c == QUOTE) {
+                if ((inQuotes || inField) && i + 1 < lineEnd && window.get(i + 1) == QUOTE) {
+                    i++;
+                    chars++;
+                    appendPrev(i);
+                } else {
+                    inQuotes = !inQuotes;
+
+                    // the tricky case of an embedded quote in the middle: a,bc"d"ef,g
+                    if (chars > BEGINNING_OF_LINE && window.get(i - 1) != SEPARATOR
+                            && i + 1 < lineEnd && window.get(i + 1) != SEPARATOR) {
+                        if (!isEmptyOutput() && isWhitespaceOutput()) {
+                            clearOutput(i + 1);
+                        } else {
+                            appendPrev(i);
+                        }
+                    }
+                }
+                inField = !inField;
+            } else if (c == SEPARATOR && !inQuotes) {
+                endField();
+                startField(i + 1);
+                inField = false;
+            } else {
+                appendPrev(i);
+                inField = true;
+            }
+        }
+
+        if (inQuotes) {
+            return true;
+        }
+        inField = false;
+        return false;
+    }
+
+    private static boolean isEscapable(byte c) {
+        return c == QUOTE || c == ESCAPE || c == SEPARATOR;
+    }
+
+    /**
+     * Number of UTF-16 chars started by this UTF-8 byte.
+     */
+    private static int charCount(byte c) {
+        if ((c & 0xC0) == 0x80) {
+            return 0;
+        }
+        return (c & 0xF8) == 0xF0 ? 2 : 1;
+    }
+
+    private void startField(int offset) {
+        fieldStart = scratchLength;
+        from = to = offset;
+    }
+
+    private void appendPrev(int offset) {
+        if (from == to) {
+            from = offset;
+            to = offset + 1;
+        } else if (to == offset) {
+            to++;
+        } else {
+            materialize();
+            appendScratch(window.get(offset));
+        }
+    }
+
+    private void materialize() {
+        for (int i = from; i < to; i++) {
+            appendScratch(window.get(i));
+        }
+        from = to;
+    }
+
+    private void appendScratch(byte b) {
+        if (scratchLength == scratch.length) {
+            scratch = Arrays.copyOf(scratch, 2 * scratch.length);
+        }
+        scratch[scratchLength++] = b;
+    }
+
+    private boolean isEmptyOutput() {
+        return from >= to && scratchLength == fieldStart;
+    }
+
+    private void clearOutput(int offset) {
+        scratchLength = fieldStart;
+        from = to = offset;
+    }
+
+    private boolean isWhitespaceOutput() {
+        materialize();
+        for (int i = fieldStart; i < scratchLength; i++) {
+            if (scratch[i] < 0) {
+                String output = new String(scratch, fieldStart, scratchLength - fieldStart, StandardCharsets.UTF_8);
+                return output.codePoints().allMatch(Character::isWhitespace);
+            }
+            if (!Character.isWhitespace(scratch[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void endField() {
+        if (fieldCount == fieldOffsets.length) {
+            int capacity = 2 * fieldOffsets.length;
+            fieldOffsets = Arrays.copyOf(fieldOffsets, capacity);
+            fieldLengths = Arrays.copyOf(fieldLengths, capacity);
+            fieldInScratch = Arrays.copyOf(fieldInScratch, capacity);
+        }
+        if (scratchLength == fieldStart) {
+            fieldOffsets[fieldCount] = from;
+            fieldLengths[fieldCount] = to - from;
+            fieldInScratch[fieldCount] = false;
+        } else {
+            materialize();
+            fieldOffsets[fieldCount] = fieldStart;
+            fieldLengths[fieldCount] = scratchLength - fieldStart;
+            fieldInScratch[fieldCount] = true;
+        }
+        fieldCount++;
+    }
+}
@@ -0,0 +1,126 @@
+package ca.ulex;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Bound on the heap held by the brand counts and consistency observations until the end of the file: once the
+ * estimates of the {@link Holder}s are over it, the largest one spills to a run in {@code INGESTOR_SPILL_DIR}. A budget
+ * of 0 never spills.
+ */
+final class MemoryBudget
+{
+    // A HashMap node and its slot in the table
+    static final long ENTRY_BYTES = 48;
+
+    /**
+     * Aggregation state that can be spilled.
+     */
+    interface Holder
+    {
+        long heapBytes();
+
+        /**
+         * Writes the entries to a new run and drops them.
+         */
+        void spill() throws IOException;
+    }
+
+    private final long limit;
+    private final Path parentDir;
+    private final List<Holder> holders = new ArrayList<>();
+    private Path dir;
+    private long used = 0;
+    private int runFiles = 0;
+    private int spills = 0;
+    private long spilledBytes = 0;
+
+    MemoryBudget(long limit, String parentDir) {
+        this.limit = limit;
+        this.parentDir = parentDir == null ? null : Paths.get(parentDir);
+    }
+
+    static MemoryBudget unbounded() {
+        return new MemoryBudget(0, null);
+    }
+
+    void register(Holder holder) {
+        holders.add(holder);
+    }
+
+    /**
+     * Adds the estimated size of new entries, and spills the largest holders until back under the budget.
+     */
+    void grow(long bytes) {
+        if (limit <= 0) {
+            return;
+        }
+        used += bytes;
+        while (used > limit) {
+            Holder largest = null;
+            for (Holder holder : holders) {
+                if (largest == null || holder.heapBytes() > largest.heapBytes()) {
+                    largest = holder;
+                }
+            }
+            if (largest == null || largest.heapBytes() == 0) {
+                return;
+            }
+            long before = largest.heapBytes();
+            spills++;
+            try {
+                largest.spill();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not spill to " + dir, e);
+            }
+            used -= before - largest.heapBytes();
+        }
+    }
+
+    static long stringBytes(String value) {
+        // The String, its array header and two bytes per char at most
+        return value == null ? 0 : 40 + 2L * value.length();
+    }
+
+    Path newRunFile(String name) throws IOException {
+        if (dir == null) {
+            dir = Files.createTempDirectory(parentDir, "ingestor-spill-");
+        }
+        return dir.resolve(name + "-" + ++runFiles + ".run");
+    }
+
+    void spilled(long bytes) {
+        spilledBytes += bytes;
+    }
+
+    void printStats() {
+        if (spills == 0) {
+            return;
+        }
+        System.out.println("\nMemory budget of " + Utils.DECIMAL_FORMAT.format(limit / (1024 * 1024)) + " MB:");
+        System.out.println("    Spills         : " + Utils.DECIMAL_FORMAT.format(spills));
+        System.out.println("    Written        : " + Utils.DECIMAL_FORMAT.format(spilledBytes / (1024 * 1024))
+                + " MB to " + dir);
+    }
+
+    /**
+     * Deletes the run files and their directory, whose name is still printed by {@link #printStats}.
+     */
+    void close() throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+}
@@ -0,0 +1,366 @@
+package ca.ulex;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide latency histograms of the ingestion stages and counters of the JDBC round trips, cheap enough to be
+ * always on, and exposed over JMX as {@code ca.ulex:type=IngestMetrics}. A percentile is the upper bound of its
+ * bucket, at most 25% above the exact value.
+ */
+final class Metrics
+{
+    private static final int BUCKETS = 64 * 4;
+    private static final Map<String, Stage> stages = new LinkedHashMap<>();
+
+    static final LongAdder linesWritten = new LongAdder();
+    static final LongAdder roundTrips = new LongAdder();
+    static final LongAdder batches = new LongAdder();
+    static final LongAdder batchedStatements = new LongAdder();
+    // By the pipeline's threads, added as each of them finishes
+    static final LongAdder allocatedBytes = new LongAdder();
+
+    private static boolean registered = false;
+    // Rate of the last period logged by the current run, for JMX
+    static volatile double linesPerSecond = 0;
+
+    private Metrics() {
+    }
+
+    /**
+     * The stage with this name, created on first use. Meant to be kept in a static field, not called on the hot
+     * path.
+     */
+    static synchronized Stage stage(String name) {
+        return stages.computeIfAbsent(name, Stage::new);
+    }
+
+    static synchronized Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.nanoTime = System.nanoTime();
+        snapshot.linesWritten = linesWritten.sum();
+        snapshot.roundTrips = roundTrips.sum();
+        snapshot.batches = batches.sum();
+        snapshot.batchedStatements = batchedStatements.sum();
+        snapshot.allocatedBytes = allocatedBytes.sum();
+        snapshot.localeCacheHits = LocaleCache.getHits();
+        snapshot.localeCacheMisses = LocaleCache.getMisses();
+        snapshot.localeCacheEvictions = LocaleCache.getEvictions();
+        for (Stage stage : stages.values()) {
+            snapshot.stages.put(stage.name, stage.snapshot());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, 0 if the JVM does not measure them.
+     */
+    static long threadAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        return Math.max(0, ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                Thread.currentThread().getId()));
+    }
+
+    /**
+     * Registers the MBean, once per process. A failure only costs the JMX view.
+     */
+    static synchronized void registerMBean() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(),
+                    new ObjectName("ca.ulex:type=IngestMetrics"));
+        } catch (JMException e) {
+            System.err.println("Could not register the metrics MBean: " + e.getMessage());
+        }
+    }
+
+    // 0 to 3 ns as they are, then four buckets per power of two
+    private static int bucket(long nanos) {
+        if (nanos < 4) {
+            return (int) nanos;
+        }
+        int log = 63 - Long.numberOfLeadingZeros(nanos);
+        return log * 4 + (int) (nanos >>> (log - 2) & 3);
+    }
+
+    private static long bucketUpperBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        return (long) (5 + bucket % 4) << (bucket / 4 - 2);
+    }
+
+    /**
+     * Latency histogram of one stage.
+     */
+    static final class Stage
+    {
+        final String name;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        private Stage(String name) {
+            this.name = name;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records the time elapsed since the given {@link System#nanoTime}.
+         */
+        void record(long startNanos) {
+            long nanos = Math.max(0, System.nanoTime() - startNanos);
+            buckets[bucket(nanos)].increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        /**
+         * Records a statement that went to the database and back.
+         */
+        void roundTrip(long startNanos) {
+            record(startNanos);
+            roundTrips.increment();
+        }
+
+        /**
+         * Executes the batch of the statement, recorded as one round trip unless it was empty.
+         */
+        void executeBatch(PreparedStatement stmt) throws SQLException {
+            long start = System.nanoTime();
+            int statements = stmt.executeBatch().length;
+            if (statements > 0) {
+                roundTrip(start);
+                batches.increment();
+                batchedStatements.add(statements);
+            }
+        }
+
+        private StageSnapshot snapshot() {
+            StageSnapshot snapshot = new StageSnapshot();
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot.buckets[i] = buckets[i].sum();
+                snapshot.count += snapshot.buckets[i];
+            }
+            snapshot.totalNanos = totalNanos.sum();
+            snapshot.maxNanos = maxNanos.get();
+            return snapshot;
+        }
+    }
+
+    /**
+     * Counts of all the stages and counters at one point in time, or over the period between two of them.
+     */
+    static final class Snapshot
+    {
+        long nanoTime;
+        long linesWritten;
+        long roundTrips;
+        long batches;
+        long batchedStatements;
+        long allocatedBytes;
+        long localeCacheHits;
+        long localeCacheMisses;
+        long localeCacheEvictions;
+        final Map<String, StageSnapshot> stages = new LinkedHashMap<>();
+
+        /**
+         * The counts since the earlier snapshot, its nanoTime being the length of the period.
+         */
+        Snapshot minus(Snapshot earlier) {
+            Snapshot period = new Snapshot();
+            period.nanoTime = nanoTime - earlier.nanoTime;
+            period.linesWritten = linesWritten - earlier.linesWritten;
+            period.roundTrips = roundTrips - earlier.roundTrips;
+            period.batches = batches - earlier.batches;
+            period.batchedStatements = batchedStatements - earlier.batchedStatements;
+            period.allocatedBytes = allocatedBytes - earlier.allocatedBytes;
+            period.localeCacheHits = localeCacheHits - earlier.localeCacheHits;
+            period.localeCacheMisses = localeCacheMisses - earlier.localeCacheMisses;
+            period.localeCacheEvictions = localeCacheEvictions - earlier.localeCacheEvictions;
+            for (Map.Entry<String, StageSnapshot> entry : stages.entrySet()) {
+                StageSnapshot stage = entry.getValue().minus(earlier.stages.get(entry.getKey()));
+                if (stage.count > 0) {
+                    period.stages.put(entry.getKey(), stage);
+                }
+            }
+            return period;
+        }
+
+        double linesPerSecond() {
+            return nanoTime <= 0 ? 0 : linesWritten * 1e9 / nanoTime;
+        }
+
+        long allocatedBytesPerLine() {
+            return linesWritten == 0 ? 0 : allocatedBytes / linesWritten;
+        }
+
+        double localeCacheHitRate() {
+            long lookups = localeCacheHits + localeCacheMisses;
+            return lookups == 0 ? 0 : (double) localeCacheHits / lookups;
+        }
+
+        /**
+         * JSON object of a period.
+         */
+        String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"elapsed_ms\": ").append(nanoTime / 1_000_000)
+                    .append(", \"lines\": ").append(linesWritten)
+                    .append(", \"lines_per_s\": ").append(format(linesPerSecond()))
+                    .append(", \"round_trips\": ").append(roundTrips)
+                    .append(", \"batches\": ").append(batches)
+                    .append(", \"batched_statements\": ").append(batchedStatements)
+                    .append(", \"locale_cache_hit_rate\": ").append(format(localeCacheHitRate()))
+                    .append(", \"stages\": {");
+            String separator = "";
+            for (Map.Entry<String, StageSnapshot> entry : stages.entrySet()) {
+                StageSnapshot stage = entry.getValue();
+                json.append(separator).append('"').append(entry.getKey()).append("\": {")
+                        .append("\"count\": ").append(stage.count)
+                        .append(", \"total_ms\": ").append(stage.totalNanos / 1_000_000)
+                        .append(", \"mean_us\": ").append(format(stage.meanMicros()))
+                        .append(", \"p50_us\": ").append(format(stage.percentileMicros(0.5)))
+                        .append(", \"p90_us\": ").append(format(stage.percentileMicros(0.9)))
+                        .append(", \"p99_us\": ").append(format(stage.percentileMicros(0.99)))
+                        .append(", \"max_us\": ").append(format(stage.maxNanos / 1000.0)).append('}');
+                separator = ", ";
+            }
+            return json.append("}}").toString();
+        }
+
+        private static String format(double value) {
+            return String.format(Locale.ROOT, "%.1f", value);
+        }
+    }
+
+    static final class StageSnapshot
+    {
+        final long[] buckets = new long[BUCKETS];
+        long count;
+        long totalNanos;
+        long maxNanos;
+
+        private StageSnapshot minus(StageSnapshot earlier) {
+            if (earlier == null) {
+                return this;
+            }
+            StageSnapshot period = new StageSnapshot();
+            int highest = -1;
+            for (int i = 0; i < BUCKETS; i++) {
+                period.buckets[i] = buckets[i] - earlier.buckets[i];
+                period.count += period.buckets[i];
+                if (period.buckets[i] > 0) {
+                    highest = i;
+                }
+            }
+            period.totalNanos = totalNanos - earlier.totalNanos;
+            // The maximum of the period is not known, only that it is in its highest bucket
+            period.maxNanos = highest < 0 ? 0 : Math.min(maxNanos, bucketUpperBound(highest));
+            return period;
+        }
+
+        double meanMicros() {
+            return count == 0 ? 0 : totalNanos / 1000.0 / count;
+        }
+
+        double percentileMicros(double fraction) {
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    return Math.min(bucketUpperBound(i), maxNanos) / 1000.0;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Counts since the start of the process.
+     */
+    private static final class MBean implements IngestMetricsMXBean
+    {
+        @Override
+        public long getLinesWritten() {
+            return linesWritten.sum();
+        }
+
+        @Override
+        public double getLinesPerSecond() {
+            return linesPerSecond;
+        }
+
+        @Override
+        public long getRoundTrips() {
+            return roundTrips.sum();
+        }
+
+        @Override
+        public long getBatches() {
+            return batches.sum();
+        }
+
+        @Override
+        public long getBatchedStatements() {
+            return batchedStatements.sum();
+        }
+
+        @Override
+        public double getLocaleCacheHitRate() {
+            return snapshot().localeCacheHitRate();
+        }
+
+        @Override
+        public Map<String, Long> getStageCounts() {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            snapshot().stages.forEach((name, stage) -> counts.put(name, stage.count));
+            return counts;
+        }
+
+        @Override
+        public Map<String, Double> getStageMeanMicros() {
+            return stageValues(StageSnapshot::meanMicros);
+        }
+
+        @Override
+        public Map<String, Double> getStageP50Micros() {
+            return stageValues(stage -> stage.percentileMicros(0.5));
+        }
+
+        @Override
+        public Map<String, Double> getStageP99Micros() {
+            return stageValues(stage -> stage.percentileMicros(0.99));
+        }
+
+        @Override
+        public Map<String, Double> getStageMaxMicros() {
+            return stageValues(stage -> stage.maxNanos / 1000.0);
+        }
+
+        private static Map<String, Double> stageValues(ToDoubleFunction<StageSnapshot> value) {
+            Map<String, Double> values = new LinkedHashMap<>();
+            snapshot().stages.forEach((name, stage) -> values.put(name, value.applyAsDouble(stage)));
+            return values;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ca.ulex;
+
+import com.opencsv.CSVReader;
+import com.opencsv.exceptions.CsvException;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link CsvSource} backed by opencsv's CSVReader, kept as a fallback for {@link MappedCsvReader} and used for the
+ * streams that cannot be memory-mapped.
+ */
+class OpenCsvSource implements CsvSource
+{
+    private final CSVReader csvReader;
+    private String[] line;
+
+    OpenCsvSource(String csvFilePath) throws IOException {
+        this(new FileInputStream(csvFilePath));
+    }
+
+    OpenCsvSource(InputStream inputStream) {
+        this.csvReader = new CSVReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean next() throws IOException, CsvException {
+        line = csvReader.readNext();
+        return line != null;
+    }
+
+    @Override
+    public int emptyField() {
+        return Ingestor.hasEmptyField(line);
+    }
+
+    @Override
+    public String[] fields() {
+        return line;
+    }
+
+    @Override
+    public long position() {
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        csvReader.close();
+    }
+}
@@ -0,0 +1,23 @@
+package ca.ulex;
+
+import java.sql.SQLException;
+
+/**
+ * Destination of the rows read by the ingestor. Implementations decide how the rows reach the database.
+ */
+interface RowSink
+{
+    void addRow(CsvRow row) throws SQLException;
+
+    void dropRow(int csvLine, int emptyField) throws SQLException;
+
+    /**
+     * Sends everything added so far to the database, so that a commit covers it.
+     */
+    void flush() throws SQLException;
+
+    /**
+     * Called once the whole CSV file has been read, before the brand post-processing.
+     */
+    void finish() throws SQLException;
+}
@@ -0,0 +1,155 @@
+package ca.ulex;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Metrics of one ingestion: a {@code METRICS} JSON line every {@code INGESTOR_METRICS_LOG_SECONDS}, and at the end the
+ * stage latencies of the run, also written as a JSON report to {@code INGESTOR_METRICS_REPORT} if set. The run's
+ * share of the process-wide metrics is the difference between two snapshots.
+ */
+class RunReport
+{
+    // Until a run of the process has written a line
+    private static final AtomicBoolean firstRun = new AtomicBoolean(true);
+
+    private final Metrics.Snapshot start;
+    // Milliseconds between the start of the JVM and the start of the run
+    private final long startupMillis;
+    private final Thread logger;
+    // Elapsed milliseconds and lines per second of each period
+    private final List<double[]> rates = new ArrayList<>();
+    private Metrics.Snapshot last;
+
+    private RunReport(int logSeconds) {
+        Metrics.registerMBean();
+        this.start = Metrics.snapshot();
+        this.startupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        this.last = start;
+        if (logSeconds <= 0) {
+            this.logger = null;
+            return;
+        }
+        this.logger = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(logSeconds * 1000L);
+                    logPeriod();
+                }
+            } catch (InterruptedException e) {
+                // Finished
+            }
+        }, "ingest-metrics");
+        logger.setDaemon(true);
+        logger.start();
+    }
+
+    static RunReport start() {
+        return new RunReport(Ingestor.METRICS_LOG_SECONDS);
+    }
+
+    private synchronized void logPeriod() {
+        Metrics.Snapshot now = Metrics.snapshot();
+        Metrics.Snapshot period = now.minus(last);
+        last = now;
+        Metrics.linesPerSecond = period.linesPerSecond();
+        rates.add(new double[] {(now.nanoTime - start.nanoTime) / 1e6, period.linesPerSecond()});
+        System.out.println("\nMETRICS " + period.toJson());
+    }
+
+    /**
+     * Stops the periodic lines, also when the run fails.
+     */
+    void stop() {
+        if (logger == null) {
+            return;
+        }
+        logger.interrupt();
+        try {
+            logger.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The counts of the run so far.
+     */
+    Metrics.Snapshot sinceStart() {
+        return Metrics.snapshot().minus(start);
+    }
+
+    /**
+     * Prints the latencies of the run and writes the report, if any.
+     */
+    void finish(IngestPipeline pipeline, String loadMode) {
+        stop();
+        Metrics.Snapshot run = sinceStart();
+        printStages(run);
+        long firstRowMillis = pipeline.firstRowNanos == 0 ? -1 : (pipeline.firstRowNanos - start.nanoTime) / 1_000_000;
+        long startupToFirstRowMillis = firstRowMillis >= 0 && firstRun.compareAndSet(true, false)
+                ? startupMillis + firstRowMillis : -1;
+        if (firstRowMillis >= 0) {
+            System.out.println("    First row after        : " + Utils.DECIMAL_FORMAT.format(firstRowMillis) + " ms"
+                    + (startupToFirstRowMillis < 0 ? "" : " (" + Utils.DECIMAL_FORMAT.format(startupToFirstRowMillis)
+                    + " ms since the JVM started)"));
+        }
+
+        String reportFile = System.getenv("INGESTOR_METRICS_REPORT");
+        if (reportFile == null) {
+            return;
+        }
+        try {
+            Files.write(Paths.get(reportFile), toJson(pipeline, loadMode, run, firstRowMillis, startupToFirstRowMillis)
+                    .getBytes(StandardCharsets.UTF_8));
+            System.out.println("Metrics report written to " + reportFile);
+        } catch (IOException e) {
+            System.err.println("Could not write the metrics report: " + e.getMessage());
+        }
+    }
+
+    private static void printStages(Metrics.Snapshot run) {
+        System.out.println("\nStage latencies (count, mean, p99, max):");
+        run.stages.forEach((name, stage) -> System.out.println(String.format("    %-22s : %,d, %s, %s, %s",
+                name, stage.count, formatMicros(stage.meanMicros()), formatMicros(stage.percentileMicros(0.99)),
+                formatMicros(stage.maxNanos / 1000.0))));
+        System.out.println("    JDBC round trips       : " + Utils.DECIMAL_FORMAT.format(run.roundTrips)
+                + " (" + Utils.DECIMAL_FORMAT.format(run.batches) + " batches of "
+                + Utils.DECIMAL_FORMAT.format(run.batchedStatements) + " statements)");
+        System.out.println("    Allocated per line     : "
+                + Utils.DECIMAL_FORMAT.format(run.allocatedBytesPerLine()) + " bytes");
+    }
+
+    private synchronized String toJson(IngestPipeline pipeline, String loadMode, Metrics.Snapshot run,
+                                       long firstRowMillis, long startupToFirstRowMillis) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"load_mode\": \"").append(loadMode).append('"')
+                .append(", \"lines\": ").append(pipeline.csvLine)
+                .append(", \"ingested\": ").append(pipeline.linesIngested)
+                .append(", \"dropped\": ").append(pipeline.linesDropped)
+                .append(", \"unchanged\": ").append(pipeline.linesUnchanged)
+                .append(", \"warnings\": ").append(pipeline.warnings)
+                .append(", \"allocated_bytes\": ").append(run.allocatedBytes)
+                .append(", \"allocated_bytes_per_line\": ").append(run.allocatedBytesPerLine())
+                .append(", \"first_row_ms\": ").append(firstRowMillis)
+                .append(", \"startup_to_first_row_ms\": ").append(startupToFirstRowMillis)
+                .append(",\n \"metrics\": ").append(run.toJson())
+                .append(",\n \"lines_per_s_over_time\": [");
+        for (int i = 0; i < rates.size(); i++) {
+            json.append(i == 0 ? "" : ", ").append(String.format(Locale.ROOT, "[%.0f, %.1f]",
+                    rates.get(i)[0], rates.get(i)[1]));
+        }
+        return json.append("]}\n").toString();
+    }
+
+    private static String formatMicros(double micros) {
+        return micros < 1000 ? String.format("%.1fus", micros) : String.format("%.1fms", micros / 1000);
+    }
+}
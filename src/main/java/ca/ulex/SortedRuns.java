@@ -0,0 +1,261 @@
+package ca.ulex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Per-key aggregation state spilled to disk in runs sorted by key, merged back with the entries left in memory into
+ * the state that never spilled, each key once and in key order. Past {@link #MERGE_FACTOR} runs, they are merged into
+ * one.
+ */
+final class SortedRuns<V>
+{
+    private static final int MERGE_FACTOR = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Metrics.Stage SPILL = Metrics.stage("spill");
+    private static final Metrics.Stage MERGE = Metrics.stage("spill.merge");
+
+    /**
+     * How the values are written, read back and combined.
+     */
+    interface Codec<V>
+    {
+        void write(DataOutputStream out, V value) throws IOException;
+
+        V read(DataInputStream in) throws IOException;
+
+        /**
+         * The value of both, the later one coming from a newer run.
+         */
+        V combine(V earlier, V later);
+    }
+
+    interface Consumer<V, E extends Exception>
+    {
+        void accept(String key, V value) throws E;
+    }
+
+    private final String name;
+    private final MemoryBudget budget;
+    private final Codec<V> codec;
+    private final List<Path> runs = new ArrayList<>();
+
+    SortedRuns(String name, MemoryBudget budget, Codec<V> codec) {
+        this.name = name;
+        this.budget = budget;
+        this.codec = codec;
+    }
+
+    boolean isEmpty() {
+        return runs.isEmpty();
+    }
+
+    /**
+     * Writes the entries as a new run, the caller then drops them.
+     */
+    void spill(List<Map.Entry<String, V>> entries) throws IOException {
+        long start = System.nanoTime();
+        entries.sort(Map.Entry.comparingByKey());
+        Path run = budget.newRunFile(name);
+        try (DataOutputStream out = openOutput(run)) {
+            for (Map.Entry<String, V> entry : entries) {
+                out.writeBoolean(true);
+                writeString(out, entry.getKey());
+                codec.write(out, entry.getValue());
+            }
+            out.writeBoolean(false);
+        }
+        runs.add(run);
+        budget.spilled(Files.size(run));
+        if (runs.size() >= MERGE_FACTOR) {
+            Path merged = budget.newRunFile(name);
+            try (DataOutputStream out = openOutput(merged)) {
+                this.<IOException>merge(new ArrayList<>(), (key, value) -> {
+                    out.writeBoolean(true);
+                    writeString(out, key);
+                    codec.write(out, value);
+                });
+                out.writeBoolean(false);
+            }
+            delete();
+            runs.add(merged);
+            budget.spilled(Files.size(merged));
+        }
+        SPILL.record(start);
+    }
+
+    /**
+     * Gives each key of the runs and of the entries still in memory once, in key order.
+     */
+    void forEach(List<Map.Entry<String, V>> inMemory, Consumer<V, SQLException> consumer)
+            throws IOException, SQLException {
+        long start = System.nanoTime();
+        inMemory.sort(Map.Entry.comparingByKey());
+        merge(inMemory, consumer);
+        if (!runs.isEmpty()) {
+            MERGE.record(start);
+        }
+    }
+
+    /**
+     * Deletes the run files.
+     */
+    void delete() throws IOException {
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+    }
+
+    private <E extends Exception> void merge(List<Map.Entry<String, V>> inMemory, Consumer<V, E> consumer)
+            throws IOException, E {
+        List<Cursor<V>> cursors = new ArrayList<>();
+        PriorityQueue<Cursor<V>> queue = new PriorityQueue<>((a, b) -> {
+            int byKey = a.key.compareTo(b.key);
+            return byKey != 0 ? byKey : Integer.compare(a.age, b.age);
+        });
+        try {
+            for (Path run : runs) {
+                cursors.add(new FileCursor<>(cursors.size(), openInput(run), codec));
+            }
+            cursors.add(new MemoryCursor<>(cursors.size(), inMemory));
+            for (Cursor<V> cursor : cursors) {
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+            while (!queue.isEmpty()) {
+                Cursor<V> cursor = queue.poll();
+                String key = cursor.key;
+                V value = cursor.value;
+                advance(cursor, queue);
+                while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+                    Cursor<V> later = queue.poll();
+                    value = codec.combine(value, later.value);
+                    advance(later, queue);
+                }
+                consumer.accept(key, value);
+            }
+        } finally {
+            for (Cursor<V> cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static <V> void advance(Cursor<V> cursor, PriorityQueue<Cursor<V>> queue) throws IOException {
+        if (cursor.next()) {
+            queue.add(cursor);
+        }
+    }
+
+    private static DataOutputStream openOutput(Path run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE));
+    }
+
+    private static DataInputStream openInput(Path run) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(run), BUFFER_SIZE));
+    }
+
+    /**
+     * A string of any length, or null.
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The current entry of a run, runs of a lower age being older.
+     */
+    private abstract static class Cursor<V>
+    {
+        final int age;
+        String key;
+        V value;
+
+        Cursor(int age) {
+            this.age = age;
+        }
+
+        abstract boolean next() throws IOException;
+
+        void close() throws IOException {
+        }
+    }
+
+    private static final class FileCursor<V> extends Cursor<V>
+    {
+        private final DataInputStream in;
+        private final Codec<V> codec;
+
+        FileCursor(int age, DataInputStream in, Codec<V> codec) {
+            super(age);
+            this.in = in;
+            this.codec = codec;
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (!in.readBoolean()) {
+                return false;
+            }
+            key = readString(in);
+            value = codec.read(in);
+            return true;
+        }
+
+        @Override
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final class MemoryCursor<V> extends Cursor<V>
+    {
+        private final List<Map.Entry<String, V>> entries;
+        private int index = 0;
+
+        MemoryCursor(int age, List<Map.Entry<String, V>> entries) {
+            super(age);
+            this.entries = entries;
+        }
+
+        @Override
+        boolean next() {
+            if (index == entries.size()) {
+                return false;
+            }
+            key = entries.get(index).getKey();
+            value = entries.get(index).getValue();
+            index++;
+            return true;
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package ca.ulex;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.text.DecimalFormat;
+import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
 public class Utils
@@ -20,6 +24,31 @@ public class Utils
         return String.format("%d:%02d:%02d.%03ds", hours, minutes, seconds, millis);
     }
 
+    public static String getEnv(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return (value == null || value.isEmpty()) ? defaultValue : value;
+    }
+
+    public static int getEnvInt(String name, int defaultValue) {
+        return Integer.parseInt(getEnv(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Opens a connection with pgjdbc's reWriteBatchedInserts enabled, so that JDBC batches of INSERT statements
+     * are sent as multi-row INSERT statements.
+     */
+    public static Connection getConnection(String dbUrl, String dbUser, String dbPassword) throws SQLException {
+        Properties properties = new Properties();
+        if (dbUser != null) {
+            properties.setProperty("user", dbUser);
+        }
+        if (dbPassword != null) {
+            properties.setProperty("password", dbPassword);
+        }
+        properties.setProperty("reWriteBatchedInserts", "true");
+        return DriverManager.getConnection(dbUrl, properties);
+    }
+
     public static void exitOnInvalidCSVFilePath(String csvFile) {
         if (isInvalidPath(csvFile)) {
             System.err.println("ERROR: Invalid CSV file path: " + csvFile);
@@ -0,0 +1,149 @@
+package ca.ulex;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Warnings of one ingestion, counted per type and written in JDBC batches on the ingestion's connection. Past
+ * {@code maxPerType} warnings of a type, only one in {@code sampleEvery} is written; without a connection, they are
+ * only counted.
+ */
+class WarningsSink
+{
+    private static final String INSERT_WARNING = "INSERT INTO warnings (csv_line, warning, description) VALUES (?, ?, ?)";
+    private static final Metrics.Stage WARNINGS_BATCH = Metrics.stage("batch.warnings");
+
+    private final Connection dbConnection;
+    private final int batchSize;
+    private final int maxPerType;
+    private final int sampleEvery;
+    // Counted and written warnings, per type
+    private final Map<String, int[]> counts = new LinkedHashMap<>();
+    private PreparedStatement stmt;
+    private int pending = 0;
+
+    WarningsSink(Connection dbConnection, int batchSize, int maxPerType, int sampleEvery) {
+        this.dbConnection = dbConnection;
+        this.batchSize = batchSize;
+        this.maxPerType = maxPerType;
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * Sink of a run without database, which only counts the warnings.
+     */
+    static WarningsSink counting() {
+        return new WarningsSink(null, 0, 0, 0);
+    }
+
+    /**
+     * Counts the warning, and adds it to the batch unless its type is over the cap.
+     */
+    void add(int csvLine, String warning, String description) throws SQLException {
+        int[] count = counts.computeIfAbsent(warning, k -> new int[2]);
+        if (!isWritten(++count[0]) || dbConnection == null) {
+            return;
+        }
+        count[1]++;
+
+        if (stmt == null) {
+            stmt = dbConnection.prepareStatement(INSERT_WARNING);
+        }
+        stmt.setInt(1, csvLine);
+        stmt.setString(2, warning);
+        stmt.setString(3, description);
+        stmt.addBatch();
+        if (++pending >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Counts warnings written by set-based SQL filtered with {@link #writtenCondition}.
+     */
+    void addWritten(String warning, int total) {
+        int[] count = counts.computeIfAbsent(warning, k -> new int[2]);
+        for (int i = 0; i < total; i++) {
+            if (isWritten(++count[0])) {
+                count[1]++;
+            }
+        }
+    }
+
+    /**
+     * Counts warnings of a resumed ingestion, as they were written before its checkpoint.
+     */
+    void restore(String warning, int written) {
+        int[] count = counts.computeIfAbsent(warning, k -> new int[2]);
+        count[0] += written;
+        count[1] += written;
+    }
+
+    /**
+     * SQL condition keeping the warnings to write, given the expression numbering the warnings of each type from 1,
+     * for an ingestion that has not counted any yet.
+     */
+    String writtenCondition(String number) {
+        if (maxPerType <= 0) {
+            return "TRUE";
+        }
+        String condition = number + " <= " + maxPerType;
+        if (sampleEvery > 0) {
+            condition += " OR (" + number + " - " + maxPerType + ") % " + sampleEvery + " = 0";
+        }
+        return "(" + condition + ")";
+    }
+
+    private boolean isWritten(int number) {
+        return maxPerType <= 0 || number <= maxPerType
+                || (sampleEvery > 0 && (number - maxPerType) % sampleEvery == 0);
+    }
+
+    void flush() throws SQLException {
+        if (pending > 0) {
+            WARNINGS_BATCH.executeBatch(stmt);
+            pending = 0;
+        }
+    }
+
+    void close() throws SQLException {
+        flush();
+        if (stmt != null) {
+            stmt.close();
+            stmt = null;
+        }
+    }
+
+    /**
+     * Number of warnings counted, whether they were written or not.
+     */
+    int getCount() {
+        int total = 0;
+        for (int[] count : counts.values()) {
+            total += count[0];
+        }
+        return total;
+    }
+
+    /**
+     * Number of warnings counted per type, in the order the types first appeared.
+     */
+    Map<String, Integer> getCounts() {
+        Map<String, Integer> totals = new LinkedHashMap<>();
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            totals.put(entry.getKey(), entry.getValue()[0]);
+        }
+        return totals;
+    }
+
+    void printStats() {
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            int[] count = entry.getValue();
+            System.out.println("    " + entry.getKey() + " : " + count[0]
+                    + (dbConnection != null && count[1] < count[0] ? " (" + count[1] + " written)" : ""));
+        }
+    }
+}
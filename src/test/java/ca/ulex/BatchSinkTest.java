@@ -0,0 +1,95 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ids {@link BatchSink} takes from its {@link IdAllocator} blocks, and the rows it leaves in a fresh database
+ * against the ones of the row by row path.
+ */
+public class BatchSinkTest extends TestCase
+{
+    private Path feed;
+
+    @Override
+    protected void setUp() throws Exception {
+        feed = TestDatabase.writeFeed(0, 600, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.delete(feed);
+    }
+
+    public void testSameRowsAsRowByRow() throws Exception {
+        assertEquals(ingest(Ingestor.LOAD_MODE_ROW), ingest(Ingestor.LOAD_MODE_BATCH));
+    }
+
+    public void testIdBlocks() throws Exception {
+        TestDatabase.reset();
+        try (Connection conn = TestDatabase.connect()) {
+            // Another load reserving its own blocks of the same sequence meanwhile
+            IdAllocator ids = new IdAllocator(conn, "brand", 3);
+            IdAllocator other = new IdAllocator(conn, "brand", 3);
+            List<Integer> allocated = new ArrayList<>();
+            List<Integer> otherAllocated = new ArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                allocated.add(ids.nextId());
+                otherAllocated.add(other.nextId());
+            }
+            assertEquals(List.of(1, 2, 3, 7, 8, 9, 13), allocated);
+            assertEquals(List.of(4, 5, 6, 10, 11, 12, 16), otherAllocated);
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT nextval(pg_get_serial_sequence('brand', 'id'))")) {
+                assertTrue(rs.next());
+                assertEquals(19, rs.getInt(1));
+            }
+        }
+    }
+
+    public void testBlockBoundaries() throws Exception {
+        // Batches and id blocks ending in the middle of the lines of a product, or of a variant
+        assertEquals(addRows(1000, 10000), addRows(5, 7));
+    }
+
+    private List<String> ingest(String loadMode) throws Exception {
+        TestDatabase.reset();
+        assertNotNull(TestDatabase.ingest(feed.toString(), loadMode));
+        return TestDatabase.dump();
+    }
+
+    private List<String> addRows(int batchSize, int idBlockSize) throws Exception {
+        TestDatabase.reset();
+        FieldNormalizer normalizer = new FieldNormalizer();
+        List<String> lines = Files.readAllLines(feed, StandardCharsets.UTF_8);
+        try (Connection conn = TestDatabase.connect()) {
+            conn.setAutoCommit(false);
+            WarningsSink warnings = new WarningsSink(conn, batchSize, 0, 0);
+            BatchSink sink = new BatchSink(conn, batchSize, idBlockSize, new KeyDictionary(), new KeyDictionary(),
+                    new KeyDictionary(), warnings);
+            for (int csvLine = 1; csvLine < lines.size(); csvLine++) {
+                String[] line = lines.get(csvLine).split(",", -1);
+                int emptyField = List.of(line).indexOf("");
+                if (emptyField >= 0) {
+                    sink.dropRow(csvLine, emptyField + 1);
+                } else {
+                    CsvRow row = CsvRow.fromLine(csvLine, line, normalizer);
+                    row.locale = "en";
+                    sink.addRow(row);
+                }
+            }
+            sink.finish();
+            warnings.close();
+            conn.commit();
+        }
+        return TestDatabase.dump();
+    }
+}
@@ -0,0 +1,116 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+import org.apache.commons.text.similarity.JaccardSimilarity;
+import org.apache.commons.text.similarity.JaroWinklerSimilarity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * {@link BrandSimilarity} against the commons-text similarities it was ported from, and the groups of its catalog
+ * clustering.
+ */
+public class BrandSimilarityTest extends TestCase
+{
+    private static final String ALPHABET = "abcdeilnosAEIS0 1.-'\u00e9";
+
+    public void testJaroWinklerKnownValues() {
+        // The examples of commons-text's JaroWinklerSimilarity, to two decimals
+        String[][] pairs = {{"fly", "ant"}, {"frog", "fog"}, {"elephant", "hippo"}, {"hippo", "elephant"},
+                {"hippo", "zzzzzzzz"}, {"hello", "hallo"}, {"dwayne", "duane"}, {"martha", "marhta"},
+                {"dixon", "dicksonx"}, {"ABC Corporation", "ABC Corp"}};
+        double[] expected = {0.0, 0.93, 0.44, 0.44, 0.0, 0.88, 0.84, 0.96, 0.81, 0.91};
+        BrandSimilarity similarity = new BrandSimilarity();
+        for (int i = 0; i < pairs.length; i++) {
+            double score = similarity.jaroWinkler(pairs[i][0].toCharArray(), pairs[i][1].toCharArray());
+            assertEquals(pairs[i][0] + ", " + pairs[i][1], expected[i], score, 0.0051);
+            assertEquals(new JaroWinklerSimilarity().apply(pairs[i][0], pairs[i][1]), score, 1e-12);
+        }
+    }
+
+    public void testSameAsCommonsText() {
+        BrandSimilarity similarity = new BrandSimilarity();
+        Random random = new Random(6);
+        for (int i = 0; i < 20000; i++) {
+            String s1 = randomName(random);
+            String s2 = randomName(random);
+            if (random.nextInt(4) == 0) {
+                s2 = s1.toUpperCase() + ".";
+            } else if (random.nextInt(3) == 0) {
+                // A common prefix, up to past the four letters of the Winkler boost
+                s2 = s1.substring(0, random.nextInt(s1.length() + 1)) + s2;
+            }
+            assertEquals(s1 + ", " + s2, commonsTextSimilarity(s1, s2), similarity.computeSimilarity(s1, s2), 1e-12);
+        }
+    }
+
+    public void testCluster() {
+        List<String> names = Arrays.asList("Levi's", "Levis", "LEVI S", "Adidas", "Adiddas", "Nike", "Puma", "",
+                "Zara", "H&M");
+        List<List<String>> clusters = new ArrayList<>();
+        for (List<String> cluster : new BrandSimilarity().cluster(names, Ingestor.SIMILARITY_THRESHOLD)) {
+            Collections.sort(cluster);
+            clusters.add(cluster);
+        }
+        clusters.sort((a, b) -> a.get(0).compareTo(b.get(0)));
+        assertEquals(Arrays.asList(Arrays.asList("Adidas", "Adiddas"), Arrays.asList("LEVI S", "Levi's", "Levis")),
+                clusters);
+    }
+
+    public void testOversizedBuckets() {
+        // Names cleaned to the same one share all their bands
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 1001; i++) {
+            names.add("Nike" + " ".repeat(i));
+        }
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        List<List<String>> clusters;
+        try {
+            System.setOut(new PrintStream(printed, true, StandardCharsets.UTF_8));
+            clusters = new BrandSimilarity().cluster(names, Ingestor.SIMILARITY_THRESHOLD);
+        } finally {
+            System.setOut(out);
+        }
+        assertTrue(clusters.isEmpty());
+        assertTrue(printed.toString(StandardCharsets.UTF_8),
+                printed.toString(StandardCharsets.UTF_8).startsWith("Brand clustering: 16 candidate groups"));
+
+        names.remove(names.size() - 1);
+        assertEquals(1, new BrandSimilarity().cluster(names, Ingestor.SIMILARITY_THRESHOLD).size());
+    }
+
+    // The score of the ingestor before the fingerprints
+    private static double commonsTextSimilarity(String s1, String s2) {
+        String ss1 = s1.toLowerCase().replaceAll("[^a-z0-9]", "");
+        String ss2 = s2.toLowerCase().replaceAll("[^a-z0-9]", "");
+        if (containsAll(ss2, ss1) || containsAll(ss1, ss2)) {
+            return 1;
+        }
+        return Math.max(new JaroWinklerSimilarity().apply(ss1, ss2), new JaccardSimilarity().apply(ss2, ss1));
+    }
+
+    private static boolean containsAll(String s, String characters) {
+        for (int i = 0; i < characters.length(); i++) {
+            if (s.indexOf(characters.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String randomName(Random random) {
+        StringBuilder name = new StringBuilder();
+        for (int length = random.nextInt(10); length > 0; length--) {
+            name.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,81 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The brand counts and last lines {@link BrandTracker} gives the post-processing, with and without spilled runs.
+ */
+public class BrandTrackerTest extends TestCase
+{
+    private static final String[] BRANDS = {"Levi's", "Levis", "LEVI'S", "Adidas", "Nike"};
+
+    private MemoryBudget budget;
+
+    @Override
+    protected void setUp() {
+        // Never spills by itself, the runs are written by the test
+        budget = new MemoryBudget(0, System.getProperty("java.io.tmpdir"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        budget.close();
+    }
+
+    public void testCounts() throws Exception {
+        BrandTracker tracker = new BrandTracker(budget);
+        tracker.add("12620015", "Nike", 1);
+        tracker.add("12620014", "Levis", 2);
+        tracker.add("12620014", "Levi's", 5);
+        tracker.add("12620014", "Levis", 4);
+        // Given by the workers out of order
+        tracker.add("12620014", "Levi's", 3);
+        assertEquals(Arrays.asList("12620014: Levis 2@4, Levi's 2@5", "12620015: Nike 1@1"), products(tracker));
+    }
+
+    public void testSpilled() throws Exception {
+        BrandTracker inMemory = new BrandTracker(budget);
+        BrandTracker spilled = new BrandTracker(budget);
+        Random random = new Random(5);
+        // Lines given out of order across the runs too
+        List<Integer> csvLines = new ArrayList<>();
+        for (int csvLine = 1; csvLine <= 3000; csvLine++) {
+            csvLines.add(csvLine);
+        }
+        Collections.shuffle(csvLines, random);
+        for (int i = 1; i <= csvLines.size(); i++) {
+            int csvLine = csvLines.get(i - 1);
+            String productId = String.valueOf(12620000 + random.nextInt(100));
+            String brand = BRANDS[random.nextInt(BRANDS.length)];
+            inMemory.add(productId, brand, csvLine);
+            spilled.add(productId, brand, csvLine);
+            if (i % 700 == 0) {
+                spilled.spill();
+            }
+        }
+        List<String> products = products(inMemory);
+        assertEquals(100, products.size());
+        assertEquals(products, products(spilled));
+    }
+
+    // Each product with its brands, their frequencies and last lines
+    private static List<String> products(BrandTracker tracker) throws Exception {
+        List<String> products = new ArrayList<>();
+        tracker.forEachProduct((productId, brandCounts) -> {
+            StringBuilder product = new StringBuilder(productId).append(':');
+            for (Map.Entry<String, BrandTracker.BrandCount> entry : brandCounts.entrySet()) {
+                product.append(product.charAt(product.length() - 1) == ':' ? " " : ", ").append(entry.getKey())
+                        .append(' ').append(entry.getValue().frequency).append('@').append(entry.getValue().csvLine);
+            }
+            products.add(product.toString());
+        });
+        return products;
+    }
+}
@@ -0,0 +1,75 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+/**
+ * The conflicts each {@link ConsistencyRule} flags on the lines of one variant, and the differences it lets through.
+ */
+public class ConsistencyCheckerTest extends TestCase
+{
+    private static final String[] LINE = {"12620014-0", "12620014", "XL", "Red dress", "Levi's", "red", "adult",
+            "male", "regular", "Apparel > Dresses"};
+    private static final int SIZE_LABEL = 2;
+    private static final int AGE_GROUP = 6;
+    private static final int GENDER = 7;
+    private static final int PRODUCT_TYPE = 9;
+
+    public void testGender() throws Exception {
+        assertEquals(0, conflicts(ConsistencyRule.GENDER, GENDER, "male", "female", "unisex", "Male"));
+        assertEquals(0, conflicts(ConsistencyRule.GENDER, GENDER, "female", "kids"));
+        assertEquals(1, conflicts(ConsistencyRule.GENDER, GENDER, "kids", "baby", "male"));
+    }
+
+    public void testAgeGroup() throws Exception {
+        assertEquals(0, conflicts(ConsistencyRule.AGE_GROUP, AGE_GROUP, "adult", "ADULT", " adult "));
+        assertEquals(1, conflicts(ConsistencyRule.AGE_GROUP, AGE_GROUP, "adult", "kids"));
+    }
+
+    public void testSizeLabel() throws Exception {
+        // Localizations of the size in other units, the case aside
+        assertEquals(0, conflicts(ConsistencyRule.SIZE_LABEL, SIZE_LABEL, "40 CM", "16 IN", "16 in"));
+        assertEquals(1, conflicts(ConsistencyRule.SIZE_LABEL, SIZE_LABEL, "6 US", "4 US", "40 CM"));
+    }
+
+    public void testProductType() throws Exception {
+        assertEquals(0, conflicts(ConsistencyRule.PRODUCT_TYPE, PRODUCT_TYPE,
+                "en", "Apparel > Dresses", "fr", "V\u00eatements > Robes", "de", "Kleidung > Kleider"));
+        assertEquals(1, conflicts(ConsistencyRule.PRODUCT_TYPE, PRODUCT_TYPE,
+                "en", "Apparel > Dresses", "en", "Jewellery > Earrings", "fr", "V\u00eatements > Robes"));
+    }
+
+    public void testVariantsApart() throws Exception {
+        ConsistencyChecker checker = new ConsistencyChecker(ConsistencyRule.forNames(ConsistencyRule.AGE_GROUP));
+        FieldNormalizer normalizer = new FieldNormalizer();
+        for (int i = 0; i < 4; i++) {
+            String[] line = LINE.clone();
+            line[0] = "12620014-" + i;
+            line[AGE_GROUP] = i % 2 == 0 ? "adult" : "kids";
+            checker.add(CsvRow.fromLine(i + 1, line, normalizer));
+        }
+        WarningsSink warnings = WarningsSink.counting();
+        checker.check(warnings, 2);
+        assertEquals(0, warnings.getCount());
+    }
+
+    /**
+     * Conflicts flagged by the rule on lines of the same variant, each taking the next value of the field, and for
+     * the product type rule the locale before it.
+     */
+    private static int conflicts(String rule, int field, String... values) throws Exception {
+        ConsistencyChecker checker = new ConsistencyChecker(ConsistencyRule.forNames(rule));
+        FieldNormalizer normalizer = new FieldNormalizer();
+        boolean localized = ConsistencyRule.PRODUCT_TYPE.equals(rule);
+        int csvLine = 0;
+        for (int i = 0; i < values.length; i += localized ? 2 : 1) {
+            String[] line = LINE.clone();
+            line[field] = values[localized ? i + 1 : i];
+            CsvRow row = CsvRow.fromLine(++csvLine, line, normalizer);
+            row.locale = localized ? values[i] : "";
+            checker.add(row);
+        }
+        WarningsSink warnings = WarningsSink.counting();
+        checker.check(warnings, 1);
+        return warnings.getCount();
+    }
+}
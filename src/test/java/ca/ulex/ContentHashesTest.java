@@ -0,0 +1,106 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * {@link ContentHashes} against a HashSet, removals included, and the hash of the lines.
+ */
+public class ContentHashesTest extends TestCase
+{
+    private static final String[] LINE = {"12620014-0", "12620014", "XL", "Red dress", "Levi's", "red", "adult",
+            "male", "regular", "Apparel > Dresses"};
+
+    public void testSameAsHashSet() {
+        Random random = new Random(1);
+        // Small hashes crowd the first slots into clusters wrapping around the end of the table
+        long[] small = new long[64];
+        // Hashes of the same slot whatever the size of the table
+        long[] sameSlot = new long[300];
+        long[] spread = new long[100000];
+        for (int i = 0; i < small.length; i++) {
+            small[i] = i;
+        }
+        for (int i = 0; i < sameSlot.length; i++) {
+            sameSlot[i] = ((long) i << 32) | i;
+        }
+        for (int i = 0; i < spread.length; i++) {
+            spread[i] = random.nextLong();
+        }
+        assertSameAsHashSet(random, small);
+        assertSameAsHashSet(random, sameSlot);
+        assertSameAsHashSet(random, spread);
+    }
+
+    public void testZero() {
+        ContentHashes hashes = new ContentHashes();
+        assertFalse(hashes.contains(0));
+        assertTrue(hashes.add(0));
+        assertFalse(hashes.add(0));
+        assertTrue(hashes.contains(0));
+        assertEquals(1, hashes.size());
+        assertTrue(hashes.remove(0));
+        assertFalse(hashes.remove(0));
+        assertFalse(hashes.contains(0));
+        assertEquals(0, hashes.size());
+    }
+
+    public void testAddAll() {
+        ContentHashes hashes = new ContentHashes();
+        ContentHashes other = new ContentHashes();
+        for (long hash = -50; hash < 50; hash++) {
+            (hash < 0 ? hashes : other).add(hash * 0x9E3779B97F4A7C15L);
+        }
+        hashes.addAll(other);
+        assertEquals(100, hashes.size());
+        for (long hash = -50; hash < 50; hash++) {
+            assertTrue(hashes.contains(hash * 0x9E3779B97F4A7C15L));
+        }
+    }
+
+    public void testLineHash() {
+        FieldNormalizer normalizer = new FieldNormalizer();
+        long hash = ContentHashes.hash(CsvRow.fromLine(1, LINE, normalizer));
+        // Neither the csv_line nor the case and spaces the normalization removes
+        assertEquals(hash, ContentHashes.hash(CsvRow.fromLine(42, LINE, normalizer)));
+        String[] line = LINE.clone();
+        line[7] = " MALE ";
+        assertEquals(hash, ContentHashes.hash(CsvRow.fromLine(1, line, normalizer)));
+
+        for (int i = 0; i < LINE.length; i++) {
+            line = LINE.clone();
+            line[i] = LINE[i] + "x";
+            assertFalse(LINE[i], hash == ContentHashes.hash(CsvRow.fromLine(1, line, normalizer)));
+        }
+        // Text moved from a field to the next one
+        line = LINE.clone();
+        line[3] = "Red";
+        line[4] = "dressLevi's";
+        assertFalse(hash == ContentHashes.hash(CsvRow.fromLine(1, line, normalizer)));
+    }
+
+    private static void assertSameAsHashSet(Random random, long[] values) {
+        ContentHashes hashes = new ContentHashes();
+        Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < 200000; i++) {
+            long hash = values[random.nextInt(values.length)];
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.add(hash), hashes.add(hash));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(hash), hashes.remove(hash));
+                    break;
+                default:
+                    assertEquals(expected.contains(hash), hashes.contains(hash));
+            }
+            assertEquals(expected.size(), hashes.size());
+        }
+        for (Long hash : expected) {
+            assertTrue(hashes.contains(hash));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The rows and ids resolved by {@link CopySink} from its staging table, against the ones of the row by row path.
+ */
+public class CopySinkTest extends TestCase
+{
+    private Path first;
+    private Path second;
+
+    @Override
+    protected void setUp() throws Exception {
+        // The second feed updates half the variants of the first one
+        first = TestDatabase.writeFeed(0, 600, 1);
+        second = TestDatabase.writeFeed(300, 900, 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.delete(first);
+        Files.delete(second);
+    }
+
+    public void testSameRowsAsRowByRow() throws Exception {
+        assertEquals(ingest(Ingestor.LOAD_MODE_ROW), ingest(Ingestor.LOAD_MODE_COPY));
+    }
+
+    public void testWarningsCap() throws Exception {
+        TestDatabase.reset();
+        FieldNormalizer normalizer = new FieldNormalizer();
+        String[] line = {"12620014-0", "12620014", "XL", "Red dress", "Levi's", "red", "adult", "male", "regular",
+                "Apparel > Dresses"};
+        try (Connection conn = TestDatabase.connect()) {
+            conn.setAutoCommit(false);
+            WarningsSink warnings = new WarningsSink(conn, 100, 3, 5);
+            CopySink sink = new CopySink(conn, warnings);
+            // Every other line dropped, numbered apart from the lines kept
+            for (int csvLine = 1; csvLine <= 40; csvLine++) {
+                if (csvLine % 2 == 0) {
+                    sink.dropRow(csvLine, 4);
+                } else {
+                    CsvRow row = CsvRow.fromLine(csvLine, line, normalizer);
+                    row.locale = "en";
+                    sink.addRow(row);
+                }
+            }
+            sink.finish();
+            warnings.close();
+            conn.commit();
+
+            assertEquals(20, warnings.getCount());
+            assertEquals(Integer.valueOf(20), warnings.getCounts().get("WARNING_EMPTY_FIELD"));
+            List<Integer> written = new ArrayList<>();
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT csv_line, description FROM warnings ORDER BY id")) {
+                while (rs.next()) {
+                    written.add(rs.getInt(1));
+                    assertEquals(Ingestor.WARNING_EMPTY_FIELD + 4, rs.getString(2));
+                }
+            }
+            assertEquals(Arrays.asList(2, 4, 6, 16, 26, 36), written);
+        }
+    }
+
+    private List<String> ingest(String loadMode) throws Exception {
+        TestDatabase.reset();
+        assertNotNull(TestDatabase.ingest(first.toString(), loadMode));
+        assertNotNull(TestDatabase.ingest(second.toString(), loadMode));
+        return TestDatabase.dump();
+    }
+}
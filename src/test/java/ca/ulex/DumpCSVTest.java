@@ -0,0 +1,63 @@
+package ca.ulex;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.RFC4180ParserBuilder;
+import com.opencsv.enums.CSVReaderNullFieldIndicator;
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The lines written by {@link DumpCSV} read back by an RFC 4180 parser, and left unquoted when they need no quotes.
+ */
+public class DumpCSVTest extends TestCase
+{
+    private static final String[] VALUES = {"12620014-0", "Red dress", "", null, "Robe, rouge", "Zapatos \"cuero\"",
+            "\"", "multi\nline\r\nname", "a\\\"b", "back\\slash", " spaces ", "\u8d64\u3044\u30c9\u30ec\u30b9",
+            "Apparel > Dresses"};
+
+    public void testPlainLine() throws Exception {
+        StringWriter writer = new StringWriter();
+        DumpCSV.writeRow(writer, new String[] {"12620014-0", "12620014", "XL", "Red dress", "Levi's", "red", "adult",
+                "male", "regular", null});
+        assertEquals("12620014-0,12620014,XL,Red dress,Levi's,red,adult,male,regular,\n", writer.toString());
+    }
+
+    public void testQuotedFields() throws Exception {
+        StringWriter writer = new StringWriter();
+        DumpCSV.writeRow(writer, new String[] {"", "a,b", "say \"hi\"", "two\nlines", "back\\slash"});
+        assertEquals("\"\",\"a,b\",\"say \"\"hi\"\"\",\"two\nlines\",back\\slash\n", writer.toString());
+    }
+
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(16);
+        List<String[]> lines = new ArrayList<>();
+        StringWriter writer = new StringWriter();
+        for (int i = 0; i < 1000; i++) {
+            String[] line = new String[Utils.CSV_HEADER.length];
+            for (int j = 0; j < line.length; j++) {
+                line[j] = VALUES[random.nextInt(VALUES.length)];
+            }
+            lines.add(line);
+            DumpCSV.writeRow(writer, line);
+        }
+
+        // Empty separators read as null, and "" as an empty string
+        try (CSVReader reader = new CSVReaderBuilder(new StringReader(writer.toString()))
+                .withCSVParser(new RFC4180ParserBuilder()
+                        .withFieldAsNull(CSVReaderNullFieldIndicator.EMPTY_SEPARATORS).build())
+                .withKeepCarriageReturn(true)
+                .build()) {
+            for (String[] line : lines) {
+                assertEquals(Arrays.asList(line), Arrays.asList(reader.readNext()));
+            }
+            assertNull(reader.readNext());
+        }
+    }
+}
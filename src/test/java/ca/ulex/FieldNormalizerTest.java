@@ -0,0 +1,100 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * {@link FieldNormalizer} against the String case mappings and {@link Utils#normalizeText} it stands in for, and the
+ * canonical entries of {@link FieldDictionary}.
+ */
+public class FieldNormalizerTest extends TestCase
+{
+    private static final String[] INPUTS = {
+            "", " ", "  \t", "a", "A", "male", "MALE", " Male ", "mALE\t", "Kleidung > Hosen", "XL", "xl", "3xl",
+            // Latin-1, German sharp s and its capital, dotted and dotless i, the Greek final sigma
+            "caf\u00e9", "CAF\u00c9", "\u00e9t\u00e9", "\u00df", "stra\u00dfe", "\u1e9e", "\u0130stanbul", "\u0131",
+            "I\u0307", "\u03a3", "\u039f\u0394\u039f\u03a3", "\u03bf\u03b4\u03bf\u03c2", "\u03a3\u03a3 \u03a3",
+            // Ligature, title case digraph, mark following the first letter, Armenian
+            "\ufb01ne", "\u01c5", "\u01c6a", "e\u0301t\u00e9", "\u0587",
+            // Surrogate pairs: Deseret has cases, the emoji has none; then lone surrogates
+            "\ud801\udc00\ud801\udc28", "\ud83d\udc57 dress", "\ud801", "\udc00x",
+            // Spaces String.trim() leaves alone, control chars it removes
+            "\u00a0red\u00a0", "\u2003red", "\u0001red\u001f",
+            "\u8d64\u3044\u30c9\u30ec\u30b9", "\uff21\uff42",
+    };
+
+    private static final String ALPHABET = "aAzZ iI\t\u00df\u00e9\u00c9\u0130\u0131\u03a3\u03c3\u03c2\u0307\u0301"
+            + "\ufb01\u01c5\u00a0\u0001\u8d64\ud801\udc00";
+
+    public void testInputs() {
+        FieldNormalizer normalizer = new FieldNormalizer();
+        for (String input : INPUTS) {
+            assertSameAsString(normalizer, input);
+        }
+    }
+
+    public void testRandomInputs() {
+        FieldNormalizer normalizer = new FieldNormalizer();
+        Random random = new Random(20);
+        for (int i = 0; i < 50000; i++) {
+            StringBuilder input = new StringBuilder();
+            for (int length = random.nextInt(8); length > 0; length--) {
+                input.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            assertSameAsString(normalizer, input.toString());
+        }
+    }
+
+    public void testCanonicalEntries() {
+        FieldNormalizer normalizer = new FieldNormalizer();
+        FieldDictionary dictionary = new FieldDictionary("test", 3);
+        FieldDictionary.Entry male = normalizer.normalizeText("male", dictionary);
+        assertEquals("Male", male.value);
+        assertEquals(0, male.code);
+        assertSame(male, normalizer.normalizeText(" MALE ", dictionary));
+        assertSame(male, normalizer.intern("Male", dictionary));
+        assertSame(male, dictionary.get("Male"));
+        assertEquals(1, normalizer.normalizeText("female", dictionary).code);
+        assertEquals(2, normalizer.lowerCase("KIDS", dictionary).code);
+
+        // Full: the new values are normalized all the same, without a code
+        FieldDictionary.Entry baby = normalizer.normalizeText("BABY", dictionary);
+        assertEquals("Baby", baby.value);
+        assertEquals(FieldDictionary.NOT_INTERNED, baby.code);
+        assertTrue(dictionary.isFull());
+        assertEquals(3, dictionary.size());
+        assertSame(male, normalizer.normalizeText("Male", dictionary));
+    }
+
+    private static void assertSameAsString(FieldNormalizer normalizer, String input) {
+        FieldDictionary dictionary = new FieldDictionary("test", 100);
+        String message = escape(input);
+        String expected;
+        try {
+            expected = Utils.normalizeText(input);
+        } catch (StringIndexOutOfBoundsException e) {
+            // A blank input, which the normalizer hands over to Utils.normalizeText
+            try {
+                normalizer.normalizeText(input);
+                fail(message);
+            } catch (StringIndexOutOfBoundsException expectedException) {
+            }
+            expected = null;
+        }
+        if (expected != null) {
+            assertEquals(message, expected, normalizer.normalizeText(input));
+            assertEquals(message, expected, normalizer.normalizeText(input, dictionary).value);
+        }
+        assertEquals(message, input.toLowerCase(), normalizer.lowerCase(input, dictionary).value);
+        assertEquals(message, input.toUpperCase(), normalizer.upperCase(input, dictionary).value);
+    }
+
+    private static String escape(String input) {
+        StringBuilder escaped = new StringBuilder();
+        for (int i = 0; i < input.length(); i++) {
+            escaped.append(String.format("\\u%04x", (int) input.charAt(i)));
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,114 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The gender updates {@link GenderAccumulator} batches: one per variant gaining a gender, with only the genders its
+ * row does not have yet.
+ */
+public class GenderAccumulatorTest extends TestCase
+{
+    // Variant id to the flags of its update, in the batches executed
+    private final Map<Integer, Integer> updates = new TreeMap<>();
+    private final List<Object> parameters = new ArrayList<>();
+
+    public void testFlag() {
+        assertEquals(GenderAccumulator.MALE, GenderAccumulator.flag("Male"));
+        assertEquals(GenderAccumulator.FEMALE, GenderAccumulator.flag("female"));
+        assertEquals(GenderAccumulator.UNISEX, GenderAccumulator.flag("UNISEX"));
+        assertEquals(0, GenderAccumulator.flag("kids"));
+        assertEquals(0, GenderAccumulator.flag(""));
+    }
+
+    public void testOnlyNewGenders() throws Exception {
+        GenderAccumulator genders = new GenderAccumulator(recordingConnection(), 100);
+        genders.inserted(1, GenderAccumulator.MALE);
+        genders.inserted(2, GenderAccumulator.FEMALE);
+        genders.inserted(3, 0);
+        genders.add(1, GenderAccumulator.MALE);
+        genders.add(1, 0);
+        genders.add(2, GenderAccumulator.MALE);
+        genders.add(2, GenderAccumulator.UNISEX);
+        genders.add(2, GenderAccumulator.MALE);
+        genders.add(3, GenderAccumulator.FEMALE);
+        genders.flush();
+        assertEquals(Map.of(2, GenderAccumulator.MALE | GenderAccumulator.UNISEX, 3, GenderAccumulator.FEMALE),
+                updates);
+
+        // Stored by the flush
+        updates.clear();
+        genders.add(2, GenderAccumulator.UNISEX);
+        genders.add(3, GenderAccumulator.FEMALE);
+        genders.flush();
+        assertTrue(updates.isEmpty());
+        genders.add(1, GenderAccumulator.FEMALE);
+        genders.close();
+        assertEquals(Map.of(1, GenderAccumulator.FEMALE), updates);
+    }
+
+    public void testGrowing() throws Exception {
+        GenderAccumulator genders = new GenderAccumulator(recordingConnection(), 100000);
+        for (int id = 1; id <= 5000; id++) {
+            genders.inserted(id, GenderAccumulator.flag(id % 2 == 0 ? "male" : "female"));
+        }
+        for (int id = 1; id <= 5000; id++) {
+            genders.add(id, GenderAccumulator.MALE);
+        }
+        genders.flush();
+        assertEquals(2500, updates.size());
+        for (Map.Entry<Integer, Integer> update : updates.entrySet()) {
+            assertEquals(1, update.getKey() % 2);
+            assertEquals(Integer.valueOf(GenderAccumulator.MALE), update.getValue());
+        }
+    }
+
+    public void testCleared() throws Exception {
+        GenderAccumulator genders = new GenderAccumulator(recordingConnection(), 3);
+        genders.inserted(1, GenderAccumulator.MALE);
+        genders.inserted(2, GenderAccumulator.MALE);
+        assertFalse(genders.isFull());
+        genders.inserted(3, GenderAccumulator.MALE);
+        assertTrue(genders.isFull());
+        genders.flush();
+        genders.clear();
+        assertFalse(genders.isFull());
+
+        // The genders stored are forgotten, the ones seen again written as they come
+        genders.add(1, GenderAccumulator.MALE);
+        genders.close();
+        assertEquals(Map.of(1, GenderAccumulator.MALE), updates);
+    }
+
+    private Connection recordingConnection() {
+        PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setBoolean":
+                        case "setInt":
+                            parameters.add(args[1]);
+                            return null;
+                        case "addBatch":
+                            int flags = (Boolean) parameters.get(0) ? GenderAccumulator.MALE : 0;
+                            flags |= (Boolean) parameters.get(1) ? GenderAccumulator.FEMALE : 0;
+                            flags |= (Boolean) parameters.get(2) ? GenderAccumulator.UNISEX : 0;
+                            assertNull(updates.put((Integer) parameters.get(3), flags));
+                            parameters.clear();
+                            return null;
+                        case "executeBatch":
+                            return new int[0];
+                        default:
+                            return null;
+                    }
+                });
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> "prepareStatement".equals(method.getName()) ? stmt : null);
+    }
+}
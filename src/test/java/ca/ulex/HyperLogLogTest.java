@@ -0,0 +1,54 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+/**
+ * Accuracy of {@link HyperLogLog} on both sides of the switch from the empty registers to the register estimate.
+ */
+public class HyperLogLogTest extends TestCase
+{
+    public void testEmpty() {
+        assertEquals(0, new HyperLogLog().estimate());
+    }
+
+    public void testRepeatsAndOrder() {
+        HyperLogLog forward = new HyperLogLog();
+        HyperLogLog backward = new HyperLogLog();
+        for (int i = 0; i < 50000; i++) {
+            forward.add(variantId(i));
+            backward.add(variantId(49999 - i));
+        }
+        long estimate = forward.estimate();
+        assertEquals(estimate, backward.estimate());
+        for (int i = 0; i < 50000; i += 3) {
+            forward.add(variantId(i));
+        }
+        assertEquals(estimate, forward.estimate());
+    }
+
+    public void testSmallCounts() {
+        for (int count : new int[] {1, 2, 10, 50, 100, 300}) {
+            HyperLogLog values = new HyperLogLog();
+            for (int i = 0; i < count; i++) {
+                values.add("Brand " + i);
+            }
+            assertTrue(count + " values", Math.abs(values.estimate() - count) <= 2);
+        }
+    }
+
+    public void testLargeCounts() {
+        // Around the switch at 2.5 values per register the register estimate alone is 2% high
+        for (int count : new int[] {5000, 100000, 164000, 180000, 250000, 300000, 1000000}) {
+            HyperLogLog values = new HyperLogLog();
+            for (int i = 0; i < count; i++) {
+                values.add(variantId(i));
+            }
+            double error = Math.abs(values.estimate() - count) / (double) count;
+            assertTrue(count + " values, error " + error, error < 0.015);
+        }
+    }
+
+    private static String variantId(int i) {
+        return (12620000 + i / 7) + "-" + i % 7;
+    }
+}
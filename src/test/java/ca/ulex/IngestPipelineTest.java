@@ -0,0 +1,165 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The byte ranges cut by the reader thread and the csv_line given to each row once the workers are done with them.
+ */
+public class IngestPipelineTest extends TestCase
+{
+    private static final String[] PRODUCT_NAMES = {
+            "Red dress",
+            "\"Robe, rouge\"",
+            "\"Zapatos \"\"cuero\"\"\"",
+            "\"multi\nline\r\nname\"",
+            "a\\\"b",
+            "\u8d64\u3044\u30c9\u30ec\u30b9",
+            "\"\"",
+    };
+
+    private Path feed;
+    // Expected csv_line - 1 to variant_id, null for a line dropped for an empty field
+    private final List<String> variantIds = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        Random random = new Random(11);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            String variantId = (12620000 + i / 3) + "-" + i % 3;
+            String productName = PRODUCT_NAMES[random.nextInt(PRODUCT_NAMES.length)];
+            text.append(variantId).append(',').append(12620000 + i / 3).append(",XL,").append(productName)
+                    .append(",Levi's,red,adult,male,regular,Apparel > Dresses")
+                    .append(random.nextInt(5) == 0 ? "\r\n" : "\n");
+            variantIds.add(productName.equals("\"\"") ? null : variantId);
+        }
+        feed = Files.createTempFile("ingest-pipeline", ".csv");
+        Files.write(feed, text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.delete(feed);
+    }
+
+    public void testRangesHoldWholeRecords() throws Exception {
+        List<List<String>> expected = new ArrayList<>();
+        try (MappedCsvReader reader = new MappedCsvReader(feed)) {
+            while (reader.next()) {
+                expected.add(Arrays.asList(reader.fields()));
+            }
+        }
+        assertEquals(variantIds.size(), expected.size());
+
+        for (long chunkBytes : new long[] {1, 7, 100, 4096, 1 << 20}) {
+            List<List<String>> records = new ArrayList<>();
+            try (MappedCsvReader reader = new MappedCsvReader(feed)) {
+                long start = 0;
+                while (start < reader.size()) {
+                    long end = reader.skipTo(start + chunkBytes);
+                    assertTrue(end > start);
+                    try (MappedCsvReader range = reader.range(start, end)) {
+                        while (range.next()) {
+                            records.add(Arrays.asList(range.fields()));
+                        }
+                        assertEquals(end, range.position());
+                    }
+                    start = end;
+                }
+                assertEquals(reader.size(), start);
+            }
+            assertEquals("chunks of " + chunkBytes + " bytes", expected, records);
+        }
+    }
+
+    public void testCsvLines() throws Exception {
+        for (long chunkBytes : new long[] {1, 100, 4096, 1 << 20}) {
+            for (int workers : new int[] {1, 3}) {
+                RecordingSink sink = run(new MappedCsvReader(feed), workers, chunkBytes, 0);
+                assertEquals(workers + " workers, chunks of " + chunkBytes + " bytes", variantIds, sink.variantIds);
+            }
+        }
+        RecordingSink sink = run(new OpenCsvSource(feed.toString()), 3, 4096, 0);
+        assertEquals(variantIds, sink.variantIds);
+    }
+
+    public void testCsvLinesAfterCheckpoint() throws Exception {
+        int skipped = 1234;
+        MappedCsvReader reader = new MappedCsvReader(feed);
+        for (int i = 0; i < skipped; i++) {
+            assertTrue(reader.next());
+        }
+        reader.seek(reader.position());
+        RecordingSink sink = run(reader, 3, 100, skipped);
+        assertEquals(variantIds.subList(skipped, variantIds.size()),
+                sink.variantIds.subList(skipped, sink.variantIds.size()));
+        for (int i = 0; i < skipped; i++) {
+            assertNull(sink.variantIds.get(i));
+        }
+    }
+
+    private static RecordingSink run(CsvSource csvSource, int workers, long chunkBytes, int csvLine)
+            throws Exception {
+        RecordingSink sink = new RecordingSink();
+        List<Long> offsets = new ArrayList<>();
+        try (CsvSource source = csvSource) {
+            IngestPipeline pipeline = new IngestPipeline(source, sink, new BrandTracker(),
+                    new ConsistencyChecker(ConsistencyRule.forNames(Ingestor.CONSISTENCY_RULES)),
+                    (p, byteOffset) -> offsets.add(byteOffset), workers, chunkBytes);
+            pipeline.csvLine = csvLine;
+            pipeline.run();
+            assertEquals(sink.variantIds.size(), pipeline.csvLine);
+            assertFalse(sink.repeated);
+            assertEquals(pipeline.csvLine - csvLine, sink.seen.cardinality());
+        }
+        // The byte offsets of the chunks, for the checkpoints, when the source knows them
+        for (int i = 1; i < offsets.size() && csvSource instanceof MappedCsvReader; i++) {
+            assertTrue(offsets.get(i) > offsets.get(i - 1));
+        }
+        return sink;
+    }
+
+    // Records what it is given without failing, an assertion error in the writer would leave the other stages waiting
+    private static final class RecordingSink implements RowSink
+    {
+        final List<String> variantIds = new ArrayList<>();
+        final BitSet seen = new BitSet();
+        boolean repeated = false;
+
+        @Override
+        public void addRow(CsvRow row) {
+            set(row.csvLine, row.variantId);
+        }
+
+        @Override
+        public void dropRow(int csvLine, int emptyField) {
+            set(csvLine, null);
+        }
+
+        private void set(int csvLine, String variantId) {
+            while (variantIds.size() < csvLine) {
+                variantIds.add(null);
+            }
+            repeated |= seen.get(csvLine);
+            seen.set(csvLine);
+            variantIds.set(csvLine - 1, variantId);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+}
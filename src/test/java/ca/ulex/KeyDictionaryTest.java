@@ -0,0 +1,101 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * {@link KeyDictionary} against a HashMap, on keys packed into longs and keys stored in the arena.
+ */
+public class KeyDictionaryTest extends TestCase
+{
+    private static final String[] KEYS = {
+            "", "-", "0", "1", "12", "1-2", "12-0", "012", "1-02", "-1", "1-", "1--2", "1-2-3", "a", "A",
+            "12620014", "12620014-17", "12620014-017", "999999999999999999999", "549755813887-1",
+            "549755813888-1", "1-8388607", "1-8388608", "4611686018427387903", "4611686018427387904",
+            "Levi's", "H&m", "caf\u00e9", "\u8d64\u3044\u30c9\u30ec\u30b9", "\ud83d\udc57", "\ud83d", "\udc57x",
+    };
+
+    public void testPack() {
+        assertEquals(-1, KeyDictionary.pack(""));
+        assertEquals(-1, KeyDictionary.pack("012"));
+        assertEquals(-1, KeyDictionary.pack("1-02"));
+        assertEquals(-1, KeyDictionary.pack("-1"));
+        assertEquals(-1, KeyDictionary.pack("1-"));
+        assertEquals(-1, KeyDictionary.pack("1-2-3"));
+        assertEquals(-1, KeyDictionary.pack("1-8388608"));
+        assertEquals(-1, KeyDictionary.pack("549755813888-1"));
+        assertEquals(-1, KeyDictionary.pack("4611686018427387904"));
+        assertTrue(KeyDictionary.pack("0") >= 0);
+        assertTrue(KeyDictionary.pack("1-8388607") >= 0);
+        assertTrue(KeyDictionary.pack("549755813887-1") >= 0);
+        assertTrue(KeyDictionary.pack("4611686018427387903") >= 0);
+        assertFalse(KeyDictionary.pack("12") == KeyDictionary.pack("1-2"));
+        assertFalse(KeyDictionary.pack("0") == KeyDictionary.pack("0-0"));
+    }
+
+    public void testEdgeKeys() {
+        KeyDictionary dictionary = new KeyDictionary();
+        for (int i = 0; i < KEYS.length; i++) {
+            assertEquals(KeyDictionary.NOT_FOUND, dictionary.get(KEYS[i]));
+            dictionary.put(KEYS[i], i);
+        }
+        assertEquals(KEYS.length, dictionary.size());
+        for (int i = 0; i < KEYS.length; i++) {
+            assertEquals(KEYS[i], i, dictionary.get(KEYS[i]));
+            assertTrue(dictionary.containsKey(KEYS[i]));
+        }
+        assertFalse(dictionary.containsKey("13"));
+        assertFalse(dictionary.containsKey("Levi"));
+    }
+
+    public void testSameAsHashMap() {
+        Random random = new Random(42);
+        KeyDictionary dictionary = new KeyDictionary();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            String key = randomKey(random);
+            if (random.nextInt(4) == 0) {
+                Integer value = expected.get(key);
+                assertEquals(key, value == null ? KeyDictionary.NOT_FOUND : value.intValue(), dictionary.get(key));
+            } else {
+                int value = random.nextInt(Integer.MAX_VALUE);
+                dictionary.put(key, value);
+                expected.put(key, value);
+            }
+        }
+        assertEquals(expected.size(), dictionary.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue().intValue(), dictionary.get(entry.getKey()));
+        }
+    }
+
+    public void testNegativeValue() {
+        try {
+            new KeyDictionary().put("12620014", -1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static String randomKey(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return Integer.toString(12600000 + random.nextInt(50000));
+            case 1:
+                return (12600000 + random.nextInt(20000)) + "-" + random.nextInt(30);
+            case 2:
+                // Not packed: leading zero
+                return "0" + random.nextInt(50000);
+            default:
+                StringBuilder key = new StringBuilder();
+                for (int i = random.nextInt(12); i > 0; i--) {
+                    key.append(random.nextInt(3) == 0 ? (char) (0x3040 + random.nextInt(96))
+                            : (char) ('a' + random.nextInt(26)));
+                }
+                return key.toString();
+        }
+    }
+}
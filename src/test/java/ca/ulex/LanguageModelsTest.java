@@ -0,0 +1,82 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+import org.apache.tika.langdetect.optimaize.OptimaizeLangDetector;
+import org.apache.tika.language.detect.LanguageDetector;
+import org.apache.tika.language.detect.LanguageResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The detectors of {@link LanguageModels} against Tika's OptimaizeLangDetector, on the same locales.
+ */
+public class LanguageModelsTest extends TestCase
+{
+    private static final String[] TEXTS = {
+            // Scored the same by every profile, the tie goes to the first of the detector's profiles
+            "\u30c9\u30ec\u30b9",
+            "\u8d64\u3044",
+            "XL",
+            "42",
+            "Robe rouge en soie",
+            "Rotes Kleid aus Seide",
+            "Vestido rojo de seda",
+            "Abito rosso di seta",
+            "Vestido vermelho de seda",
+            "Red silk dress",
+            "\u043a\u0440\u0430\u0441\u043d\u043e\u0435 \u043f\u043b\u0430\u0442\u044c\u0435",
+            "\ube68\uac04 \ub4dc\ub808\uc2a4",
+            "\u7ea2\u8272\u8fde\u8863\u88d9",
+            "\u8d64\u3044\u30c9\u30ec\u30b9\u3067\u3059",
+    };
+
+    public void testSameResultsAsTika() throws Exception {
+        LanguageDetector tika = new OptimaizeLangDetector().loadModels(new HashSet<>(Arrays.asList(Ingestor.LOCALES)));
+        LanguageModels.Detector detector = LanguageModels.newDetector();
+        for (String text : TEXTS) {
+            tika.reset();
+            tika.addText(text);
+            assertEquals(text, results(tika.detectAll()), results(detector.detectAll(text)));
+            assertEquals(tika.detect(text).getLanguage(), detector.detect(text));
+        }
+    }
+
+    public void testLongTexts() throws Exception {
+        LanguageDetector tika = new OptimaizeLangDetector().loadModels(new HashSet<>(Arrays.asList(Ingestor.LOCALES)));
+        LanguageModels.Detector detector = LanguageModels.newDetector();
+        // Added by chunks of 4096 chars, those past 20000 chars left out
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 30000; i++) {
+            text.append(TEXTS[i % TEXTS.length]).append(i % 7 == 0 ? "\n" : " ");
+            if (text.length() % 4096 < 100) {
+                tika.reset();
+                tika.addText(text);
+                assertEquals(results(tika.detectAll()), results(detector.detectAll(text.toString())));
+            }
+        }
+        tika.reset();
+        tika.addText(text);
+        assertEquals(results(tika.detectAll()), results(detector.detectAll(text.toString())));
+        tika.reset();
+        tika.addText("");
+        assertEquals(results(tika.detectAll()), results(detector.detectAll("")));
+    }
+
+    public void testTiesAreStable() {
+        String first = LanguageModels.newDetector().detect(TEXTS[0]);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(first, LanguageModels.newDetector().detect(TEXTS[0]));
+        }
+    }
+
+    private static List<String> results(List<LanguageResult> results) {
+        List<String> languages = new ArrayList<>();
+        for (LanguageResult result : results) {
+            languages.add(result.getLanguage() + " " + result.getRawScore());
+        }
+        return languages;
+    }
+}
@@ -0,0 +1,76 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The ids {@link LookupTables} gives the values of localized_meta: those of the rows already there, of the rows it
+ * adds, and of the rows another load has added since it read the tables.
+ */
+public class LookupTablesTest extends TestCase
+{
+    public void testIds() throws Exception {
+        TestDatabase.reset();
+        try (Connection conn = TestDatabase.connect()) {
+            execute(conn, "INSERT INTO color (name) VALUES ('red'), ('rouge')");
+            LookupTables lookups = new LookupTables(conn);
+            assertEquals(Integer.valueOf(2), id(conn, lookups, LookupTables.COLOR, "rouge"));
+            assertEquals(Integer.valueOf(3), id(conn, lookups, LookupTables.COLOR, "rot"));
+            assertEquals(Integer.valueOf(3), id(conn, lookups, LookupTables.COLOR, "rot"));
+            // Known since inserted, a conflicting insert would have taken the next id of the sequence
+            assertEquals(Integer.valueOf(4), id(conn, lookups, LookupTables.COLOR, "rojo"));
+            assertEquals(Integer.valueOf(1), id(conn, lookups, LookupTables.SIZE_LABEL, "rot"));
+            assertNull(id(conn, lookups, LookupTables.LOCALE, null));
+            lookups.close();
+            assertEquals(4, count(conn, "color"));
+            assertEquals(1, count(conn, "size_label"));
+            assertEquals(0, count(conn, "locale"));
+        }
+    }
+
+    public void testAddedByAnotherLoad() throws Exception {
+        TestDatabase.reset();
+        try (Connection conn = TestDatabase.connect(); Connection other = TestDatabase.connect()) {
+            conn.setAutoCommit(false);
+            LookupTables lookups = new LookupTables(conn);
+            execute(other, "INSERT INTO product_type (name) VALUES ('Apparel > Dresses'), ('Apparel > Shoes')");
+            assertEquals(Integer.valueOf(2), id(conn, lookups, LookupTables.PRODUCT_TYPE, "Apparel > Shoes"));
+            // After the id the conflicting insert took from the sequence
+            assertEquals(Integer.valueOf(4), id(conn, lookups, LookupTables.PRODUCT_TYPE, "Apparel > Hats"));
+            lookups.close();
+            conn.commit();
+            assertEquals(3, count(conn, "product_type"));
+        }
+    }
+
+    // The id the parameter is set to, or null
+    private static Integer id(Connection conn, LookupTables lookups, int table, String value) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT ?::integer")) {
+            lookups.setId(stmt, 1, table, value);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                int id = rs.getInt(1);
+                return rs.wasNull() ? null : id;
+            }
+        }
+    }
+
+    private static int count(Connection conn, String table) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT count(*) FROM " + table)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static void execute(Connection conn, String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+}
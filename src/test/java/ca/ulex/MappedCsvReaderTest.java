@@ -0,0 +1,101 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * {@link MappedCsvReader} against opencsv's CSVReader ({@link OpenCsvSource}), on the same bytes.
+ */
+public class MappedCsvReaderTest extends TestCase
+{
+    private static final String[] CASES = {
+            "",
+            "a",
+            "a,b,c\n",
+            "a,b,c\nd,e,f",
+            "a,,c\n,\n",
+            "a\rb\r\nc\n\nd\n",
+            "\"a,b\",\"c\"\"d\",e\n",
+            "\"multi\nline\",x\n\"cr\r\nlf\",y\n",
+            "a\"b\"c,d\n",
+            "\"a\"b,c\n",
+            " \"a\" ,b\n",
+            "\"\",\"\"\"\",x\n",
+            "a\\,b,c\\\"d,e\\\\f\n",
+            "\"a\\\"b\",c\n",
+            "a\\\nb\n",
+            "a\\",
+            "\"unterminated,field\nnext\n",
+            "12622622-0,12622622,XL,\u8d64\u3044\u30c9\u30ec\u30b9,Adiddas,white,kids,MALE,regular,Kleidung > Hosen\n",
+            "12620813-0,12620813,XL,Zapatos \"\"cuero\"\",Uniqlo,rouge,adult,MALE,Plus,Kleidung > Hosen\n",
+            "caf\u00e9,\"\ud83d\udc57\",\u00e9\u00e9\n",
+    };
+
+    private static final String ALPHABET = "ab ,,,\"\"\"\\\n\r\u00e9\u8d64";
+
+    public void testSameRecordsAsOpencsv() throws Exception {
+        for (String text : CASES) {
+            assertSameRecords(text);
+        }
+    }
+
+    public void testFuzz() throws Exception {
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int length = random.nextInt(60); length > 0; length--) {
+                text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            assertSameRecords(text.toString());
+        }
+    }
+
+    private static void assertSameRecords(String text) throws Exception {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        List<String[]> expected = new ArrayList<>();
+        List<Integer> expectedEmpty = new ArrayList<>();
+        boolean complete = true;
+        try (OpenCsvSource source = new OpenCsvSource(new ByteArrayInputStream(bytes))) {
+            while (source.next()) {
+                expected.add(source.fields());
+                expectedEmpty.add(source.emptyField());
+            }
+        } catch (IOException e) {
+            // An unterminated quoted field at the end of the file, which the mapped reader reads up to the end:
+            // only the records before it are compared
+            complete = false;
+        }
+
+        Path file = Files.createTempFile("mapped-csv", ".csv");
+        try {
+            Files.write(file, bytes);
+            try (MappedCsvReader reader = new MappedCsvReader(file)) {
+                for (int i = 0; i < expected.size(); i++) {
+                    String message = "record " + i + " of " + escape(text);
+                    assertTrue(message, reader.next());
+                    assertEquals(message, Arrays.asList(expected.get(i)), Arrays.asList(reader.fields()));
+                    assertEquals(message, expectedEmpty.get(i).intValue(), reader.emptyField());
+                }
+                if (complete) {
+                    assertFalse(escape(text), reader.next());
+                    assertEquals(bytes.length, reader.position());
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+}
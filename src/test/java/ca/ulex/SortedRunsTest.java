@@ -0,0 +1,110 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * The merge of {@link SortedRuns} against a state that never spilled, the intermediate merges included.
+ */
+public class SortedRunsTest extends TestCase
+{
+    private static final String[] KEYS = {"", "a", "A", "ab", "b", "Levi's", "levis", "12620014", "1262001",
+            "\u00e9t\u00e9", "\u8d64", "\ud83d\udc57", "\uff21", "\u0000", "z"};
+
+    // Values listing the spills they come from, combined in order
+    private static final SortedRuns.Codec<String> CODEC = new SortedRuns.Codec<String>() {
+        @Override
+        public void write(DataOutputStream out, String value) throws IOException {
+            SortedRuns.writeString(out, value);
+        }
+
+        @Override
+        public String read(DataInputStream in) throws IOException {
+            return SortedRuns.readString(in);
+        }
+
+        @Override
+        public String combine(String earlier, String later) {
+            return earlier + "," + later;
+        }
+    };
+
+    private MemoryBudget budget;
+
+    @Override
+    protected void setUp() {
+        // Never spills by itself, the runs are written by the test
+        budget = new MemoryBudget(0, System.getProperty("java.io.tmpdir"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        budget.close();
+    }
+
+    public void testSameAsNeverSpilled() throws Exception {
+        // Up to past two intermediate merges of the runs
+        for (int spills : new int[] {0, 1, 2, 31, 32, 33, 70}) {
+            assertMerge(new Random(spills), spills);
+        }
+    }
+
+    public void testStrings() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (String key : KEYS) {
+                SortedRuns.writeString(out, key);
+            }
+            SortedRuns.writeString(out, null);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            for (String key : KEYS) {
+                assertEquals(key, SortedRuns.readString(in));
+            }
+            assertNull(SortedRuns.readString(in));
+        }
+    }
+
+    private void assertMerge(Random random, int spills) throws Exception {
+        SortedRuns<String> runs = new SortedRuns<>("test", budget, CODEC);
+        Map<String, String> expected = new TreeMap<>();
+        List<Map.Entry<String, String>> inMemory = new ArrayList<>();
+        for (int spill = 0; spill <= spills; spill++) {
+            inMemory = new ArrayList<>();
+            for (String key : KEYS) {
+                String value = spill + ":" + random.nextInt(100);
+                // Some keys come and go, most are in every state
+                if (random.nextInt(4) != 0) {
+                    inMemory.add(new AbstractMap.SimpleEntry<>(key, value));
+                    expected.merge(key, value, CODEC::combine);
+                }
+            }
+            if (spill < spills) {
+                runs.spill(inMemory);
+            }
+        }
+        assertEquals(spills == 0, runs.isEmpty());
+
+        List<String> keys = new ArrayList<>();
+        Map<String, String> merged = new TreeMap<>();
+        runs.forEach(inMemory, (key, value) -> {
+            keys.add(key);
+            merged.put(key, value);
+        });
+        assertEquals(spills + " spills", new ArrayList<>(expected.keySet()), keys);
+        assertEquals(spills + " spills", expected, merged);
+        runs.delete();
+        assertTrue(runs.isEmpty());
+    }
+}
@@ -0,0 +1,137 @@
+package ca.ulex;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Embedded PostgreSQL shared by the tests of the load modes, started by the first of them and stopped with the JVM.
+ */
+class TestDatabase
+{
+    // The tables written by an ingestion, the checkpoints aside
+    static final String[] TABLES = {"brand", "product", "csv_brand", "variant", "csv_age_group", "csv_gender",
+            "locale", "size_label", "color", "product_type", "localized_meta", "warnings"};
+
+    private static final String[] PRODUCT_NAMES = {"Red dress", "Robe rouge en coton", "Rotes Kleid aus Baumwolle",
+            "Vestido rojo de algod\u00f3n", ""};
+    private static final String[] BRANDS = {"Levi's", "Levis", "Adidas", "Adiddas", "Nike", ""};
+    private static final String[] GENDERS = {"male", "female", "unisex", "Male", "kids"};
+    private static final String[] SIZE_LABELS = {"XL", "40 CM", "M"};
+    private static final String[] COLORS = {"red", "rouge", "rot", "rojo"};
+    private static final String[] PRODUCT_TYPES = {"Apparel > Dresses", "V\u00eatements > Robes",
+            "Kleidung > Kleider"};
+
+    private static EmbeddedPostgres postgres;
+
+    /**
+     * Writes a feed of the lines from first to last, three lines to a variant and two variants to a product, with
+     * empty fields, invalid genders and brand names varying on the lines of a product. Feeds over the same lines
+     * share their variants and products.
+     */
+    static Path writeFeed(int first, int last, long seed) throws IOException {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(String.join(",", Utils.CSV_HEADER)).append('\n');
+        for (int i = first; i < last; i++) {
+            int product = 12620000 + i / 6;
+            text.append(product).append('-').append(i / 3 % 2).append(',').append(product)
+                    .append(',').append(pick(random, SIZE_LABELS))
+                    .append(',').append(pick(random, PRODUCT_NAMES))
+                    .append(',').append(pick(random, BRANDS))
+                    .append(',').append(pick(random, COLORS))
+                    .append(',').append(random.nextInt(4) == 0 ? "kids" : "adult")
+                    .append(',').append(pick(random, GENDERS))
+                    .append(",regular,").append(pick(random, PRODUCT_TYPES)).append('\n');
+        }
+        Path feed = Files.createTempFile("feed", ".csv");
+        Files.write(feed, text.toString().getBytes(StandardCharsets.UTF_8));
+        return feed;
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    static synchronized Connection connect() throws SQLException {
+        if (postgres == null) {
+            try {
+                postgres = EmbeddedPostgres.builder().start();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    postgres.close();
+                } catch (IOException e) {
+                    System.err.println("Could not stop the test database: " + e.getMessage());
+                }
+            }));
+        }
+        return Utils.getConnection(postgres.getJdbcUrl("postgres", "postgres"), "postgres", "postgres");
+    }
+
+    /**
+     * Recreates the tables of db_reset.sql, empty, in the public schema.
+     */
+    static void reset() throws SQLException, IOException {
+        StringBuilder script = new StringBuilder();
+        for (String line : Files.readAllLines(Paths.get("bin/initdb/db_reset.sql"), StandardCharsets.UTF_8)) {
+            if (!line.startsWith("\\") && !line.contains(" DATABASE ")) {
+                script.append(line).append('\n');
+            }
+        }
+        try (Connection conn = connect(); Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP SCHEMA public CASCADE");
+            stmt.execute("CREATE SCHEMA public");
+            for (String sql : script.toString().split(";\\s*\n")) {
+                stmt.execute(sql);
+            }
+        }
+        // The delta dictionaries of a previous ingestion belong to the dropped tables
+        Ingestor.deltaDictionaries = null;
+    }
+
+    static IngestPipeline ingest(String csvFilePath, String loadMode) throws SQLException {
+        try (Connection conn = connect()) {
+            conn.setAutoCommit(false);
+            IngestPipeline pipeline = Ingestor.ingestCSV(csvFilePath, conn, loadMode);
+            conn.commit();
+            return pipeline;
+        }
+    }
+
+    /**
+     * The rows of the tables, ids included, one string per row in the order of the ids.
+     */
+    static List<String> dump() throws SQLException {
+        List<String> rows = new ArrayList<>();
+        try (Connection conn = connect(); Statement stmt = conn.createStatement()) {
+            for (String table : TABLES) {
+                try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + table + " ORDER BY id")) {
+                    ResultSetMetaData metaData = rs.getMetaData();
+                    while (rs.next()) {
+                        StringBuilder row = new StringBuilder(table);
+                        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                            row.append('|').append(rs.getString(i));
+                        }
+                        rows.add(row.toString());
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+}
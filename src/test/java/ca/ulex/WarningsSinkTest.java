@@ -0,0 +1,108 @@
+package ca.ulex;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The cap and sampling of the warnings written by {@link WarningsSink}, on a connection recording the batches.
+ */
+public class WarningsSinkTest extends TestCase
+{
+    // csv_line of the warnings in the batches executed, and of those added since
+    private final List<Integer> executed = new ArrayList<>();
+    private final List<Integer> batch = new ArrayList<>();
+
+    public void testCapAndSampling() throws Exception {
+        WarningsSink warnings = new WarningsSink(recordingConnection(), 4, 3, 5);
+        for (int csvLine = 1; csvLine <= 20; csvLine++) {
+            warnings.add(csvLine, "WARNING_EMPTY_FIELD", Ingestor.WARNING_EMPTY_FIELD + 2);
+        }
+        warnings.add(21, "WARNING_OUTLIER_BRAND_NAME", Ingestor.WARNING_OUTLIER_BRAND_NAME + "Levi's");
+        // Sent when full only, the rest when flushed
+        assertEquals(Arrays.asList(1, 2, 3, 8), executed);
+        warnings.close();
+        assertEquals(Arrays.asList(1, 2, 3, 8, 13, 18, 21), executed);
+        assertEquals(21, warnings.getCount());
+        assertEquals(Integer.valueOf(20), warnings.getCounts().get("WARNING_EMPTY_FIELD"));
+        assertEquals(Integer.valueOf(1), warnings.getCounts().get("WARNING_OUTLIER_BRAND_NAME"));
+    }
+
+    public void testWithoutSampling() throws Exception {
+        WarningsSink warnings = new WarningsSink(recordingConnection(), 100, 3, 0);
+        for (int csvLine = 1; csvLine <= 20; csvLine++) {
+            warnings.add(csvLine, "WARNING_EMPTY_FIELD", Ingestor.WARNING_EMPTY_FIELD + 2);
+        }
+        warnings.close();
+        assertEquals(Arrays.asList(1, 2, 3), executed);
+        assertEquals(20, warnings.getCount());
+    }
+
+    public void testWithoutCap() throws Exception {
+        WarningsSink warnings = new WarningsSink(recordingConnection(), 100, 0, 5);
+        for (int csvLine = 1; csvLine <= 20; csvLine++) {
+            warnings.add(csvLine, "WARNING_EMPTY_FIELD", Ingestor.WARNING_EMPTY_FIELD + 2);
+        }
+        warnings.close();
+        assertEquals(20, executed.size());
+        assertEquals("TRUE", warnings.writtenCondition("number"));
+    }
+
+    public void testWrittenCondition() {
+        assertEquals("(number <= 3 OR (number - 3) % 5 = 0)",
+                new WarningsSink(null, 100, 3, 5).writtenCondition("number"));
+        assertEquals("(number <= 3)", new WarningsSink(null, 100, 3, 0).writtenCondition("number"));
+    }
+
+    public void testCountsCarriedOver() throws Exception {
+        WarningsSink warnings = new WarningsSink(recordingConnection(), 100, 3, 5);
+        // Written before the checkpoint of a resumed ingestion, then by set-based SQL
+        warnings.restore("WARNING_EMPTY_FIELD", 3);
+        warnings.addWritten("WARNING_MULTIPLE_BRAND_NAMES", 10);
+        for (int csvLine = 4; csvLine <= 8; csvLine++) {
+            warnings.add(csvLine, "WARNING_EMPTY_FIELD", Ingestor.WARNING_EMPTY_FIELD + 2);
+        }
+        for (int csvLine = 11; csvLine <= 13; csvLine++) {
+            warnings.add(csvLine, "WARNING_MULTIPLE_BRAND_NAMES", Ingestor.WARNING_MULTIPLE_BRAND_NAMES + "Levi's");
+        }
+        warnings.close();
+        assertEquals(Arrays.asList(8, 13), executed);
+        assertEquals(Integer.valueOf(8), warnings.getCounts().get("WARNING_EMPTY_FIELD"));
+        assertEquals(Integer.valueOf(13), warnings.getCounts().get("WARNING_MULTIPLE_BRAND_NAMES"));
+    }
+
+    public void testCounting() throws Exception {
+        WarningsSink warnings = WarningsSink.counting();
+        for (int csvLine = 1; csvLine <= 20; csvLine++) {
+            warnings.add(csvLine, "WARNING_EMPTY_FIELD", Ingestor.WARNING_EMPTY_FIELD + 2);
+        }
+        warnings.close();
+        assertEquals(20, warnings.getCount());
+        assertEquals("TRUE", warnings.writtenCondition("number"));
+    }
+
+    private Connection recordingConnection() {
+        PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setInt":
+                            batch.add((Integer) args[1]);
+                            return null;
+                        case "executeBatch":
+                            int[] counts = new int[batch.size()];
+                            executed.addAll(batch);
+                            batch.clear();
+                            return counts;
+                        default:
+                            return null;
+                    }
+                });
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> "prepareStatement".equals(method.getName()) ? stmt : null);
+    }
+}
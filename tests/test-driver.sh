@@ -18,12 +18,19 @@ function dump_sql()
     DB_NAME=inventory
     HOST=localhost
     USER=ingestor
-    tables=$(psql -h localhost -p 5432 -U "${USER}" -d "${DB_NAME}" -t -c "SELECT table_name FROM information_schema.tables WHERE table_schema='public';")
+    # The checkpoints of the loads hold the path of the file and the time of the run, the row hashes are only
+    # written by the delta mode. The lookup tables are dumped through localized_meta.
+    tables=$(psql -h localhost -p 5432 -U "${USER}" -d "${DB_NAME}" -t -c "SELECT table_name FROM information_schema.tables WHERE table_schema='public' AND table_name NOT IN ('ingest_checkpoint', 'row_hash', 'locale', 'size_label', 'color', 'product_type');")
 
     for table in $tables; do
       if [[ -n "$table" ]]; then
         echo "Table: $table"
-        psql -h localhost -U "${USER}" -d "${DB_NAME}" -c "\copy ${table} TO STDOUT CSV HEADER"
+        if [ "$table" = "localized_meta" ]; then
+          # With the values of its lookup tables, as they were stored before them
+          psql -h localhost -U "${USER}" -d "${DB_NAME}" -c "\copy (SELECT m.id, m.id_variant, m.csv_line, l.name AS locale, sl.name AS size_label, m.product_name, c.name AS color, pt.name AS product_type FROM localized_meta m LEFT JOIN locale l ON l.id = m.id_locale LEFT JOIN size_label sl ON sl.id = m.id_size_label LEFT JOIN color c ON c.id = m.id_color LEFT JOIN product_type pt ON pt.id = m.id_product_type ORDER BY m.id) TO STDOUT CSV HEADER"
+        else
+          psql -h localhost -U "${USER}" -d "${DB_NAME}" -c "\copy ${table} TO STDOUT CSV HEADER"
+        fi
         echo ""
       fi
     done > ${OUTPUT}.DB